@@ -0,0 +1,135 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A small benchmark harness in the spirit of JMH's average-time mode, with no dependencies. Each
+ * benchmark runs for a few warmup iterations so the JIT settles, then for a few measured
+ * iterations of fixed length. Every iteration calls the operation in a tight loop and folds its
+ * results into a sink, so the JIT cannot drop the work as unused.
+ */
+public class BenchmarkRunner {
+    private static volatile long sink; // read by nobody, written so results count as used
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationNanos;
+    private final String filter;
+    private final PrintStream out;
+    private final List<String> rows = new ArrayList<>();
+
+    /**
+     * Constructor for a runner
+     * @param warmupIterations iterations run before measuring
+     * @param measuredIterations iterations measured
+     * @param iterationMillis how long each iteration runs for
+     * @param filter only benchmarks whose name contains this are run, null runs every benchmark
+     * @param out where results are printed
+     */
+    public BenchmarkRunner(int warmupIterations, int measuredIterations, long iterationMillis, String filter,
+                           PrintStream out) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+        this.filter = filter;
+        this.out = out;
+    }
+
+    /**
+     * Checks whether a benchmark is selected by the filter, so callers can skip expensive setup
+     * @param name the benchmark's name
+     * @return if the benchmark will run
+     */
+    public boolean selected(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    /**
+     * Runs one benchmark and prints its average time per operation
+     * @param name the benchmark's name
+     * @param operation the operation to time, returning any value derived from its work
+     */
+    public void run(String name, LongSupplier operation) {
+        if (!selected(name)) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] scores = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            scores[i] = iteration(operation);
+        }
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double deviation = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+        report(name, scores.length, mean, deviation, "ns/op");
+    }
+
+    /**
+     * Prints a result measured outside this runner, such as allocation per operation
+     * @param name the benchmark's name
+     * @param count how many measurements the score is from
+     * @param score the score
+     * @param error the standard deviation of the score
+     * @param units the units of the score
+     */
+    public void report(String name, int count, double score, double error, String units) {
+        String row = String.format("%-48s %5d %14.3f +- %10.3f  %s", name, count, score, error, units);
+        rows.add(row);
+        out.println(row);
+    }
+
+    /**
+     * Prints the column headings
+     */
+    public void printHeader() {
+        String header = String.format("%-48s %5s %14s    %10s  %s", "Benchmark", "Cnt", "Score", "Error", "Units");
+        rows.add(header);
+        out.println(header);
+    }
+
+    /**
+     * Gets every line printed so far, the column headings and then one row per benchmark
+     * @return the lines
+     */
+    public List<String> getRows() {
+        return rows;
+    }
+
+    /**
+     * Calls the operation over and over for one iteration's length
+     * @param operation the operation to time
+     * @return the average time per call in ns
+     */
+    private double iteration(LongSupplier operation) {
+        long result = 0;
+        long calls = 0;
+        long batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            // read the clock once per batch so cheap operations are not dominated by it
+            for (long i = 0; i < batch; i++) {
+                result += operation.getAsLong();
+            }
+            calls += batch;
+            elapsed = System.nanoTime() - start;
+            // grow the batch, but not past what fits in the rest of the iteration
+            double perCall = (double) elapsed / calls;
+            batch = Math.max(1, Math.min(batch * 2, (long) ((iterationNanos - elapsed) / perCall)));
+        } while (elapsed < iterationNanos);
+        sink += result;
+        return (double) elapsed / calls;
+    }
+}
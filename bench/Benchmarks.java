@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * The benchmark suite: GameState serialization at 10, 1k and 100k players, Server.processRequest
+ * for every command, the ID lookups behind movePlayer and processPickup, what the write-ahead log
+ * adds to a move, and a full round trip
+ * from a Client through a Host to a Server over loopback, along with how much the Host allocates
+ * relaying it. It also compares the Server processing requests from many sessions on its shared
+ * worker pool against a handler thread per session.
+ *
+ * The same workloads, from Workloads, also run under JMH through the benchmarks in bench/jmh,
+ * which is how they should be measured where Maven can fetch JMH:
+ * <pre>
+ * mvn -P jmh package
+ * java -jar target/benchmarks.jar
+ * </pre>
+ * This runner is the fallback for where it cannot, needing nothing but a JDK. Build and run it
+ * from the repository root:
+ * <pre>
+ * javac -d out src/*.java
+ * javac -cp out -d out-bench bench/*.java
+ * java -cp out:out-bench Benchmarks [--quick] [--filter name] [--save bench/baseline.txt]
+ * </pre>
+ * The round trip benchmark starts its own Host and Server, so ports 5000 and 6000 must be free,
+ * and the session thread benchmark starts two more Servers on ports 6101 and 6102.
+ */
+public class Benchmarks {
+    public static final int[] SIZES = {10, 1_000, 100_000};
+    public static final int LOOKUP_PLAYERS = 100_000;
+    public static final int ALLOCATION_ROUND_TRIPS = 20_000;
+    public static final int SESSIONS = 1_000; // sessions sending at once in the session thread benchmark
+    public static final long RESPONSE_TIMEOUT = 5_000; // ms to wait for a response before giving up
+
+    /**
+     * Benchmarks serializing a full snapshot, one player's surroundings and a compact snapshot at
+     * each size, and how many times smaller the compact snapshot is
+     * @param runner the runner
+     */
+    private static void serialize(BenchmarkRunner runner) {
+        for (int size : SIZES) {
+            String name = "GameState.serialize (" + size + " players)";
+            if (runner.selected(name)) {
+                runner.run(name, Workloads.serialize(size));
+            }
+            String viewName = "GameState.serializeView (" + size + " players)";
+            if (runner.selected(viewName)) {
+                runner.run(viewName, Workloads.serializeView(size));
+            }
+            String compactName = "GameState.serializeCompact (" + size + " players)";
+            if (runner.selected(compactName)) {
+                runner.run(compactName, Workloads.serializeCompact(size));
+                runner.report("STATE / SNAPSHOT bytes (" + size + " players)", 1, Workloads.compactRatio(size), 0, "x");
+            }
+        }
+    }
+
+    /**
+     * Benchmarks the lookups behind moving players and picking up loot, with many players
+     * @param runner the runner
+     */
+    private static void lookups(BenchmarkRunner runner) {
+        String name = "GameState.movePlayer (" + LOOKUP_PLAYERS + " players)";
+        if (runner.selected(name)) {
+            runner.run(name, Workloads.movePlayer(LOOKUP_PLAYERS));
+        }
+        name = "GameState.processPickup miss (" + LOOKUP_PLAYERS + " players)";
+        if (runner.selected(name)) {
+            runner.run(name, Workloads.processPickupMiss(LOOKUP_PLAYERS));
+        }
+        name = "GameState.getPlayerById (" + LOOKUP_PLAYERS + " players)";
+        if (runner.selected(name)) {
+            runner.run(name, Workloads.getPlayerById(LOOKUP_PLAYERS));
+        }
+    }
+
+    /**
+     * Benchmarks what logging for crash recovery adds to a move, with the write-ahead log flushed
+     * only by the operating system and flushed before every response, and how long a snapshot of
+     * LOOKUP_PLAYERS players takes. The log is written to a temporary directory, deleted afterwards
+     * @param runner the runner
+     */
+    private static void writeAheadLog(BenchmarkRunner runner) {
+        String name = "WriteAheadLog ";
+        if (!runner.selected(name)) {
+            return;
+        }
+        for (String policy : new String[] {"never", "always"}) {
+            Path directory = null;
+            try {
+                directory = Files.createTempDirectory("wal");
+                runner.run(name + "movePlayer, fsync " + policy + " (" + LOOKUP_PLAYERS + " players)",
+                        Workloads.loggedMovePlayer(directory, policy, LOOKUP_PLAYERS));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            } finally {
+                Workloads.delete(directory);
+            }
+        }
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("wal");
+            runner.run(name + "checkpoint (" + LOOKUP_PLAYERS + " players)",
+                    Workloads.checkpoint(directory, LOOKUP_PLAYERS));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            Workloads.delete(directory);
+        }
+    }
+
+    /**
+     * Benchmarks Server.processRequest for each command, without any networking
+     * @param runner the runner
+     */
+    private static void processRequest(BenchmarkRunner runner) {
+        String[][] commands = {{"MOVE", "MOVE"}, {"PICKUP", "PICKUP"}, {"STATE", "STATE full"},
+                {"STATE_DELTA", "STATE delta"}, {"NOT_A_COMMAND", "NOT_A_COMMAND"}, {"JOIN", "JOIN"}};
+        for (String[] command : commands) {
+            String name = "Server.processRequest " + command[1];
+            if (runner.selected(name)) {
+                runner.run(name, Workloads.processRequest(command[0]));
+            }
+        }
+    }
+
+    /**
+     * Benchmarks a MOVE request going from a Client through a Host to a Server and back over loopback
+     * @param runner the runner
+     */
+    private static void roundTrip(BenchmarkRunner runner) {
+        String name = "Client->Host->Server round trip (MOVE)";
+        if (runner.selected(name)) {
+            runner.run(name, Workloads.roundTrip());
+        }
+    }
+
+    /**
+     * Measures how many bytes the Host's thread allocates per MOVE round trip it relays, which
+     * should be 0 once its buffer pool has warmed up
+     * @param runner the runner
+     */
+    private static void relayAllocation(BenchmarkRunner runner) {
+        String name = "Host relay allocation (MOVE round trip)";
+        if (!runner.selected(name)) {
+            return;
+        }
+        LongSupplier roundTrip = Workloads.roundTrip();
+        long hostThread = Workloads.getHostThread().getId();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int i = 0; i < ALLOCATION_ROUND_TRIPS; i++) { // warm up the pool and the JIT
+            roundTrip.getAsLong();
+        }
+        long before = threads.getThreadAllocatedBytes(hostThread);
+        for (int i = 0; i < ALLOCATION_ROUND_TRIPS; i++) {
+            roundTrip.getAsLong();
+        }
+        long allocated = threads.getThreadAllocatedBytes(hostThread) - before;
+        runner.report(name, 1, (double) allocated / ALLOCATION_ROUND_TRIPS, 0, "B/op");
+    }
+
+    /**
+     * Compares the Server's two ways of processing requests: its shared worker pool, and a handler
+     * thread per session, virtual on Java 21 and later. Each operation is a burst of one MOVE from
+     * each of SESSIONS sessions, sent straight to the Server the way the Host pushes them, and
+     * ends once every response is back
+     * @param runner the runner
+     */
+    private static void sessionThreads(BenchmarkRunner runner) {
+        String name = "Server " + SESSIONS + " sessions x MOVE, ";
+        if (!runner.selected(name)) {
+            return;
+        }
+        sessionBurst(runner, name + "pool threads", 6101, false);
+        sessionBurst(runner, name + "session threads", 6102, true);
+    }
+
+    /**
+     * Starts a Server on a daemon thread and benchmarks bursts of MOVE requests from many sessions
+     * against it, acting as its Host
+     * @param runner the runner
+     * @param name the name of the benchmark
+     * @param port the port for the Server
+     * @param sessionThreads if every session gets its own handler thread, or the worker pool is used
+     */
+    private static void sessionBurst(BenchmarkRunner runner, String name, int port, boolean sessionThreads) {
+        Server server = new Server(port);
+        if (sessionThreads && !server.startSessionThreads()) {
+            name += " (platform)"; // no virtual threads before Java 21
+        }
+        Thread thread = new Thread(server::startServer, "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        try (DatagramChannel host = DatagramChannel.open(); Selector selector = Selector.open()) {
+            host.setOption(StandardSocketOptions.SO_RCVBUF, WireCodec.SOCKET_BUFFER);
+            host.connect(new InetSocketAddress("localhost", port));
+            host.configureBlocking(false);
+            host.register(selector, SelectionKey.OP_READ);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM);
+            Frame frame = new Frame(Frame.JOIN);
+            frame.setText("Bench");
+            frame.setSessionId(1);
+            exchange(host, selector, buffer, new Frame[] {frame}, frame);
+            int playerId = frame.getPlayerId();
+
+            Frame[] burst = new Frame[SESSIONS];
+            for (int i = 0; i < SESSIONS; i++) {
+                burst[i] = new Frame(Frame.MOVE);
+                burst[i].setSessionId(i + 1);
+                burst[i].setPlayerId(playerId);
+                burst[i].setDx(1);
+            }
+            runner.run(name, () -> exchange(host, selector, buffer, burst, frame));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sends requests to a Server and waits for a response to each, unpacking the bundles they arrive in
+     * @param host the channel, connected to the Server
+     * @param selector the selector the channel is registered with for reading
+     * @param buffer the buffer to encode and receive in
+     * @param requests the requests
+     * @param response where each response is decoded, holding the last one afterwards
+     * @return the number of responses
+     */
+    private static int exchange(DatagramChannel host, Selector selector, ByteBuffer buffer, Frame[] requests, Frame response) {
+        try {
+            for (Frame request : requests) {
+                buffer.clear();
+                WireCodec.encode(request, buffer);
+                host.write(buffer);
+            }
+            int[] responses = {0};
+            Consumer<ByteBuffer> count = frame -> { // the Server bundles its responses
+                if (WireCodec.decode(frame, response) && response.getOpcode() != Frame.BATCH_ACK) {
+                    responses[0]++;
+                }
+            };
+            while (responses[0] < requests.length) {
+                buffer.clear();
+                if (host.read(buffer) <= 0) {
+                    if (selector.select(RESPONSE_TIMEOUT) == 0) {
+                        throw new IllegalStateException("Only " + responses[0] + " of " + requests.length + " responses arrived");
+                    }
+                    selector.selectedKeys().clear();
+                    continue;
+                }
+                buffer.flip();
+                DatagramBatcher.unbundle(buffer, count);
+            }
+            return responses[0];
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return 0;
+        }
+    }
+
+    /**
+     * Main method
+     * @param args --quick for shorter iterations, --filter to run only matching benchmarks, and
+     *             --save to also write the results to a file
+     */
+    public static void main(String[] args) throws IOException {
+        boolean quick = false;
+        String filter = null;
+        String save = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick" -> quick = true;
+                case "--filter" -> filter = args[++i];
+                case "--save" -> save = args[++i];
+                default -> System.out.println("Ignoring unknown option " + args[i]);
+            }
+        }
+
+        // the classes being measured log every request, which is not what is being measured
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        int warmup = quick ? 2 : 5;
+        int measured = quick ? 3 : 5;
+        long iterationMillis = quick ? 100 : 500;
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, measured, iterationMillis, filter, console);
+        String settings = "Java " + System.getProperty("java.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " cores, " + warmup + " warmup and "
+                + measured + " measured iterations of " + iterationMillis + " ms";
+        console.println(settings);
+        runner.printHeader();
+
+        serialize(runner);
+        lookups(runner);
+        writeAheadLog(runner);
+        processRequest(runner);
+        roundTrip(runner);
+        relayAllocation(runner);
+        sessionThreads(runner);
+
+        if (save != null) {
+            StringBuilder text = new StringBuilder(settings).append('\n');
+            for (String row : runner.getRows()) {
+                text.append(row).append('\n');
+            }
+            Files.writeString(Path.of(save), text.toString(), StandardCharsets.UTF_8);
+        }
+        System.exit(0); // the server's worker threads would keep the JVM running
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stress test of GameState under concurrent requests, the way the Server's worker pool makes
+ * them. It checks that the locking keeps its promises:
+ * <ul>
+ * <li>threads racing to pick up the same loot box, round after round, leave exactly one winner
+ * and the box gone</li>
+ * <li>threads moving their own players at once lose no move and no version</li>
+ * </ul>
+ * and then measures how the throughput of a mix of moves, pickups and ID lookups on one shared
+ * game grows with the number of threads.
+ *
+ * Build and run from the repository root:
+ * <pre>
+ * javac -d out src/*.java
+ * javac -cp out -d out-bench bench/*.java
+ * java -cp out:out-bench ConcurrencyStress [--rounds 1000] [--threads 16] [--seconds 1]
+ * </pre>
+ * Exits with status 1 as soon as a check fails.
+ */
+public class ConcurrencyStress {
+    public static final int LOOT_ID = 200; // the HealthPack every GameState starts with, at (5,5)
+    public static final int LOOT_X = 5;
+    public static final int LOOT_Y = 5;
+    public static final int MOVES_PER_THREAD = 100_000;
+    public static final int PLAYERS = 10_000; // in the game the throughput is measured on
+
+    private static volatile GameState contested; // the game of the current round, replaced by the main thread
+
+    /**
+     * Races threads for the same loot box, once per round on a new game, and fails unless exactly
+     * one of them gets it
+     * @param out where results are printed
+     * @param threads how many threads race in each round
+     * @param rounds how many rounds to run
+     * @throws InterruptedException if interrupted while waiting for a round
+     */
+    private static void contestedPickups(PrintStream out, int threads, int rounds) throws InterruptedException {
+        int[][] playerIds = new int[rounds][threads];
+        AtomicInteger winners = new AtomicInteger();
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        CyclicBarrier end = new CyclicBarrier(threads + 1);
+        List<Thread> racers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int racer = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        start.await(); // every racer starts the round at once
+                        if (contested.processPickup(playerIds[round][racer], LOOT_ID)) {
+                            winners.incrementAndGet();
+                        }
+                        end.await();
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "racer-" + t);
+            thread.start();
+            racers.add(thread);
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                // every racer stands on the box before the round starts
+                GameState gameState = new GameState();
+                for (int t = 0; t < threads; t++) {
+                    playerIds[round][t] = gameState.addNewPlayer("Racer" + t).getId();
+                    gameState.movePlayer(playerIds[round][t], LOOT_X, LOOT_Y);
+                }
+                contested = gameState;
+                winners.set(0);
+                start.await();
+                end.await();
+                if (winners.get() != 1) {
+                    fail(out, "Round " + round + " of contested pickups had " + winners.get() + " winners, not 1");
+                }
+                if (gameState.getLootBoxById(LOOT_ID) != null) {
+                    fail(out, "Round " + round + " left the picked up loot box in the game");
+                }
+            }
+        } catch (BrokenBarrierException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        for (Thread racer : racers) {
+            racer.join();
+        }
+        out.printf("Contested PICKUP: %d rounds of %d threads, exactly one winner each (%.1f ms)%n", rounds, threads,
+                (System.nanoTime() - startTime) / 1e6);
+    }
+
+    /**
+     * Moves a player of its own on each thread at once, and fails unless every move took the
+     * player where it should and bumped the version once
+     * @param out where results are printed
+     * @param threads how many threads move at once
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void concurrentMoves(PrintStream out, int threads) throws InterruptedException {
+        GameState gameState = new GameState();
+        int[] playerIds = new int[threads];
+        for (int t = 0; t < threads; t++) {
+            playerIds[t] = gameState.addNewPlayer("Mover" + t).getId();
+        }
+        long before = gameState.getVersion();
+
+        List<Thread> movers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int playerId = playerIds[t];
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < MOVES_PER_THREAD; i++) {
+                    gameState.movePlayer(playerId, 1, i % 2);
+                }
+            }, "mover-" + t);
+            thread.start();
+            movers.add(thread);
+        }
+        for (Thread mover : movers) {
+            mover.join();
+        }
+
+        long moves = (long) threads * MOVES_PER_THREAD;
+        if (gameState.getVersion() - before != moves) {
+            fail(out, "Concurrent moves bumped the version " + (gameState.getVersion() - before) + " times, not " + moves);
+        }
+        for (int playerId : playerIds) {
+            var player = gameState.getPlayerById(playerId);
+            if (player.getX() != MOVES_PER_THREAD || player.getY() != MOVES_PER_THREAD / 2) {
+                fail(out, "Player " + playerId + " ended at (" + player.getX() + "," + player.getY() + "), not ("
+                        + MOVES_PER_THREAD + "," + MOVES_PER_THREAD / 2 + ")");
+            }
+        }
+        out.printf("Concurrent MOVE: %d threads, %d moves, none lost%n", threads, moves);
+    }
+
+    /**
+     * Measures the throughput of a mix of moves, missed pickups and ID lookups on one shared game,
+     * 8 moves to 1 pickup to 1 lookup, for 1, 2, 4 and so on up to a number of threads
+     * @param out where results are printed
+     * @param maxThreads the most threads to measure with
+     * @param seconds how long each measurement runs
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void scaling(PrintStream out, int maxThreads, double seconds) throws InterruptedException {
+        GameState gameState = new GameState();
+        int[] playerIds = new int[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            playerIds[i] = gameState.addNewPlayer("Bot" + i).getId();
+        }
+
+        out.printf("%nThroughput of MOVE/PICKUP/lookup = 8/1/1 on %d players, %d cores%n", PLAYERS,
+                Runtime.getRuntime().availableProcessors());
+        throughput(gameState, playerIds, 1, seconds); // warmup, so the JIT has settled before the first measurement
+        throughput(gameState, playerIds, maxThreads, seconds);
+        out.printf("%-8s %15s %8s%n", "Threads", "ops/s", "Speedup");
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double ops = throughput(gameState, playerIds, threads, seconds);
+            if (threads == 1) {
+                single = ops;
+            }
+            out.printf("%-8d %15.0f %7.2fx%n", threads, ops, ops / single);
+        }
+    }
+
+    /**
+     * Runs the mix of moves, missed pickups and ID lookups on a number of threads at once, each
+     * moving players of its own as the Server's sessions do
+     * @param gameState the game
+     * @param playerIds the players in the game
+     * @param threads how many threads to run
+     * @param seconds how long to run for
+     * @return the operations per second of every thread together
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static double throughput(GameState gameState, int[] playerIds, int threads, double seconds)
+            throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 100; i++) { // checks the clock once per 100 operations
+                        int playerId = playerIds[first + threads * random.nextInt(playerIds.length / threads)];
+                        switch (i % 10) {
+                            case 0 -> gameState.processPickup(playerId, LOOT_ID + 1);
+                            case 1 -> gameState.getPlayerById(playerIds[random.nextInt(playerIds.length)]);
+                            default -> gameState.movePlayer(playerId, random.nextInt(3) - 1, random.nextInt(3) - 1);
+                        }
+                    }
+                    done += 100;
+                }
+                operations.add(done);
+            }, "worker-" + t);
+            workers.add(thread);
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / seconds;
+    }
+
+    /**
+     * Prints why a check failed and exits with status 1
+     * @param out where to print
+     * @param message what went wrong
+     */
+    private static void fail(PrintStream out, String message) {
+        out.println("FAILED: " + message);
+        out.flush();
+        System.exit(1);
+    }
+
+    /**
+     * Main method
+     * @param args how many rounds of contested pickups as --rounds, the most threads as --threads and
+     *             how long each throughput measurement runs as --seconds
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int rounds = 1_000;
+        int threads = Math.max(16, 2 * Runtime.getRuntime().availableProcessors());
+        double seconds = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rounds" -> rounds = Integer.parseInt(args[i + 1]);
+                case "--threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "--seconds" -> seconds = Double.parseDouble(args[i + 1]);
+                default -> System.out.println("Ignoring unknown option " + args[i]);
+            }
+        }
+
+        contestedPickups(System.out, threads, rounds);
+        concurrentMoves(System.out, threads);
+        scaling(System.out, threads, seconds);
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the Host only forwards requests from clients. A client sends a HANDOFF, a BUNDLE
+ * holding a HANDOFF, and frames only the servers send, followed by a MOVE; a fake shard behind
+ * the Host must receive the MOVE and nothing else.
+ *
+ * Build and run from the repository root, with port 5000 free:
+ * <pre>
+ * javac -d out src/*.java
+ * javac -cp out -d out-bench bench/*.java
+ * java -cp out:out-bench HostFilterCheck
+ * </pre>
+ * Exits with status 1 if anything but the MOVE reaches the shard.
+ */
+public class HostFilterCheck {
+    public static final int RECEIVE_TIMEOUT = 2_000; // ms to wait for the MOVE at the shard
+    public static final int PLAYER_ID = 100;
+
+    /**
+     * Encodes a frame the way a client's link sends it
+     * @param frame the frame
+     * @param seq the link sequence number to stamp
+     * @return the datagram
+     */
+    private static byte[] encode(Frame frame, int seq) {
+        ByteBuffer buffer = ByteBuffer.allocate(WireCodec.MAX_DATAGRAM);
+        WireCodec.encode(frame, buffer);
+        buffer.putInt(WireCodec.SEQ_OFFSET, seq);
+        byte[] datagram = new byte[buffer.remaining()];
+        buffer.get(datagram);
+        return datagram;
+    }
+
+    /**
+     * Wraps a frame in a BUNDLE, the way the Host and Server bundle what they send each other
+     * @param frame the encoded frame
+     * @param seq the link sequence number to stamp
+     * @return the datagram
+     */
+    private static byte[] bundle(byte[] frame, int seq) {
+        ByteBuffer buffer = ByteBuffer.allocate(WireCodec.HEADER_SIZE + 2 + frame.length);
+        WireCodec.putHeader(buffer, Frame.BUNDLE, 0, 0);
+        buffer.putInt(WireCodec.SEQ_OFFSET, seq);
+        buffer.putShort((short) frame.length).put(frame);
+        return buffer.array();
+    }
+
+    /**
+     * Main method
+     * @param args unused
+     * @throws IOException if a socket fails
+     */
+    public static void main(String[] args) throws IOException {
+        PrintStream out = System.out;
+        try (DatagramSocket shard = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket client = new DatagramSocket()) {
+            Host host = new Host(new InetSocketAddress[] {(InetSocketAddress) shard.getLocalSocketAddress()},
+                    ShardMap.SINGLE);
+            Thread hostThread = new Thread(host::startHost, "host");
+            hostThread.setDaemon(true);
+            hostThread.start();
+
+            Frame handoff = new Frame(Frame.HANDOFF);
+            handoff.setPlayerId(PLAYER_ID);
+            handoff.setX(5);
+            handoff.setY(5);
+            handoff.setHealth(1_000_000);
+            handoff.setText("Intruder");
+            List<byte[]> datagrams = new ArrayList<>();
+            int seq = 1;
+            datagrams.add(encode(handoff, seq++));
+            datagrams.add(bundle(encode(handoff, 0), seq++));
+            for (byte opcode : new byte[] {Frame.BATCH_ACK, Frame.MOVE_OK, Frame.STATE_DATA, Frame.FRAGMENT, Frame.UPDATE}) {
+                datagrams.add(encode(new Frame(opcode), seq++));
+            }
+            Frame move = new Frame(Frame.MOVE);
+            move.setPlayerId(PLAYER_ID);
+            move.setDx(1);
+            datagrams.add(encode(move, seq));
+
+            InetSocketAddress hostAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000);
+            for (byte[] datagram : datagrams) {
+                client.send(new DatagramPacket(datagram, datagram.length, hostAddress));
+            }
+
+            // the host relays in order, so everything it forwarded has arrived once the MOVE has
+            shard.setSoTimeout(RECEIVE_TIMEOUT);
+            List<Byte> received = new ArrayList<>();
+            byte[] buffer = new byte[WireCodec.MAX_DATAGRAM];
+            while (!received.contains(Frame.MOVE)) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    shard.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    fail(out, "The MOVE sent after the rejected frames never reached the shard");
+                }
+                DatagramBatcher.unbundle(ByteBuffer.wrap(buffer, 0, packet.getLength()).slice(),
+                        frame -> received.add(frame.get(frame.position() + WireCodec.OPCODE_OFFSET)));
+            }
+            if (received.size() != 1) {
+                List<String> names = new ArrayList<>();
+                received.forEach(opcode -> names.add(Frame.opcodeName(opcode)));
+                fail(out, "The shard received " + names + ", not just the MOVE");
+            }
+            out.println("The shard received only the MOVE; HANDOFF, BUNDLE and responses from a client were dropped");
+        }
+        System.exit(0); // the host's thread would keep the JVM running
+    }
+
+    /**
+     * Prints why the check failed and exits with status 1
+     * @param out where to print
+     * @param message what went wrong
+     */
+    private static void fail(PrintStream out, String message) {
+        out.println("FAILED: " + message);
+        out.flush();
+        System.exit(1);
+    }
+}
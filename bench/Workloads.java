@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * The operations the benchmarks measure, each set up by a factory and returned as a LongSupplier
+ * that performs one operation per call and returns something derived from its result, so the JIT
+ * cannot drop the work. Shared by the Benchmarks runner and the JMH benchmarks in bench/jmh,
+ * which cannot name classes in the default package and so look these factories up by name.
+ */
+public class Workloads {
+    public static final int VIEW_RADIUS = 32; // how far around a player serializeView looks
+    public static final int MOVES_PER_CHECKPOINT = 4_000_000; // keeps the logged benchmarks to a few segments on disk
+
+    // the in-process relay, started by whichever benchmark needs it first
+    private static Thread hostThread;
+    private static Client relayClient;
+    private static int relayPlayerId;
+
+    /**
+     * Fills a game state with players spread randomly over a square that grows with their number
+     * @param gameState the game state to fill
+     * @param players how many players to add
+     * @return the player IDs
+     */
+    public static int[] populate(GameState gameState, int players) {
+        Random random = new Random(players);
+        int side = (int) Math.sqrt(players) * 4 + 1;
+        int[] ids = new int[players];
+        for (int i = 0; i < players; i++) {
+            ids[i] = gameState.addNewPlayer("Bot" + i).getId();
+            gameState.movePlayer(ids[i], random.nextInt(side), random.nextInt(side));
+        }
+        return ids;
+    }
+
+    /**
+     * Serializes a full snapshot of a game
+     * @param players how many players the game has
+     * @return the operation, returning the snapshot's length
+     */
+    public static LongSupplier serialize(int players) {
+        GameState gameState = new GameState();
+        populate(gameState, players);
+        return () -> gameState.serialize().length();
+    }
+
+    /**
+     * Serializes one player's surroundings, a different player each call
+     * @param players how many players the game has
+     * @return the operation, returning the view's length
+     */
+    public static LongSupplier serializeView(int players) {
+        GameState gameState = new GameState();
+        int[] ids = populate(gameState, players);
+        int[] next = {0};
+        return () -> gameState.serializeView(ids[next[0]++ % ids.length], VIEW_RADIUS).length();
+    }
+
+    /**
+     * Serializes a compact snapshot for a client that already has the dictionary, as every
+     * SNAPSHOT after its first one
+     * @param players how many players the game has
+     * @return the operation, returning the snapshot's length
+     */
+    public static LongSupplier serializeCompact(int players) {
+        GameState gameState = new GameState();
+        populate(gameState, players);
+        Frame request = compactRequest(gameState);
+        return () -> gameState.serializeCompact(request.getDictionaryId(), request.getCount()).length;
+    }
+
+    /**
+     * Works out how many times smaller a compact snapshot is than the full text one
+     * @param players how many players the game has
+     * @return the full snapshot's length divided by the compact one's
+     */
+    public static double compactRatio(int players) {
+        GameState gameState = new GameState();
+        populate(gameState, players);
+        Frame request = compactRequest(gameState);
+        double text = gameState.serialize(0).length();
+        return text / gameState.serializeCompact(request.getDictionaryId(), request.getCount()).length;
+    }
+
+    /**
+     * Makes the SNAPSHOT request of a client that already has the game's dictionary
+     * @param gameState the game
+     * @return the request
+     */
+    private static Frame compactRequest(GameState gameState) {
+        CompactSnapshot client = new CompactSnapshot();
+        Frame request = new Frame(Frame.SNAPSHOT);
+        client.prepare(request);
+        client.decode(gameState.serializeCompact(request.getDictionaryId(), request.getCount()));
+        client.prepare(request);
+        return request;
+    }
+
+    /**
+     * Moves a different player each call, the lookup behind every MOVE
+     * @param players how many players the game has
+     * @return the operation, returning the player moved
+     */
+    public static LongSupplier movePlayer(int players) {
+        GameState gameState = new GameState();
+        int[] ids = populate(gameState, players);
+        int[] next = {0};
+        return () -> {
+            int id = ids[next[0]++ % ids.length];
+            gameState.movePlayer(id, 1, 0);
+            return id;
+        };
+    }
+
+    /**
+     * Tries to pick up a loot box with a different player each call. Almost every player is out of
+     * reach of it, so each call is two lookups and a distance check
+     * @param players how many players the game has
+     * @return the operation, returning 1 if the loot box was picked up
+     */
+    public static LongSupplier processPickupMiss(int players) {
+        GameState gameState = new GameState();
+        int[] ids = populate(gameState, players);
+        int[] next = {0};
+        return () -> gameState.processPickup(ids[next[0]++ % ids.length], 201) ? 1 : 0;
+    }
+
+    /**
+     * Looks up a different player by ID each call
+     * @param players how many players the game has
+     * @return the operation, returning the player's ID
+     */
+    public static LongSupplier getPlayerById(int players) {
+        GameState gameState = new GameState();
+        int[] ids = populate(gameState, players);
+        int[] next = {0};
+        return () -> gameState.getPlayerById(ids[next[0]++ % ids.length]).getId();
+    }
+
+    /**
+     * Moves a different player each call and commits the move to a write-ahead log, checkpointing
+     * every MOVES_PER_CHECKPOINT moves so the log stays small
+     * @param directory where the log is written, which the caller deletes afterwards
+     * @param fsync the sync policy, never, interval or always
+     * @param players how many players the game has
+     * @return the operation, returning the player moved
+     * @throws IOException if the log cannot be opened
+     */
+    public static LongSupplier loggedMovePlayer(Path directory, String fsync, int players) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.SyncPolicy.valueOf(fsync.toUpperCase()), 0);
+        GameState gameState = log.getGameState();
+        int[] ids = populate(gameState, players);
+        int[] next = {0};
+        return () -> {
+            int id = ids[next[0]++ % ids.length];
+            gameState.movePlayer(id, 1, 0);
+            log.commit();
+            if (next[0] % MOVES_PER_CHECKPOINT == 0) {
+                log.checkpoint(gameState); // deletes the segments written so far
+            }
+            return id;
+        };
+    }
+
+    /**
+     * Writes a snapshot of a game to a write-ahead log and starts a new segment, each call
+     * @param directory where the log is written, which the caller deletes afterwards
+     * @param players how many players the game has
+     * @return the operation, returning 0
+     * @throws IOException if the log cannot be opened
+     */
+    public static LongSupplier checkpoint(Path directory, int players) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(directory, WriteAheadLog.SyncPolicy.NEVER, 0);
+        GameState gameState = log.getGameState();
+        populate(gameState, players);
+        return () -> {
+            log.checkpoint(gameState);
+            return 0;
+        };
+    }
+
+    /**
+     * Deletes a directory and the files in it
+     * @param directory the directory, or null
+     */
+    public static void delete(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Has a Server process a request without any networking
+     * @param command MOVE, PICKUP, STATE for a full snapshot, STATE_DELTA to move a player and ask
+     *                for what changed since the previous call like a polling client, NOT_A_COMMAND,
+     *                or JOIN, which adds a player every call
+     * @return the operation, returning the response's opcode, or the length of its text for STATE
+     */
+    public static LongSupplier processRequest(String command) {
+        Server server = new Server(0, 1); // any free port, nothing is ever sent to it
+        Frame response = new Frame();
+
+        Frame join = new Frame(Frame.JOIN);
+        join.setText("Bot");
+        for (int i = 0; i < 1_000; i++) {
+            server.processRequest(join, response);
+        }
+
+        Frame move = new Frame(Frame.MOVE);
+        move.setPlayerId(100);
+        move.setDx(1);
+        Frame pickup = new Frame(Frame.PICKUP);
+        pickup.setPlayerId(101);
+        pickup.setLootId(201);
+        Frame state = new Frame(Frame.STATE);
+        Frame unknown = new Frame(Frame.UNKNOWN);
+
+        switch (command) {
+            case "MOVE" -> {
+                return () -> {
+                    server.processRequest(move, response);
+                    return response.getOpcode();
+                };
+            }
+            case "PICKUP" -> {
+                return () -> {
+                    server.processRequest(pickup, response);
+                    return response.getOpcode();
+                };
+            }
+            case "STATE" -> {
+                return () -> {
+                    server.processRequest(state, response);
+                    return response.getText().length();
+                };
+            }
+            case "STATE_DELTA" -> {
+                server.processRequest(state, response);
+                long[] seen = {versionOf(response.getText())};
+                return () -> {
+                    server.processRequest(move, response);
+                    state.setSince(seen[0]);
+                    server.processRequest(state, response);
+                    seen[0] = versionOf(response.getText());
+                    return response.getText().length();
+                };
+            }
+            case "NOT_A_COMMAND" -> {
+                return () -> {
+                    server.processRequest(unknown, response);
+                    return response.getOpcode();
+                };
+            }
+            case "JOIN" -> {
+                return () -> {
+                    server.processRequest(join, response);
+                    return response.getPlayerId();
+                };
+            }
+            default -> throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    /**
+     * Reads the version a snapshot or delta is at
+     * @param snapshot the serialized snapshot or delta, starting with VERSION=
+     * @return the version
+     */
+    private static long versionOf(String snapshot) {
+        return Long.parseLong(snapshot.substring("VERSION=".length(), snapshot.indexOf(';')));
+    }
+
+    /**
+     * Sends a MOVE request from a Client through a Host to a Server and back over loopback, starting
+     * the Host and Server the first time. Ports 5000 and 6000 must be free
+     * @return the operation, returning the response's opcode
+     */
+    public static LongSupplier roundTrip() {
+        startRelay();
+        Frame move = new Frame(Frame.MOVE);
+        move.setPlayerId(relayPlayerId);
+        move.setDx(1);
+        return () -> relayClient.rpc_send(move).getOpcode();
+    }
+
+    /**
+     * Gets the thread the relay's Host runs on
+     * @return the thread, or null if no round trip has been set up yet
+     */
+    public static Thread getHostThread() {
+        return hostThread;
+    }
+
+    /**
+     * Starts a Server and a Host on daemon threads and joins a player through them, once
+     */
+    private static void startRelay() {
+        if (hostThread != null) {
+            return;
+        }
+        Thread server = new Thread(() -> new Server(6000).startServer(), "server");
+        hostThread = new Thread(() -> new Host().startHost(), "host");
+        server.setDaemon(true);
+        hostThread.setDaemon(true);
+        server.start();
+        hostThread.start();
+
+        relayClient = new Client("localhost", 5000);
+        Frame join = new Frame(Frame.JOIN);
+        join.setText("Bench");
+        relayPlayerId = relayClient.rpc_send(join).getPlayerId();
+    }
+}
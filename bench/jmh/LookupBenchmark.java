@@ -0,0 +1,51 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ID lookups behind GameState.movePlayer and processPickup, with many players
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=WARN")
+public class LookupBenchmark {
+    @Param({"movePlayer", "processPickupMiss", "getPlayerById"})
+    public String operation;
+
+    @Param({"100000"})
+    public int players;
+
+    private LongSupplier lookup;
+
+    /**
+     * Fills a game with the players
+     */
+    @Setup
+    public void setUp() {
+        lookup = Workload.create(operation, players);
+    }
+
+    /**
+     * Moves, picks up with or looks up one player
+     * @return the player's ID, or whether the pickup succeeded
+     */
+    @Benchmark
+    public long lookup() {
+        return lookup.getAsLong();
+    }
+}
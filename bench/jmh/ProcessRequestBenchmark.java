@@ -0,0 +1,50 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server.processRequest for each command, without any networking. STATE_DELTA moves a player and
+ * asks for what changed since the previous call, like a polling client, and JOIN adds a player
+ * every call
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=WARN")
+public class ProcessRequestBenchmark {
+    @Param({"MOVE", "PICKUP", "STATE", "STATE_DELTA", "NOT_A_COMMAND", "JOIN"})
+    public String command;
+
+    private LongSupplier process;
+
+    /**
+     * Starts a Server, without networking, with 1000 players
+     */
+    @Setup
+    public void setUp() {
+        process = Workload.create("processRequest", command);
+    }
+
+    /**
+     * Processes one request
+     * @return the response's opcode, or the length of its text for STATE
+     */
+    @Benchmark
+    public long processRequest() {
+        return process.getAsLong();
+    }
+}
@@ -0,0 +1,46 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A MOVE request going from a Client through a Host to a Server and back over loopback. The Host
+ * and Server run in the benchmark's JVM, so ports 5000 and 6000 must be free. Run with -prof gc
+ * to see what the round trip allocates, across the Client, Host and Server together
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=WARN")
+public class RoundTripBenchmark {
+    private LongSupplier roundTrip;
+
+    /**
+     * Starts the Host and Server and joins a player through them
+     */
+    @Setup
+    public void setUp() {
+        roundTrip = Workload.create("roundTrip");
+    }
+
+    /**
+     * Sends one MOVE and waits for its response
+     * @return the response's opcode
+     */
+    @Benchmark
+    public long roundTrip() {
+        return roundTrip.getAsLong();
+    }
+}
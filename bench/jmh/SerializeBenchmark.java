@@ -0,0 +1,51 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GameState.serialize, serializeView and serializeCompact at 10, 1k and 100k players
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=WARN")
+public class SerializeBenchmark {
+    @Param({"serialize", "serializeView", "serializeCompact"})
+    public String operation;
+
+    @Param({"10", "1000", "100000"})
+    public int players;
+
+    private LongSupplier serialize;
+
+    /**
+     * Fills a game with the players
+     */
+    @Setup
+    public void setUp() {
+        serialize = Workload.create(operation, players);
+    }
+
+    /**
+     * Serializes the game once
+     * @return the length of what was serialized
+     */
+    @Benchmark
+    public long serialize() {
+        return serialize.getAsLong();
+    }
+}
@@ -0,0 +1,57 @@
+package jmh;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+/**
+ * Sets up the operations the JMH benchmarks measure. JMH refuses benchmarks in the default
+ * package, and code in a package cannot name the game's classes, which are all in the default
+ * package, so the benchmarks get their operations from the Workloads factories by name. The
+ * lookup is only paid in setup; every measured call is a plain LongSupplier call.
+ */
+final class Workload {
+
+    /**
+     * Constructor, never called
+     */
+    private Workload() {
+    }
+
+    /**
+     * Calls a Workloads factory
+     * @param factory the name of the factory
+     * @param args its arguments, whose classes must match its parameters (int for Integer, Path for
+     *             any Path)
+     * @return the operation it set up
+     */
+    static LongSupplier create(String factory, Object... args) {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = args[i] instanceof Integer ? int.class : args[i] instanceof Path ? Path.class : args[i].getClass();
+        }
+        try {
+            Method method = Class.forName("Workloads").getMethod(factory, types);
+            return (LongSupplier) method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Setting up " + factory + " failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No workload " + factory, e);
+        }
+    }
+
+    /**
+     * Calls a Workloads method that returns nothing, such as delete
+     * @param name the name of the method
+     * @param type the class of its one parameter
+     * @param arg its argument
+     */
+    static void call(String name, Class<?> type, Object arg) {
+        try {
+            Class.forName("Workloads").getMethod(name, type).invoke(null, arg);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Calling " + name + " failed", e);
+        }
+    }
+}
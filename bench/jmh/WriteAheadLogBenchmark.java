@@ -0,0 +1,110 @@
+package jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What logging for crash recovery adds to a move, with the write-ahead log flushed only by the
+ * operating system and flushed before every response, and how long a snapshot of 100k players
+ * takes. The log is written to a temporary directory, deleted afterwards
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=WARN")
+public class WriteAheadLogBenchmark {
+    public static final int PLAYERS = 100_000;
+
+    /**
+     * A game whose moves are logged with a sync policy
+     */
+    @State(Scope.Benchmark)
+    public static class LoggedMoves {
+        @Param({"never", "always"})
+        public String fsync;
+
+        private Path directory;
+        private LongSupplier move;
+
+        /**
+         * Opens the log in a new temporary directory and fills its game with players
+         * @throws IOException if the log cannot be opened
+         */
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("wal");
+            move = Workload.create("loggedMovePlayer", directory, fsync, PLAYERS);
+        }
+
+        /**
+         * Deletes the log
+         */
+        @TearDown
+        public void tearDown() {
+            Workload.call("delete", Path.class, directory);
+        }
+    }
+
+    /**
+     * A game whose snapshots are written to a log
+     */
+    @State(Scope.Benchmark)
+    public static class Checkpoints {
+        private Path directory;
+        private LongSupplier checkpoint;
+
+        /**
+         * Opens the log in a new temporary directory and fills its game with players
+         * @throws IOException if the log cannot be opened
+         */
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("wal");
+            checkpoint = Workload.create("checkpoint", directory, PLAYERS);
+        }
+
+        /**
+         * Deletes the log
+         */
+        @TearDown
+        public void tearDown() {
+            Workload.call("delete", Path.class, directory);
+        }
+    }
+
+    /**
+     * Moves one player and commits the move to the log
+     * @param moves the logged game
+     * @return the player moved
+     */
+    @Benchmark
+    public long movePlayer(LoggedMoves moves) {
+        return moves.move.getAsLong();
+    }
+
+    /**
+     * Writes a snapshot of the game and starts a new segment
+     * @param checkpoints the logged game
+     * @return 0
+     */
+    @Benchmark
+    public long checkpoint(Checkpoints checkpoints) {
+        return checkpoints.checkpoint.getAsLong();
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct ByteBuffers of one size for the receive and send paths. Datagrams are read
+ * into and sent from them without the copy a heap buffer costs, and once the pool has warmed up
+ * relaying a datagram allocates nothing. Each buffer is handed out as a PooledBuffer with a
+ * reference count, so a buffer that is still queued or waiting for an acknowledgment only goes
+ * back to the pool once its last holder is done with it. Safe to use from any thread.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxFree;
+    private final ArrayDeque<PooledBuffer> free; // never grows past maxFree, so pushing allocates nothing
+    private long allocated;
+
+    /**
+     * Constructor for a pool
+     * @param bufferSize the capacity of every buffer
+     * @param maxFree the most released buffers kept for reuse, the rest are left to the garbage collector
+     */
+    public BufferPool(int bufferSize, int maxFree) {
+        this.bufferSize = bufferSize;
+        this.maxFree = maxFree;
+        this.free = new ArrayDeque<>(maxFree);
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if none is free
+     * @return the buffer, cleared and held once by the caller
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer buffer;
+        synchronized (free) {
+            buffer = free.poll();
+            if (buffer == null) {
+                allocated++;
+            }
+        }
+        if (buffer == null) {
+            buffer = new PooledBuffer(this, bufferSize);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Puts a buffer nobody holds any more back into the pool
+     * @param buffer the buffer
+     */
+    void recycle(PooledBuffer buffer) {
+        synchronized (free) {
+            if (free.size() < maxFree) {
+                free.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Gets how many buffers the pool has allocated, which stops growing once it has warmed up
+     * @return the number of buffers allocated
+     */
+    public long getAllocated() {
+        synchronized (free) {
+            return allocated;
+        }
+    }
+
+    /**
+     * Gets how many buffers are waiting in the pool to be reused
+     * @return the number of free buffers
+     */
+    public int getFree() {
+        synchronized (free) {
+            return free.size();
+        }
+    }
+}
@@ -1,26 +1,101 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 public class Client implements RPCInterface {
-    private DatagramPacket sendPacket, receivePacket;
-    private DatagramSocket sendReceiveSocket;
-    private InetAddress serverAddr;
-    private int serverPort;
-    private static final String hostAcknowledgment = "[Host] Acknowledgment";
+    private DatagramChannel channel;
+    private Selector selector;
+    private InetSocketAddress serverAddr;
+    private ReliableLink link; // every frame to and from the host goes through it
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM); // same size as the host's
+    private final Frame resend = new Frame(Frame.RESEND);
+    private final int window; // most requests waiting for a response at once
+    private final Queue<PendingRequest> submitted = new ConcurrentLinkedQueue<>(); // waiting for room in the window
+    // only touched by the I/O thread
+    private final Map<Integer, PendingRequest> outstanding = new HashMap<>(); // request id -> request
+    private final Deque<Reassembler> freeReassemblers = new ArrayDeque<>();
+    private final Map<Integer, Reassembler> updateFragments = new LinkedHashMap<>(); // message id -> UPDATE arriving in fragments, oldest first
+    private final Map<Integer, Long> updateStarted = new HashMap<>(); // message id -> when its first fragment arrived
+    private volatile Consumer<Frame> updateListener = update -> { }; // told about every UPDATE pushed
+    private int nextRequestId = 1;
+    private int matchId; // the match to join on a server running many, 0 to be matched
+    private final CompactSnapshot snapshot = new CompactSnapshot(); // the dictionary of the match, learned from SNAPSHOT_DATA
+    private volatile IOException failure; // set once the host is unreachable
+    private volatile long requestTimeout = REQUEST_TIMEOUT;
+    public static final long RESEND_TIMEOUT = 200; // ms to wait for missing fragments before asking again
+    public static final long REQUEST_TIMEOUT = 5000; // ms to wait for a response before giving the request up
+    public static final long UPDATE_TIMEOUT = 5000; // ms after which an UPDATE still missing fragments is given up on
+    public static final int DEFAULT_WINDOW = 8;
 
     /**
      * Client constructor for the client application
      */
     public Client(String host, int port){
+        this(host, port, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Client constructor for the client application
+     * @param host the host name of the intermediate host
+     * @param port the port of the intermediate host
+     * @param window the most requests that may wait for a response at once, the rest queue
+     */
+    public Client(String host, int port, int window){
+        this.window = window;
         try {
-            sendReceiveSocket = new DatagramSocket(); // start up the socket
-            serverAddr = InetAddress.getByName(host);
-            serverPort = port;
-        } catch (SocketException | UnknownHostException e) {
+            channel = DatagramChannel.open(); // start up the channel
+            channel.bind(null);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            serverAddr = new InetSocketAddress(InetAddress.getByName(host), port);
+            link = new ReliableLink(channel, serverAddr);
+        } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
+
+        // one thread owns the channel and the link, so requests can be made from any thread
+        Thread io = new Thread(this::runIO, "client-io");
+        io.setDaemon(true);
+        io.start();
+    }
+
+    /**
+     * Sets the match the player joins when the server runs many matches at once
+     * @param matchId the match id, or 0 to join whichever match the server picks
+     */
+    public void setMatchId(int matchId) {
+        this.matchId = matchId;
+    }
+
+    /**
+     * Sets what to tell about every UPDATE the server pushes after a SUBSCRIBE
+     * @param updateListener called on the I/O thread with each update, which must not block
+     */
+    public void setUpdateListener(Consumer<Frame> updateListener) {
+        this.updateListener = updateListener;
+    }
+
+    /**
+     * Sets how long a sent request waits for its response before it fails with a TimeoutException
+     * and its place in the window goes to the next request. A request lost between the host and
+     * the server is never sent again, so without a limit each one would hold a place for good
+     * @param requestTimeout ms to wait, REQUEST_TIMEOUT by default
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
     }
 
     /**
@@ -34,21 +109,265 @@ public class Client implements RPCInterface {
     }
 
     /**
-     * Check if the Host acknowledged the Client's request
-     * @return if host acknowledged or not
+     * Queues a request for the I/O thread, failing it straight away if the host is already gone
+     * @param pending the request
      */
-    private boolean isAcknowledged() {
-        byte[] data = new byte[1024];
-        receivePacket = new DatagramPacket(data, data.length);
+    private void submit(PendingRequest pending) {
+        if (failure != null) {
+            pending.future.completeExceptionally(failure);
+            return;
+        }
+        submitted.add(pending);
+        selector.wakeup(); // the I/O thread may be waiting for a datagram
+    }
 
-        // try to get the acknowledgment message from the host
+    /**
+     * Runs the I/O thread: sends queued requests while the window has room, receives responses and
+     * completes their futures, and keeps the reliable link's timers going
+     */
+    private void runIO() {
         try {
-            sendReceiveSocket.receive(receivePacket);
-            String acknowledgement = new String(receivePacket.getData(), 0, receivePacket.getLength());
-            return acknowledgement.equals(hostAcknowledgment); // return boolean
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+            while (channel.isOpen()) {
+                expireRequests(System.currentTimeMillis());
+                sendSubmitted();
+
+                // resend anything the host has not acknowledged in time
+                if (link.poll() > 0) {
+                    fail(new IOException("Host stopped acknowledging requests"));
+                    return;
+                }
+                requestMissingFragments();
+
+                selector.select(nextTimeout());
+                selector.selectedKeys().clear();
+                receiveResponses();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (channel.isOpen()) {
+                e.printStackTrace();
+            }
+            fail(e instanceof IOException ? (IOException) e : new IOException("Client closed", e));
+        }
+    }
+
+    /**
+     * Sends queued requests, as long as fewer than window requests are waiting for a response
+     * @throws IOException if the channel fails
+     */
+    private void sendSubmitted() throws IOException {
+        PendingRequest pending;
+        while (outstanding.size() < window && (pending = submitted.poll()) != null) {
+            if (pending.future.isDone()) {
+                continue; // the caller gave up on it before it was sent
+            }
+            // tag the request so its response can be matched whatever order responses arrive in
+            pending.request.setRequestId(nextRequestId++);
+            pending.deadline = System.currentTimeMillis() + requestTimeout;
+            WireCodec.encode(pending.request, sendBuffer);
+            link.send(sendBuffer);
+            outstanding.put(pending.request.getRequestId(), pending);
+
+            if (Log.isDebugEnabled()) {
+                Log.debug("[Client -> Host] Sent request: {}", pending.request.toString());
+            }
+        }
+    }
+
+    /**
+     * Receives every datagram waiting from the Host and completes the requests they answer
+     * @throws IOException if the channel fails
+     */
+    private void receiveResponses() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) {
+                return; // nothing left to read
+            }
+            receiveBuffer.flip();
+            if (!WireCodec.isValid(receiveBuffer) || !link.receive(receiveBuffer)) {
+                continue; // a duplicate, or a bare ACCEPT acknowledging what was sent
+            }
+            int requestId = receiveBuffer.getInt(WireCodec.REQUEST_ID_OFFSET);
+            if (requestId == 0) {
+                receiveUpdate(); // pushed, not asked for
+                continue;
+            }
+            PendingRequest pending = outstanding.get(requestId);
+            if (pending == null) {
+                continue; // not for a request that is still waiting
+            }
+
+            // the response may arrive in fragments, each response being reassembled on its own
+            ByteBuffer response = receiveBuffer;
+            if (receiveBuffer.get(WireCodec.OPCODE_OFFSET) == Frame.FRAGMENT) {
+                if (pending.reassembler == null) {
+                    pending.reassembler = freeReassemblers.isEmpty() ? new Reassembler() : freeReassemblers.pop();
+                }
+                pending.lastFragment = System.currentTimeMillis();
+                if (!pending.reassembler.accept(receiveBuffer)) {
+                    continue;
+                }
+                response = pending.reassembler.message();
+            }
+
+            Frame reply = new Frame();
+            if (!WireCodec.decode(response, reply)) {
+                reply.reset(Frame.NOT_A_COMMAND); // could not be understood
+            }
+            outstanding.remove(requestId); // even when decoding failed and the reply has no request id
+            freeReassembler(pending);
+
+            // showcase what was received from host
+            if (Log.isDebugEnabled()) {
+                Log.debug("[Server -> Host -> Client] Got reply: {}", reply.toString());
+            }
+            pending.future.complete(reply);
+        }
+    }
+
+    /**
+     * Hands an UPDATE pushed by the server, or a fragment of one, to the update listener once whole.
+     * The host's link resends whatever is lost on the way, so fragments are not asked for again
+     */
+    private void receiveUpdate() {
+        Frame update = new Frame();
+        if (receiveBuffer.get(WireCodec.OPCODE_OFFSET) != Frame.FRAGMENT) {
+            if (WireCodec.decode(receiveBuffer, update) && update.getOpcode() == Frame.UPDATE) {
+                updateListener.accept(update);
+            }
+            return;
+        }
+
+        int messageId = receiveBuffer.getInt(receiveBuffer.position() + WireCodec.HEADER_SIZE);
+        Reassembler reassembler = updateFragments.get(messageId);
+        if (reassembler == null) {
+            long now = System.currentTimeMillis();
+            dropStaleUpdates(now);
+            reassembler = freeReassemblers.isEmpty() ? new Reassembler() : freeReassemblers.pop();
+            updateFragments.put(messageId, reassembler);
+            updateStarted.put(messageId, now);
+        }
+        if (!reassembler.accept(receiveBuffer)) {
+            return;
+        }
+        boolean valid = WireCodec.decode(reassembler.message(), update) && update.getOpcode() == Frame.UPDATE;
+        updateFragments.remove(messageId);
+        updateStarted.remove(messageId);
+        reassembler.reset();
+        freeReassemblers.push(reassembler);
+        if (valid) {
+            updateListener.accept(update);
+        }
+    }
+
+    /**
+     * Gives up on every UPDATE whose first fragment arrived more than UPDATE_TIMEOUT ago, such as one
+     * whose remaining fragments were lost with a server that went down, and frees its reassembler
+     * @param now the current time in ms
+     */
+    private void dropStaleUpdates(long now) {
+        Iterator<Map.Entry<Integer, Reassembler>> oldest = updateFragments.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<Integer, Reassembler> entry = oldest.next();
+            if (now - updateStarted.get(entry.getKey()) < UPDATE_TIMEOUT) {
+                return; // the rest started later still
+            }
+            Log.warn("[Client] Gave up on update {} after {} ms without all its fragments", entry.getKey(),
+                    UPDATE_TIMEOUT);
+            updateStarted.remove(entry.getKey());
+            entry.getValue().reset();
+            freeReassemblers.push(entry.getValue());
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Asks the Host again for every fragment that has not arrived, for each response whose fragments
+     * stopped coming for RESEND_TIMEOUT
+     * @throws IOException if the channel fails
+     */
+    private void requestMissingFragments() throws IOException {
+        long now = System.currentTimeMillis();
+        for (PendingRequest pending : outstanding.values()) {
+            Reassembler reassembler = pending.reassembler;
+            if (reassembler == null || now - pending.lastFragment < RESEND_TIMEOUT) {
+                continue;
+            }
+            for (int index = reassembler.nextMissing(0); index >= 0; index = reassembler.nextMissing(index + 1)) {
+                resend.reset(Frame.RESEND);
+                resend.setRequestId(pending.request.getRequestId()); // the same request the response belongs to
+                resend.setMessageId(reassembler.getMessageId());
+                resend.setIndex(index);
+                WireCodec.encode(resend, sendBuffer);
+                link.send(sendBuffer);
+                if (Log.isDebugEnabled()) {
+                    Log.debug("[Client -> Host] Asked again for fragment {} of response {}", index,
+                            reassembler.getMessageId());
+                }
+            }
+            pending.lastFragment = now;
+        }
+    }
+
+    /**
+     * Frees the window places of requests that will get no response: those past their deadline,
+     * which fail with a TimeoutException, and those whose caller already completed the future,
+     * such as with orTimeout
+     * @param now the current time in ms
+     */
+    private void expireRequests(long now) {
+        Iterator<PendingRequest> requests = outstanding.values().iterator();
+        while (requests.hasNext()) {
+            PendingRequest pending = requests.next();
+            if (pending.future.isDone() || now >= pending.deadline) {
+                requests.remove();
+                freeReassembler(pending);
+                pending.future.completeExceptionally(new TimeoutException("No response to request "
+                        + pending.request.getRequestId() + " within " + requestTimeout + " ms"));
+            }
+        }
+    }
+
+    /**
+     * Returns the reassembler of a request that is no longer waiting, if it had one, to the free list
+     * @param pending the request
+     */
+    private void freeReassembler(PendingRequest pending) {
+        if (pending.reassembler != null) {
+            pending.reassembler.reset();
+            freeReassemblers.push(pending.reassembler);
+            pending.reassembler = null;
+        }
+    }
+
+    /**
+     * Gets how long the I/O thread can wait for a datagram before a timer is due
+     * @return ms to wait, or 0 to wait until something arrives
+     */
+    private long nextTimeout() {
+        long timeout = link.nextTimeout();
+        long now = System.currentTimeMillis();
+        for (PendingRequest pending : outstanding.values()) {
+            long due = Math.max(1, pending.deadline - now);
+            if (pending.reassembler != null) {
+                due = Math.min(due, Math.max(1, pending.lastFragment + RESEND_TIMEOUT - now));
+            }
+            timeout = timeout == 0 ? due : Math.min(timeout, due);
+        }
+        return timeout;
+    }
+
+    /**
+     * Fails every request still waiting, and every request made from now on
+     * @param cause why the requests failed
+     */
+    private void fail(IOException cause) {
+        failure = cause;
+        outstanding.values().forEach(pending -> pending.future.completeExceptionally(cause));
+        outstanding.clear();
+        PendingRequest pending;
+        while ((pending = submitted.poll()) != null) {
+            pending.future.completeExceptionally(cause);
         }
     }
 
@@ -57,21 +376,50 @@ public class Client implements RPCInterface {
      * @param playerId the player's id
      * @return the player's command
      */
-    private String playerCommand(int playerId){
+    private Frame playerCommand(int playerId){
         // listen for user's commands in terminal
         Scanner s = new Scanner(System.in);
-        System.out.println("\nCommands: MOVE dx dy | PICKUP lootId | STATE | QUIT");
+        System.out.println("\nCommands: MOVE dx dy | PICKUP lootId | STATE [sinceVersion] | SNAPSHOT | SUBSCRIBE | STATS | QUIT");
         System.out.println("\nEnter your command: ");
         String command = s.nextLine().toUpperCase(); // convert to upper case to be processed properly
 
         // parse the command for specific instructions
         String[] processCommand = command.split(" ");
-        if (Objects.equals(processCommand[0], "MOVE")){
-            command = String.format("%s:%d:%s:%s",  processCommand[0], playerId, processCommand[1], processCommand[2]);
-        } else if (Objects.equals(processCommand[0], "PICKUP")) {
-            command = String.format("%s:%d:%s", processCommand[0], playerId, processCommand[1]);
-        } // 'state' and 'quit' do not require player id
-        return command;
+        Frame request = new Frame();
+        try {
+            switch (processCommand[0]) {
+                case "MOVE" -> {
+                    request.reset(Frame.MOVE);
+                    request.setPlayerId(playerId);
+                    request.setDx(Integer.parseInt(processCommand[1]));
+                    request.setDy(Integer.parseInt(processCommand[2]));
+                }
+                case "PICKUP" -> {
+                    request.reset(Frame.PICKUP);
+                    request.setPlayerId(playerId);
+                    request.setLootId(Integer.parseInt(processCommand[1]));
+                }
+                // 'quit' does not require player id
+                case "STATE" -> {
+                    request.reset(Frame.STATE);
+                    request.setPlayerId(playerId); // a server showing only what is near a player needs to know who
+                    if (processCommand.length > 1) { // only ask for what changed since that version
+                        request.setSince(Long.parseLong(processCommand[1]));
+                    }
+                }
+                case "QUIT" -> request.reset(Frame.QUIT);
+                case "STATS" -> request.reset(Frame.STATS); // the host and server fill in their metrics
+                case "SUBSCRIBE" -> request.reset(Frame.SUBSCRIBE); // changes are printed as they are pushed
+                case "SNAPSHOT" -> {
+                    request.reset(Frame.SNAPSHOT);
+                    snapshot.prepare(request); // names and loot types already known are not sent again
+                }
+                default -> request.reset(Frame.UNKNOWN);
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            request.reset(Frame.UNKNOWN); // missing or malformed arguments, let the server reject it
+        }
+        return request;
     }
 
 
@@ -80,14 +428,18 @@ public class Client implements RPCInterface {
      * @return the id of the newly enrolled player
      */
     public int enrollPlayer(){
-        String playerName = "JOIN:" + promptUsername(); // user inputs their desired username
+        Frame join = new Frame(Frame.JOIN);
+        join.setText(promptUsername()); // user inputs their desired username
+        join.setMatchId(matchId);
         // send the enrollment request to server
-        String received = rpc_send(playerName);
-        
-        // parse the message for the player id assigned by server
-        String[] m = received.split(":");
-        int playerId = Integer.parseInt(m[1]);
+        Frame received = rpc_send(join);
+
+        // the response carries the player id assigned by server
+        int playerId = received.getPlayerId();
         System.out.println("\nJoined game with playerId = " + playerId);
+        if (received.getMatchId() > 0) {
+            System.out.println("Playing in match " + received.getMatchId());
+        }
         return playerId; // store player id
     }
 
@@ -96,32 +448,45 @@ public class Client implements RPCInterface {
      */
     public void startClient(){
         int playerId = enrollPlayer(); // enroll player into the game
+        setUpdateListener(update -> System.out.println("Server pushed: " + update));
 
         while (true){ // infinite loop until user enters 'quit'
-            String command = playerCommand(playerId);
-            // close socket and end process if user wanted to quit
-            if (Objects.equals(command, "QUIT")) {
-                System.out.println(command + "\n" + "Client closed.");
-                sendReceiveSocket.close();
+            Frame command = playerCommand(playerId);
+            // close channel and end process if user wanted to quit
+            if (command.getOpcode() == Frame.QUIT) {
+                System.out.println("QUIT\n" + "Client closed.");
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
                 System.exit(0);
             } // quit request will have been sent to host and server, to which handle their own shutdown
 
             // send the request to the server
-            String request = rpc_send(command);
+            Frame response = rpc_send(command);
 
             // what the server responded with
-            System.out.println("Server says: " + request);
+            if (response.getOpcode() == Frame.SNAPSHOT_DATA) {
+                System.out.println("Server says: " + snapshot.decode(response.getData()) + " ("
+                        + response.getData().length + " bytes)");
+            } else {
+                System.out.println("Server says: " + response);
+            }
         }
 
     }
 
     /**
      * Main method
-     * @param args args
+     * @param args --match and the id of the match to join, if the server runs many
      */
     public static void main(String[] args) {
         System.out.println("Client started. Socket on random port.");
         Client c = new Client("localhost", 5000); // make a client instance and start it
+        if (args.length >= 2 && args[0].equals("--match")) {
+            c.setMatchId(Integer.parseInt(args[1]));
+        }
         c.startClient();
     }
 
@@ -129,42 +494,69 @@ public class Client implements RPCInterface {
      * Reusable method to handle Remote Procedure Call (RPC) communication
      * in a single step instead of manually writing send() and receive()
      *
-     * @param request the request from client or server
+     * @param request the request from client or server, in the colon-delimited text format
      * @return the response
      */
     @Override
     public String rpc_send(String request) {
-        try {
-            // prepare the send packet to send to the client
-            byte[] outData = request.getBytes();
-            sendPacket = new DatagramPacket(outData, outData.length,
-                    serverAddr, serverPort);
-
-            sendReceiveSocket.send(sendPacket);
-            String clientSent = new String(sendPacket.getData(),0,sendPacket.getLength());
-
-            System.out.println("[Client -> Host] Sent request: " + clientSent);
+        return WireCodec.toText(rpc_send(WireCodec.fromText(request)));
+    }
 
-            // check if acknowledgment is received
-            if (!isAcknowledged()) { // not received
-                System.out.println("Error: Unable to receive acknowledgment from Host. Exiting.");
-                System.exit(1);
-            } // received acknowledgment, prepare to receive request
-            System.out.println("[Client <- Host] Got reply: ACCEPT(" + clientSent + ")");
+    /**
+     * Typed version of rpc_send that sends and receives binary frames, waiting for the response
+     *
+     * @param request the request from client or server
+     * @return the response
+     */
+    @Override
+    public Frame rpc_send(Frame request) {
+        Frame reply = new Frame(Frame.UNKNOWN);
+        try {
+            return rpc_send_async(request).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                reply.setText("ERROR: " + e.getCause().getMessage()); // the host is still there, so carry on
+                return reply;
+            }
+            System.out.println("Error: " + e.getCause().getMessage() + ". Exiting.");
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reply.setText("ERROR: Client interrupted");
+        return reply;
+    }
 
-            // prepare the packet to receive the response from the server to prior request
-            byte[] inData = new byte[100];
-            receivePacket = new DatagramPacket(inData, inData.length);
-            sendReceiveSocket.receive(receivePacket);
+    /**
+     * Sends a request without waiting for its response. Up to the client's window of requests are
+     * sent at once, later ones wait for earlier responses. Safe to call from any thread
+     *
+     * @param request the request, copied so the caller can reuse it straight away
+     * @return the response, completed on the client's I/O thread
+     */
+    @Override
+    public CompletableFuture<Frame> rpc_send_async(Frame request) {
+        PendingRequest pending = new PendingRequest(request);
+        submit(pending);
+        return pending.future;
+    }
+}
 
-            // showcase what was received from host
-            String clientReceived = new String(receivePacket.getData(),0,receivePacket.getLength());
-            System.out.println("[Server -> Host -> Client] Got reply: " + clientReceived);
+/**
+ * A request made through the Client that is waiting to be sent or for its response
+ */
+class PendingRequest {
+    final Frame request = new Frame();
+    final CompletableFuture<Frame> future = new CompletableFuture<>();
+    Reassembler reassembler; // only while the response arrives in fragments
+    long lastFragment; // when the latest fragment arrived
+    long deadline; // when the request is given up without a response, in ms, once sent
 
-            return clientReceived;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "ERROR: Client I/O Exception";
-        }
+    /**
+     * Constructor for a request that has not been sent yet
+     * @param request the request, which is copied
+     */
+    PendingRequest(Frame request) {
+        this.request.copyFrom(request);
     }
 }
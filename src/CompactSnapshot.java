@@ -0,0 +1,294 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The compact binary form of a full snapshot, answered to SNAPSHOT instead of the text STATE_DATA.
+ * Player names and loot types are not repeated in every snapshot: they are interned into the
+ * game's StringDictionary and referred to by id, and a client is only sent the entries of the
+ * dictionary it does not have yet. Every number is a varint, and the fields of each entity are
+ * zigzag varints relative to the entity before it, so entities close together cost a byte a field.
+ * <pre>
+ * snapshot:   version(varint) dictionaryId(varint) first(varint) count(varint) entry*count
+ *             players(varint) player*players loot(varint) lootBox*loot
+ * entry:      length(varint) string(UTF-8), the dictionary entry with id first, first+1, ...
+ * player:     id x y health nameId, each a zigzag varint of the difference to the previous player
+ * lootBox:    id x y typeId quantity, each a zigzag varint of the difference to the previous loot box
+ * </pre>
+ * The first player and the first loot box are relative to 0. The server sends the dictionary from
+ * first = 0 whenever the client's dictionary id is not the game's, and from the client's count
+ * otherwise.
+ *
+ * An instance is one client's copy of a game's dictionary: it fills in what the client already
+ * has on each SNAPSHOT request, and turns each SNAPSHOT_DATA back into the text form of a full
+ * snapshot, learning the new entries on the way. Used by one thread at a time.
+ */
+public class CompactSnapshot {
+    private int dictionaryId; // 0 until the first snapshot arrives
+    private final List<String> dictionary = new ArrayList<>();
+
+    /**
+     * Encodes a full snapshot of a game, while its lock is held
+     * @param version the version of the game, read before any entity
+     * @param dictionary the dictionary the labels of both stores are interned into
+     * @param first the first dictionary entry the client does not have
+     * @param players the players
+     * @param lootBoxes the loot boxes
+     * @return the encoded snapshot
+     */
+    public static byte[] encode(long version, StringDictionary dictionary, int first, EntityStore players,
+                                EntityStore lootBoxes) {
+        SnapshotWriter out = new SnapshotWriter(16 + 8 * (players.size() + lootBoxes.size()));
+        int size = dictionary.size(); // labels of the entities below are all interned already
+        out.varlong(version);
+        out.varint(dictionary.getId());
+        out.varint(first);
+        out.varint(size - first);
+        for (int id = first; id < size; id++) {
+            out.string(dictionary.get(id));
+        }
+        writeEntities(out, players, true);
+        writeEntities(out, lootBoxes, false);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the entities of a store, each relative to the one before it
+     * @param out where to write
+     * @param store the store
+     * @param players if they are players, whose label comes before their value, or loot boxes
+     */
+    private static void writeEntities(SnapshotWriter out, EntityStore store, boolean players) {
+        out.varint(store.size());
+        int id = 0;
+        int x = 0;
+        int y = 0;
+        int value = 0;
+        int label = 0;
+        for (int row = 0; row < store.size(); row++) {
+            out.zigzag(store.getId(row) - id);
+            out.zigzag(store.getX(row) - x);
+            out.zigzag(store.getY(row) - y);
+            if (players) {
+                out.zigzag(store.getValue(row) - value);
+                out.zigzag(store.getLabelId(row) - label);
+            } else {
+                out.zigzag(store.getLabelId(row) - label);
+                out.zigzag(store.getValue(row) - value);
+            }
+            id = store.getId(row);
+            x = store.getX(row);
+            y = store.getY(row);
+            value = store.getValue(row);
+            label = store.getLabelId(row);
+        }
+    }
+
+    /**
+     * Fills in a SNAPSHOT request with the dictionary the client already has
+     * @param request the SNAPSHOT request
+     */
+    public void prepare(Frame request) {
+        request.setDictionaryId(dictionaryId);
+        request.setCount(dictionary.size());
+    }
+
+    /**
+     * Decodes a snapshot into the text form STATE_DATA uses, adding the dictionary entries it
+     * carries to the client's copy
+     * @param data the encoded snapshot
+     * @return VERSION=n;PLAYERS=[(id,x,y,health,name),...];LOOT=[(id,x,y,type,quantity),...]
+     * @throws IllegalArgumentException if the snapshot is cut short or refers to entries the client does not have
+     */
+    public String decode(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            long version = getVarlong(in);
+            int id = getVarint(in);
+            int first = getVarint(in);
+            int count = getVarint(in);
+            if (id != dictionaryId) { // another game, or the same one since the server restarted
+                dictionary.clear();
+                dictionaryId = id;
+            }
+            if (first > dictionary.size()) {
+                throw new IllegalArgumentException("Snapshot starts at dictionary entry " + first + " of "
+                        + dictionary.size());
+            }
+            for (int i = 0; i < count; i++) {
+                String entry = getString(in);
+                if (first + i == dictionary.size()) { // entries already learned from an earlier snapshot are skipped
+                    dictionary.add(entry);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("VERSION=").append(version).append(";PLAYERS=[");
+            readEntities(in, sb, true);
+            sb.append("];LOOT=[");
+            readEntities(in, sb, false);
+            return sb.append("]").toString();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Snapshot is cut short or refers to an unknown dictionary entry", e);
+        }
+    }
+
+    /**
+     * Reads the entities of one list and appends them in the text form
+     * @param in the snapshot, at the list
+     * @param sb where to append
+     * @param players if they are players, or loot boxes
+     */
+    private void readEntities(ByteBuffer in, StringBuilder sb, boolean players) {
+        int count = getVarint(in);
+        int id = 0;
+        int x = 0;
+        int y = 0;
+        int value = 0;
+        int label = 0;
+        for (int i = 0; i < count; i++) {
+            id += getZigzag(in);
+            x += getZigzag(in);
+            y += getZigzag(in);
+            sb.append("(").append(id).append(",").append(x).append(",").append(y).append(",");
+            if (players) {
+                value += getZigzag(in);
+                label += getZigzag(in);
+                sb.append(value).append(",").append(dictionary.get(label));
+            } else {
+                label += getZigzag(in);
+                value += getZigzag(in);
+                sb.append(dictionary.get(label)).append(",").append(value);
+            }
+            sb.append("),");
+        }
+    }
+
+    /**
+     * Reads an unsigned varint
+     * @param in the buffer to read from
+     * @return the number
+     */
+    private static int getVarint(ByteBuffer in) {
+        return (int) getVarlong(in);
+    }
+
+    /**
+     * Reads a zigzag varint
+     * @param in the buffer to read from
+     * @return the signed number
+     */
+    private static int getZigzag(ByteBuffer in) {
+        int n = getVarint(in);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * Reads an unsigned varint of up to 64 bits
+     * @param in the buffer to read from
+     * @return the number
+     */
+    private static long getVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than 64 bits");
+    }
+
+    /**
+     * Reads a varint length followed by that many bytes of UTF-8
+     * @param in the buffer to read from
+     * @return the string
+     */
+    private static String getString(ByteBuffer in) {
+        int length = getVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+}
+
+/**
+ * A byte array that grows as varints and strings are written to it
+ */
+class SnapshotWriter {
+    private byte[] bytes;
+    private int size;
+
+    /**
+     * Constructor for an empty writer
+     * @param capacity how many bytes to expect
+     */
+    SnapshotWriter(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    /**
+     * Writes an unsigned varint of up to 64 bits: 7 bits a byte, the high bit set on all but the last
+     * @param value the number
+     */
+    void varlong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    /**
+     * Writes an unsigned varint
+     * @param value the number, read as unsigned
+     */
+    void varint(int value) {
+        varlong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes a signed number as a zigzag varint, so small negative numbers are short too
+     * @param value the number
+     */
+    void zigzag(int value) {
+        varint((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes a varint length followed by the string in UTF-8
+     * @param string the string, null written as empty
+     */
+    void string(String string) {
+        byte[] utf8 = string == null ? new byte[0] : string.getBytes(StandardCharsets.UTF_8);
+        varint(utf8.length);
+        ensure(utf8.length);
+        System.arraycopy(utf8, 0, bytes, size, utf8.length);
+        size += utf8.length;
+    }
+
+    /**
+     * Gets what was written
+     * @return a copy of the bytes written
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    /**
+     * Makes room for more bytes, doubling the array as often as needed
+     * @param more how many bytes are about to be written
+     */
+    private void ensure(int more) {
+        if (size + more > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+    }
+}
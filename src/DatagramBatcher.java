@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Packs the frames sent between the Host and a Server into as few datagrams as possible. Frames
+ * are appended to a BUNDLE datagram, each after its length, until the next one would not fit in
+ * MAX_DATAGRAM; the bundle is then sent and a new one started. Whatever is left is sent by flush,
+ * which the sender calls once it has nothing more to send straight away, or once the first frame
+ * has waited LINGER. A bundle of a single frame is sent as that frame alone, so a quiet link
+ * sends exactly what it did without batching.
+ *
+ * A BUNDLE datagram is a header with opcode BUNDLE and session and request id 0, followed by
+ * length(2) frame, length(2) frame, and so on. Frames too big to share a datagram, such as
+ * fragments, are sent on their own after the bundle so far, which keeps every frame in order.
+ * Only a datagram with both opcode BUNDLE and session id 0 is unpacked as a bundle: the Host
+ * stamps every frame it forwards from a client with the client's session, never 0, so no
+ * forwarded frame can pass for one and smuggle frames of its own past that stamping.
+ *
+ * Sends with write when the channel is connected to the peer, and to the peer's resolved address
+ * otherwise. Safe to use from several threads at once.
+ */
+public class DatagramBatcher {
+    public static final long LINGER = 20; // us the first frame of a bundle waits for more unless another linger is given
+    public static final int MAX_BUNDLED = (WireCodec.MAX_DATAGRAM - WireCodec.HEADER_SIZE) / (WireCodec.HEADER_SIZE + 2); // most frames in one bundle
+
+    private final DatagramChannel channel;
+    private final SocketAddress peer; // null if the channel is connected to the peer
+    private final LatencyStats sendStats; // how long each write takes
+    private final long lingerNanos;
+    private final ByteBuffer bundle = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM);
+    private int frames; // frames in the bundle
+    private int firstFrame; // where the first frame starts, to send it alone
+    private long opened; // when the first frame was added, in ns
+
+    /**
+     * Constructor for a batcher with nothing to send yet
+     * @param channel the channel to send on, connected to the peer
+     * @param lingerMicros us the first frame of a bundle may wait for more frames
+     * @param sendStats the stats each write's duration is recorded in
+     */
+    public DatagramBatcher(DatagramChannel channel, long lingerMicros, LatencyStats sendStats) {
+        this(channel, null, lingerMicros, sendStats);
+    }
+
+    /**
+     * Constructor for a batcher with nothing to send yet, on a channel that is not connected
+     * @param channel the channel to send on
+     * @param peer the resolved address to send to, or null if the channel is connected to the peer
+     * @param lingerMicros us the first frame of a bundle may wait for more frames
+     * @param sendStats the stats each write's duration is recorded in
+     */
+    public DatagramBatcher(DatagramChannel channel, SocketAddress peer, long lingerMicros, LatencyStats sendStats) {
+        this.channel = channel;
+        this.peer = peer;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        this.sendStats = sendStats;
+    }
+
+    /**
+     * Adds an encoded frame to the bundle, sending the bundle first if the frame does not fit
+     * @param frame the encoded frame, from its position to its limit, which is copied and left untouched
+     * @throws IOException if the channel fails
+     */
+    public synchronized void add(ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        if (2 + length > WireCodec.MAX_DATAGRAM - WireCodec.HEADER_SIZE) {
+            flush(); // too big to share, so it goes alone, after what came before it
+            int start = frame.position();
+            write(frame);
+            frame.position(start);
+            return;
+        }
+        if (2 + length > bundle.remaining()) {
+            flush();
+        }
+        if (frames == 0) {
+            bundle.clear();
+            WireCodec.putHeader(bundle, Frame.BUNDLE, 0, 0);
+            opened = System.nanoTime();
+            notifyAll(); // the linger thread, if any, times the new bundle
+        }
+        bundle.putShort((short) length);
+        if (frames == 0) {
+            firstFrame = bundle.position();
+        }
+        bundle.put(bundle.position(), frame, frame.position(), length);
+        bundle.position(bundle.position() + length);
+        frames++;
+    }
+
+    /**
+     * Sends the bundle, if anything was added since the last one
+     * @throws IOException if the channel fails
+     */
+    public synchronized void flush() throws IOException {
+        if (frames == 0) {
+            return;
+        }
+        bundle.flip();
+        if (frames == 1) {
+            bundle.position(firstFrame); // no need for a bundle around a single frame
+        }
+        write(bundle);
+        frames = 0;
+    }
+
+    /**
+     * Gets how long until the bundle has to be sent
+     * @param now the current time, from System.nanoTime
+     * @return ns until the first frame has waited LINGER, 0 if it already has, or -1 if there is no bundle
+     */
+    public synchronized long lingerLeft(long now) {
+        return frames == 0 ? -1 : Math.max(0, opened + lingerNanos - now);
+    }
+
+    /**
+     * Sends every bundle once its first frame has waited LINGER, forever. For senders without an
+     * event loop of their own, on a thread of its own
+     */
+    public void runLinger() {
+        try {
+            while (true) {
+                long left;
+                synchronized (this) {
+                    while (frames == 0) {
+                        wait(); // until a bundle is started
+                    }
+                    left = lingerLeft(System.nanoTime());
+                }
+                if (left > 0) {
+                    LockSupport.parkNanos(left);
+                }
+                synchronized (this) {
+                    if (lingerLeft(System.nanoTime()) == 0) {
+                        flush();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes one datagram to the peer
+     * @param datagram the datagram, from its position to its limit
+     * @throws IOException if the channel fails
+     */
+    private void write(ByteBuffer datagram) throws IOException {
+        long start = System.nanoTime();
+        if (peer != null) {
+            channel.send(datagram, peer);
+        } else {
+            int position = datagram.position();
+            try {
+                channel.write(datagram);
+            } catch (PortUnreachableException e) {
+                // reported for an earlier datagram the peer was not up for, so this one was not sent yet
+                try {
+                    channel.write(datagram.position(position));
+                } catch (PortUnreachableException again) {
+                    datagram.position(datagram.limit()); // the peer is still not up, so it is lost like any other
+                }
+            }
+        }
+        sendStats.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Checks if a received datagram is a BUNDLE built by a batcher: opcode BUNDLE and session id 0
+     * @param datagram the received datagram, from its position to its limit
+     * @return true if it holds frames to unbundle, false if it is a single frame
+     */
+    public static boolean isBundle(ByteBuffer datagram) {
+        int start = datagram.position();
+        return datagram.remaining() >= WireCodec.HEADER_SIZE
+                && datagram.get(start + WireCodec.OPCODE_OFFSET) == Frame.BUNDLE
+                && datagram.getInt(start + WireCodec.SESSION_OFFSET) == 0;
+    }
+
+    /**
+     * Hands every frame of a received datagram to a consumer: each frame of a BUNDLE, or the
+     * datagram itself if it is a single frame, which includes a BUNDLE frame with a session id
+     * other than 0. Allocates nothing, as the consumer is handed the datagram itself with its
+     * position and limit narrowed to the frame
+     * @param datagram the received datagram, from its position to its limit, which are put back afterwards
+     * @param frame called with the datagram narrowed to each frame, which it may read but not keep
+     * @return false if the bundle is cut short, after handing over the frames before the cut
+     */
+    public static boolean unbundle(ByteBuffer datagram, Consumer<ByteBuffer> frame) {
+        int start = datagram.position();
+        int end = datagram.limit();
+        if (!isBundle(datagram)) {
+            frame.accept(datagram);
+            datagram.limit(end).position(start);
+            return true;
+        }
+        int position = start + WireCodec.HEADER_SIZE;
+        try {
+            while (position + 2 <= end) {
+                datagram.limit(end); // narrowed to the previous frame
+                int length = Short.toUnsignedInt(datagram.getShort(position));
+                position += 2;
+                if (position + length > end) {
+                    return false;
+                }
+                datagram.limit(position + length).position(position);
+                frame.accept(datagram);
+                position += length;
+            }
+            return position == end;
+        } finally {
+            datagram.limit(end).position(start);
+        }
+    }
+}
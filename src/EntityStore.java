@@ -0,0 +1,250 @@
+import java.util.Arrays;
+
+/**
+ * Stores players or loot boxes as parallel columns (struct-of-arrays) instead of one object each.
+ * Every entity has an id, a position, one int value (health for players, quantity for loot boxes),
+ * one label (name for players, type for loot boxes) and the game state version it last changed in.
+ * Labels are kept as ids into a StringDictionary, which stores of the same game share.
+ *
+ * Ids are found in O(1) through an IntIndexMap, and removal moves the last row into the hole
+ * (swap-remove), so rows are dense but their order is not stable.
+ */
+public class EntityStore {
+
+    private int[] ids;
+    private int[] xs;
+    private int[] ys;
+    private int[] values;
+    private int[] labels; // ids into the dictionary
+    private long[] versions;
+    private int size;
+    private final IntIndexMap index;
+    private final StringDictionary dictionary;
+
+    /**
+     * Constructs an empty store with a dictionary of its own.
+     *
+     * @param capacity How many entities the store should hold before it has to grow.
+     */
+    public EntityStore(int capacity) {
+        this(capacity, new StringDictionary());
+    }
+
+    /**
+     * Constructs an empty store whose labels are interned into the given dictionary.
+     *
+     * @param capacity   How many entities the store should hold before it has to grow.
+     * @param dictionary The dictionary the labels are interned into.
+     */
+    public EntityStore(int capacity, StringDictionary dictionary) {
+        this.dictionary = dictionary;
+        capacity = Math.max(capacity, 4);
+        ids = new int[capacity];
+        xs = new int[capacity];
+        ys = new int[capacity];
+        values = new int[capacity];
+        labels = new int[capacity];
+        versions = new long[capacity];
+        index = new IntIndexMap(capacity);
+    }
+
+    /**
+     * Adds a new entity as the last row.
+     *
+     * @param id    The unique ID of the entity.
+     * @param x     The x-coordinate of its position.
+     * @param y     The y-coordinate of its position.
+     * @param value Its health or quantity.
+     * @param label Its name or type, interned into the dictionary.
+     * @return The row the entity was stored in.
+     */
+    public int add(int id, int x, int y, int value, String label) {
+        if (size == ids.length) {
+            grow();
+        }
+        int row = size++;
+        ids[row] = id;
+        xs[row] = x;
+        ys[row] = y;
+        values[row] = value;
+        labels[row] = dictionary.intern(label);
+        versions[row] = 0;
+        index.put(id, row);
+        return row;
+    }
+
+    /**
+     * Finds the row an entity is stored in.
+     *
+     * @param id The unique ID of the entity.
+     * @return The row, or -1 if there is no such entity.
+     */
+    public int indexOf(int id) {
+        return index.get(id);
+    }
+
+    /**
+     * Removes an entity by moving the last row into its place.
+     *
+     * @param id The unique ID of the entity.
+     * @return true if the entity was removed, false if there was no such entity.
+     */
+    public boolean remove(int id) {
+        int row = index.remove(id);
+        if (row < 0) {
+            return false;
+        }
+        int last = --size;
+        if (row != last) {
+            ids[row] = ids[last];
+            xs[row] = xs[last];
+            ys[row] = ys[last];
+            values[row] = values[last];
+            labels[row] = labels[last];
+            versions[row] = versions[last];
+            index.put(ids[row], row);
+        }
+        return true;
+    }
+
+    /**
+     * Gets how many entities are stored.
+     *
+     * @return The number of rows in use.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the unique ID of the entity in a row.
+     *
+     * @param row The row.
+     * @return The ID.
+     */
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    /**
+     * Gets the x-coordinate of the entity in a row.
+     *
+     * @param row The row.
+     * @return The x-coordinate.
+     */
+    public int getX(int row) {
+        return xs[row];
+    }
+
+    /**
+     * Gets the y-coordinate of the entity in a row.
+     *
+     * @param row The row.
+     * @return The y-coordinate.
+     */
+    public int getY(int row) {
+        return ys[row];
+    }
+
+    /**
+     * Gets the health or quantity of the entity in a row.
+     *
+     * @param row The row.
+     * @return The value.
+     */
+    public int getValue(int row) {
+        return values[row];
+    }
+
+    /**
+     * Gets the name or type of the entity in a row.
+     *
+     * @param row The row.
+     * @return The label.
+     */
+    public String getLabel(int row) {
+        return dictionary.get(labels[row]);
+    }
+
+    /**
+     * Gets the id of the name or type of the entity in a row.
+     *
+     * @param row The row.
+     * @return The label's id in the dictionary.
+     */
+    public int getLabelId(int row) {
+        return labels[row];
+    }
+
+    /**
+     * Gets the dictionary the labels are interned into.
+     *
+     * @return The dictionary.
+     */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Gets the game state version the entity in a row last changed in.
+     *
+     * @param row The row.
+     * @return The version.
+     */
+    public long getVersion(int row) {
+        return versions[row];
+    }
+
+    /**
+     * Sets the x-coordinate of the entity in a row.
+     *
+     * @param row The row.
+     * @param x   The new x-coordinate.
+     */
+    public void setX(int row, int x) {
+        xs[row] = x;
+    }
+
+    /**
+     * Sets the y-coordinate of the entity in a row.
+     *
+     * @param row The row.
+     * @param y   The new y-coordinate.
+     */
+    public void setY(int row, int y) {
+        ys[row] = y;
+    }
+
+    /**
+     * Sets the health or quantity of the entity in a row.
+     *
+     * @param row   The row.
+     * @param value The new value.
+     */
+    public void setValue(int row, int value) {
+        values[row] = value;
+    }
+
+    /**
+     * Sets the game state version the entity in a row last changed in.
+     *
+     * @param row     The row.
+     * @param version The version.
+     */
+    public void setVersion(int row, long version) {
+        versions[row] = version;
+    }
+
+    /**
+     * Doubles the capacity of every column.
+     */
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        labels = Arrays.copyOf(labels, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+    }
+}
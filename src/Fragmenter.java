@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits encoded frames that are too big for one datagram into FRAGMENT frames, and remembers
+ * the most recent ones so a single missing fragment can be sent again when a receiver asks.
+ * Safe to use from several threads.
+ */
+public class Fragmenter {
+    public static final int MAX_REMEMBERED = 64; // most fragmented messages kept for resends
+    public static final int MAX_FRAGMENTS = 0xFFFF; // a fragment's index and count are unsigned shorts
+    public static final int MAX_MESSAGE = MAX_FRAGMENTS * WireCodec.FRAGMENT_PAYLOAD; // biggest message fragments can carry
+
+    private final Map<Integer, ByteBuffer> remembered = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+            return size() > MAX_REMEMBERED; // forget the least recently used message
+        }
+    };
+    private int nextMessageId = 1;
+
+    /**
+     * Checks whether an encoded frame has to be fragmented
+     * @param message the encoded frame, from its position to its limit
+     * @return if the frame does not fit in one datagram
+     */
+    public static boolean needsFragmenting(ByteBuffer message) {
+        return message.remaining() > WireCodec.MAX_DATAGRAM;
+    }
+
+    /**
+     * Gets how many fragments a message of the given size is split into
+     * @param length the size of the encoded frame
+     * @return the number of fragments
+     */
+    public static int fragmentCount(int length) {
+        return (length + WireCodec.FRAGMENT_PAYLOAD - 1) / WireCodec.FRAGMENT_PAYLOAD;
+    }
+
+    /**
+     * Remembers an encoded frame so it can be sent as fragments
+     * @param message the encoded frame, from its position to its limit, which is left untouched
+     * @return the message id the fragments carry
+     */
+    public synchronized int split(ByteBuffer message) {
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+        copy.put(message.duplicate()).flip();
+
+        int messageId = nextMessageId++;
+        remembered.put(messageId, copy);
+        return messageId;
+    }
+
+    /**
+     * Writes one fragment of a remembered message. The fragment carries the same session id and
+     * request id as the message so it is routed like any other response
+     * @param messageId the id returned by split
+     * @param index the index of the fragment
+     * @param out the buffer to write into, cleared first and flipped ready to send
+     * @return false if the message has been forgotten or the index is out of range
+     */
+    public synchronized boolean encodeFragment(int messageId, int index, ByteBuffer out) {
+        ByteBuffer message = remembered.get(messageId);
+        int count = message == null ? 0 : fragmentCount(message.limit());
+        if (index < 0 || index >= count) {
+            return false;
+        }
+
+        int offset = index * WireCodec.FRAGMENT_PAYLOAD;
+        int length = Math.min(WireCodec.FRAGMENT_PAYLOAD, message.limit() - offset);
+
+        out.clear();
+        WireCodec.putHeader(out, Frame.FRAGMENT, message.getInt(WireCodec.SESSION_OFFSET),
+                message.getInt(WireCodec.REQUEST_ID_OFFSET));
+        out.putInt(messageId).putShort((short) index).putShort((short) count).putInt(message.limit());
+        out.put(message.slice(offset, length));
+        out.flip();
+        return true;
+    }
+}
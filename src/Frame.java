@@ -0,0 +1,463 @@
+/**
+ * A single request or response carried in one binary datagram. Frames are mutable so the same
+ * instance can be decoded into again and again instead of allocating one per packet.
+ */
+public class Frame {
+    // requests sent by the client
+    public static final byte UNKNOWN = 0;
+    public static final byte JOIN = 1;
+    public static final byte MOVE = 2;
+    public static final byte PICKUP = 3;
+    public static final byte STATE = 4;
+    public static final byte QUIT = 5;
+    public static final byte RESEND = 6;
+    public static final byte STATS = 7;
+
+    // sent by a shard to hand a player over to the shard now owning their position, through the host
+    public static final byte HANDOFF = 8;
+
+    // asks the server to push state updates to the client from now on
+    public static final byte SUBSCRIBE = 9;
+
+    // asks for a full snapshot in the compact binary form, see CompactSnapshot
+    public static final byte SNAPSHOT = 10;
+
+    // sent by the host to the servers when it ends a session, so they stop pushing updates to it
+    public static final byte ENDED = 11;
+
+    // several frames in one datagram between the host and a server, see DatagramBatcher
+    public static final byte BUNDLE = 15;
+
+    // responses sent by the host and the server
+    public static final byte ACCEPT = 16;
+    public static final byte JOINED = 17;
+    public static final byte MOVE_OK = 18;
+    public static final byte PICKUP_OK = 19;
+    public static final byte PICKUP_FAIL = 20;
+    public static final byte STATE_DATA = 21;
+    public static final byte NOT_A_COMMAND = 22;
+    public static final byte BATCH_ACK = 23;
+    public static final byte FRAGMENT = 24;
+    public static final byte STATS_DATA = 25;
+    public static final byte UPDATE = 26; // pushed to subscribers, with request id 0 as nobody asked for it
+    public static final byte SNAPSHOT_DATA = 27;
+
+    private byte opcode;
+    private int sessionId;
+    private int requestId;
+    private int playerId;
+    private int lootId;
+    private int dx;
+    private int dy;
+    private int x;
+    private int y;
+    private int health;
+    private int matchId;
+    private int count;
+    private long since;
+    private int messageId;
+    private int index;
+    private int dictionaryId;
+    private String text;
+    private byte[] data;
+
+    /**
+     * Constructor for an empty frame to decode into
+     */
+    public Frame() {
+        this(UNKNOWN);
+    }
+
+    /**
+     * Constructor for a frame with the given opcode
+     * @param opcode the opcode of the frame
+     */
+    public Frame(byte opcode) {
+        this.opcode = opcode;
+    }
+
+    /**
+     * Clears every field and sets a new opcode so the frame can be reused
+     * @param opcode the new opcode of the frame
+     */
+    public void reset(byte opcode) {
+        this.opcode = opcode;
+        sessionId = 0;
+        requestId = 0;
+        playerId = 0;
+        lootId = 0;
+        dx = 0;
+        dy = 0;
+        x = 0;
+        y = 0;
+        health = 0;
+        matchId = 0;
+        count = 0;
+        since = 0;
+        messageId = 0;
+        index = 0;
+        dictionaryId = 0;
+        text = null;
+        data = null;
+    }
+
+    /**
+     * Copies every field of another frame into this one, for keeping a request after its
+     * original frame is reused
+     * @param other the frame to copy
+     */
+    public void copyFrom(Frame other) {
+        opcode = other.opcode;
+        sessionId = other.sessionId;
+        requestId = other.requestId;
+        playerId = other.playerId;
+        lootId = other.lootId;
+        dx = other.dx;
+        dy = other.dy;
+        x = other.x;
+        y = other.y;
+        health = other.health;
+        matchId = other.matchId;
+        count = other.count;
+        since = other.since;
+        messageId = other.messageId;
+        index = other.index;
+        dictionaryId = other.dictionaryId;
+        text = other.text;
+        data = other.data;
+    }
+
+    /**
+     * Gets the name of an opcode for printing
+     * @param opcode the opcode
+     * @return the name of the opcode
+     */
+    public static String opcodeName(byte opcode) {
+        return switch (opcode) {
+            case JOIN -> "JOIN";
+            case MOVE -> "MOVE";
+            case PICKUP -> "PICKUP";
+            case STATE -> "STATE";
+            case QUIT -> "QUIT";
+            case RESEND -> "RESEND";
+            case STATS -> "STATS";
+            case HANDOFF -> "HANDOFF";
+            case SUBSCRIBE -> "SUBSCRIBE";
+            case SNAPSHOT -> "SNAPSHOT";
+            case ENDED -> "ENDED";
+            case BUNDLE -> "BUNDLE";
+            case ACCEPT -> "ACCEPT";
+            case JOINED -> "JOINED";
+            case MOVE_OK -> "MOVE_OK";
+            case PICKUP_OK -> "PICKUP_OK";
+            case PICKUP_FAIL -> "PICKUP_FAIL";
+            case STATE_DATA -> "STATE_DATA";
+            case NOT_A_COMMAND -> "NOT_A_COMMAND";
+            case BATCH_ACK -> "BATCH_ACK";
+            case FRAGMENT -> "FRAGMENT";
+            case STATS_DATA -> "STATS_DATA";
+            case UPDATE -> "UPDATE";
+            case SNAPSHOT_DATA -> "SNAPSHOT_DATA";
+            default -> "UNKNOWN";
+        };
+    }
+
+    /**
+     * Checks if an opcode is one a client may send: a request, or UNKNOWN for a command the client
+     * could not parse, which the server answers with NOT_A_COMMAND. HANDOFF, ENDED, BUNDLE and every
+     * response only ever travel between the host and the servers
+     * @param opcode the opcode
+     * @return true if a client may send it
+     */
+    public static boolean isClientRequest(byte opcode) {
+        return switch (opcode) {
+            case UNKNOWN, JOIN, MOVE, PICKUP, STATE, QUIT, RESEND, STATS, SUBSCRIBE, SNAPSHOT -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Gets the opcode saying what kind of request or response this is
+     * @return the opcode
+     */
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Gets the id of the host session the frame belongs to
+     * @return the session id
+     */
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Sets the id of the host session the frame belongs to
+     * @param sessionId the session id
+     */
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Gets the id the client gave the request, which its response carries too
+     * @return the request id
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Sets the id the client gave the request, which its response carries too
+     * @param requestId the request id
+     */
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * Gets the player the request is for, or the player that joined
+     * @return the player id
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    /**
+     * Sets the player the request is for, or the player that joined
+     * @param playerId the player id
+     */
+    public void setPlayerId(int playerId) {
+        this.playerId = playerId;
+    }
+
+    /**
+     * Gets the loot box to pick up
+     * @return the loot box id
+     */
+    public int getLootId() {
+        return lootId;
+    }
+
+    /**
+     * Sets the loot box to pick up
+     * @param lootId the loot box id
+     */
+    public void setLootId(int lootId) {
+        this.lootId = lootId;
+    }
+
+    /**
+     * Gets the change in the x-direction of a move
+     * @return the change in x
+     */
+    public int getDx() {
+        return dx;
+    }
+
+    /**
+     * Sets the change in the x-direction of a move
+     * @param dx the change in x
+     */
+    public void setDx(int dx) {
+        this.dx = dx;
+    }
+
+    /**
+     * Gets the change in the y-direction of a move
+     * @return the change in y
+     */
+    public int getDy() {
+        return dy;
+    }
+
+    /**
+     * Sets the change in the y-direction of a move
+     * @param dy the change in y
+     */
+    public void setDy(int dy) {
+        this.dy = dy;
+    }
+
+    /**
+     * Gets the x-coordinate of a player handed over
+     * @return the x-coordinate
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Sets the x-coordinate of a player handed over
+     * @param x the x-coordinate
+     */
+    public void setX(int x) {
+        this.x = x;
+    }
+
+    /**
+     * Gets the y-coordinate of a player handed over
+     * @return the y-coordinate
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Sets the y-coordinate of a player handed over
+     * @param y the y-coordinate
+     */
+    public void setY(int y) {
+        this.y = y;
+    }
+
+    /**
+     * Gets the health of a player handed over
+     * @return the health
+     */
+    public int getHealth() {
+        return health;
+    }
+
+    /**
+     * Sets the health of a player handed over
+     * @param health the health
+     */
+    public void setHealth(int health) {
+        this.health = health;
+    }
+
+    /**
+     * Gets the match a JOIN asks for, or the match a JOINED player is in
+     * @return the match id, or 0 to be matched with others
+     */
+    public int getMatchId() {
+        return matchId;
+    }
+
+    /**
+     * Sets the match a JOIN asks for, or the match a JOINED player is in
+     * @param matchId the match id, or 0 to be matched with others
+     */
+    public void setMatchId(int matchId) {
+        this.matchId = matchId;
+    }
+
+    /**
+     * Gets the number of requests a batch acknowledgment covers
+     * @return the number of requests
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets the number of requests a batch acknowledgment covers
+     * @param count the number of requests
+     */
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Gets the game state version a client already has, so STATE only returns what changed since
+     * @return the version, or 0 for a full snapshot
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * Sets the game state version a client already has, so STATE only returns what changed since
+     * @param since the version, or 0 for a full snapshot
+     */
+    public void setSince(long since) {
+        this.since = since;
+    }
+
+    /**
+     * Gets the fragmented message a resend is asking for
+     * @return the message id
+     */
+    public int getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Sets the fragmented message a resend is asking for
+     * @param messageId the message id
+     */
+    public void setMessageId(int messageId) {
+        this.messageId = messageId;
+    }
+
+    /**
+     * Gets the index of the fragment a resend is asking for
+     * @return the fragment index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Sets the index of the fragment a resend is asking for
+     * @param index the fragment index
+     */
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Gets the player name of a join or the serialized game state
+     * @return the text of the frame
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Sets the player name of a join or the serialized game state
+     * @param text the text of the frame
+     */
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Gets the id of the dictionary a client has, on a SNAPSHOT
+     * @return the dictionary id, 0 if the client has none
+     */
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * Sets the id of the dictionary a client has, on a SNAPSHOT
+     * @param dictionaryId the dictionary id, 0 if the client has none
+     */
+    public void setDictionaryId(int dictionaryId) {
+        this.dictionaryId = dictionaryId;
+    }
+
+    /**
+     * Gets the binary body of the frame, the encoded snapshot of a SNAPSHOT_DATA
+     * @return the bytes of the body
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Sets the binary body of the frame, the encoded snapshot of a SNAPSHOT_DATA
+     * @param data the bytes of the body
+     */
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return WireCodec.toText(this);
+    }
+}
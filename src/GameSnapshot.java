@@ -0,0 +1,232 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A copy of every player and loot box at one moment, as taken by GameState.takeSnapshot, in a
+ * compact binary file format. The snapshot remembers the write-ahead log segment that started at
+ * the same moment. Loading the snapshot and replaying that segment and every later one rebuilds
+ * the game state. The snapshot of a shard also says which part of the map the shard owns (see
+ * ShardMap).
+ */
+public class GameSnapshot {
+    public static final int MAGIC = 0x42525332; // "BRS2", the start of every snapshot file
+
+    private final long version;
+    private final int nextPlayerId;
+    private final int nextLootBoxId;
+    private final long segment;
+    private final int shards;
+    private final int regionWidth;
+    private final int shard;
+    private final EntityStore players;
+    private final EntityStore lootBoxes;
+
+    /**
+     * Constructor for a snapshot
+     * @param version the version of the game state
+     * @param nextPlayerId the id the next player to join gets
+     * @param nextLootBoxId the id the next loot box placed gets
+     * @param segment the write-ahead log segment that starts where the snapshot was taken
+     * @param shardMap how the map is split between shards
+     * @param shard the index of the shard the game state belongs to
+     * @param players a copy of the players
+     * @param lootBoxes a copy of the loot boxes
+     */
+    public GameSnapshot(long version, int nextPlayerId, int nextLootBoxId, long segment, ShardMap shardMap, int shard,
+                        EntityStore players, EntityStore lootBoxes) {
+        this.version = version;
+        this.nextPlayerId = nextPlayerId;
+        this.nextLootBoxId = nextLootBoxId;
+        this.segment = segment;
+        this.shards = shardMap.getShards();
+        this.regionWidth = shardMap.getRegionWidth();
+        this.shard = shard;
+        this.players = players;
+        this.lootBoxes = lootBoxes;
+    }
+
+    /**
+     * Gets the version of the game state the snapshot was taken at
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the id the next player to join gets
+     * @return the id
+     */
+    public int getNextPlayerId() {
+        return nextPlayerId;
+    }
+
+    /**
+     * Gets the id the next loot box placed gets
+     * @return the id
+     */
+    public int getNextLootBoxId() {
+        return nextLootBoxId;
+    }
+
+    /**
+     * Gets the write-ahead log segment that starts where the snapshot was taken, the first one to
+     * replay after loading it
+     * @return the segment number
+     */
+    public long getSegment() {
+        return segment;
+    }
+
+    /**
+     * Gets how many shards the map was split between
+     * @return the number of shards, 1 if a single server owned the whole map
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Gets how the map was split between shards
+     * @return the shard map
+     */
+    public ShardMap getShardMap() {
+        return new ShardMap(shards, regionWidth);
+    }
+
+    /**
+     * Gets the index of the shard the game state belonged to
+     * @return the index of the shard
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Gets the players at the time of the snapshot
+     * @return the players, which must not be changed
+     */
+    public EntityStore getPlayers() {
+        return players;
+    }
+
+    /**
+     * Gets the loot boxes at the time of the snapshot
+     * @return the loot boxes, which must not be changed
+     */
+    public EntityStore getLootBoxes() {
+        return lootBoxes;
+    }
+
+    /**
+     * Writes the snapshot to a file. It is written to a temporary file and forced to disk first,
+     * then renamed into place, so the file is never seen half written
+     * @param file the file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            writeTo(out);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a snapshot from a file written by write
+     * @param file the file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static GameSnapshot read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return readFrom(in);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a stream, such as the start of a match recording
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(version);
+        out.writeInt(nextPlayerId);
+        out.writeInt(nextLootBoxId);
+        out.writeLong(segment);
+        out.writeInt(shards);
+        out.writeInt(regionWidth);
+        out.writeInt(shard);
+        writeStore(out, players);
+        writeStore(out, lootBoxes);
+    }
+
+    /**
+     * Reads a snapshot written by writeTo from a stream
+     * @param in where to read from
+     * @return the snapshot
+     * @throws IOException if reading fails or the stream does not hold a snapshot
+     */
+    public static GameSnapshot readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a game snapshot");
+        }
+        long version = in.readLong();
+        int nextPlayerId = in.readInt();
+        int nextLootBoxId = in.readInt();
+        long segment = in.readLong();
+        int shards = in.readInt();
+        int regionWidth = in.readInt();
+        int shard = in.readInt();
+        EntityStore players = readStore(in);
+        EntityStore lootBoxes = readStore(in);
+        return new GameSnapshot(version, nextPlayerId, nextLootBoxId, segment, new ShardMap(shards, regionWidth), shard,
+                players, lootBoxes);
+    }
+
+    /**
+     * Writes every row of a store: the number of rows, then the id, position, value and label of each
+     * @param out where to write
+     * @param store the store
+     * @throws IOException if writing fails
+     */
+    private static void writeStore(DataOutputStream out, EntityStore store) throws IOException {
+        out.writeInt(store.size());
+        for (int row = 0; row < store.size(); row++) {
+            out.writeInt(store.getId(row));
+            out.writeInt(store.getX(row));
+            out.writeInt(store.getY(row));
+            out.writeInt(store.getValue(row));
+            out.writeUTF(store.getLabel(row));
+        }
+    }
+
+    /**
+     * Reads the rows written by writeStore into a new store
+     * @param in where to read from
+     * @return the store
+     * @throws IOException if reading fails
+     */
+    private static EntityStore readStore(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        EntityStore store = new EntityStore(size);
+        for (int i = 0; i < size; i++) {
+            store.add(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readUTF());
+        }
+        return store;
+    }
+}
@@ -10,22 +10,61 @@
  * @version 1.0, January 29th, 2025
  */
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntFunction;
 
 /**
  * The GameState class maintains the global state of a simple Battle Royale
  * environment, including lists of players and loot boxes. It provides methods
  * for adding players, moving them, processing loot pickups, and serializing
  * the entire game state for transmission.
+ *
+ * Players and loot boxes are kept in column stores (see EntityStore), so ID
+ * lookups and removals are O(1). Player and LootBox objects are only views
+ * onto a row, handed out for existing callers.
+ *
+ * Every method is safe to call from several threads. Adding or removing an
+ * entity holds the write side of a StampedLock; everything else holds the
+ * read side, so moves and pickups run in parallel. A player's own fields are
+ * guarded by one of STRIPES locks picked by their ID, the change journal by its
+ * own monitor, and loot boxes are claimed atomically so only one player can
+ * ever pick up each box. Looking entities up by ID takes no lock at all: it is
+ * an optimistic read that is only retried under the read lock if an entity
+ * was added or removed meanwhile.
+ *
+ * With a WriteAheadLog attached, every join, move and successful pickup is
+ * appended to the log while still holding the locks that ordered it, so
+ * replaying the log after a snapshot applies the same changes in a
+ * compatible order.
+ *
+ * When the map is split between several servers (see ShardMap), each holds
+ * the GameState of one shard: the players standing in its regions and the
+ * loot boxes placed there. Player IDs are dealt out in steps of the number
+ * of shards, so no two shards ever give out the same ID. A player leaving the
+ * shard's regions is released, to be adopted by the shard owning their new
+ * position.
+ *
+ * Player names and loot types are interned into one StringDictionary per
+ * game, which a compact snapshot refers to by id instead of repeating them.
  */
 public class GameState {
 
-    /** A list of all players currently in the game. */
-    private List<Player> players;
+    /** The names of the players and the types of the loot boxes, starting with every LootType. */
+    private final StringDictionary labels = LootType.newDictionary();
 
-    /** A list of all loot boxes currently placed in the game world. */
-    private List<LootBox> lootBoxes;
+    /** All players currently in the game. */
+    private final EntityStore players = new EntityStore(64, labels);
+
+    /** All loot boxes currently placed in the game world. */
+    private final EntityStore lootBoxes = new EntityStore(64, labels);
 
     /** Used to assign unique IDs to new players. */
     private int nextPlayerId = 100;
@@ -33,56 +72,355 @@ public class GameState {
     /** Used to assign unique IDs to new loot boxes. */
     private int nextLootBoxId = 200;
 
+    /** How the map is split between shards. */
+    private final ShardMap shardMap;
+
+    /** The index of the shard this game state belongs to. */
+    private final int shard;
+
+    /** The number of locks the players' fields are spread over. */
+    public static final int STRIPES = 64;
+
+    /** Held for writing while entities are added or removed, and for reading otherwise. */
+    private final StampedLock lock = new StampedLock();
+
+    /** Guards a player's position and health, picked by the player's ID. */
+    private final Object[] playerLocks = new Object[STRIPES];
+
+    /** The IDs of loot boxes already claimed by a player but not removed yet. */
+    private final Set<Integer> claimedLoot = ConcurrentHashMap.newKeySet();
+
+    /** The most changes remembered for delta snapshots before the oldest are forgotten. */
+    public static final int MAX_CHANGES = 4096;
+
+    /** Increases by one every time a player or loot box is added, changed or removed. */
+    private volatile long version;
+
+    /** Every recent change in the order it happened, oldest first. Also guards version. */
+    private final Deque<Change> changes = new ArrayDeque<>();
+
+    /** The oldest version a delta snapshot can still be built from. */
+    private long oldestDeltaVersion;
+
+    /** The width and height of the spatial grid cells. */
+    public static final int CELL_SIZE = 16;
+
+    /** How far a player can be from a loot box and still pick it up. */
+    public static final int PICKUP_RADIUS = 1;
+
+    /** Players bucketed by position for proximity lookups. */
+    private final SpatialGrid playerGrid = new SpatialGrid(CELL_SIZE, players);
+
+    /** Loot boxes bucketed by position for proximity lookups. */
+    private final SpatialGrid lootGrid = new SpatialGrid(CELL_SIZE, lootBoxes);
+
+    /** Where every change is logged for crash recovery, or null if it is not. */
+    private volatile WriteAheadLog log;
+
     /**
-     * Constructs a new GameState with empty lists of players and loot boxes,
+     * Constructs a new GameState with no players,
      * plus a couple of default loot boxes for demonstration.
      */
     public GameState() {
-        players = new ArrayList<>();
-        lootBoxes = new ArrayList<>();
+        this(ShardMap.SINGLE, 0);
+    }
+
+    /**
+     * Constructs a new GameState for one shard of the map, with no players,
+     * plus whichever default loot boxes stand in the shard's regions.
+     *
+     * @param shardMap How the map is split between shards.
+     * @param shard    The index of this shard.
+     */
+    public GameState(ShardMap shardMap, int shard) {
+        for (int i = 0; i < STRIPES; i++) {
+            playerLocks[i] = new Object();
+        }
+        this.shardMap = shardMap;
+        this.shard = shard;
+        nextPlayerId += shard;
 
         // Add some default loot boxes as an example.
-        lootBoxes.add(new LootBox(nextLootBoxId++, 5, 5, "HealthPack", 1));
-        lootBoxes.add(new LootBox(nextLootBoxId++, 10, 2, "Ammo", 5));
+        addLootBox(5, 5, LootType.HEALTH_PACK, 1);
+        addLootBox(10, 2, LootType.AMMO, 5);
+    }
+
+    /**
+     * Constructs a GameState holding the players and loot boxes of a snapshot,
+     * at the snapshot's version. Deltas can only be built from that version on.
+     *
+     * @param snapshot The snapshot to restore.
+     */
+    public GameState(GameSnapshot snapshot) {
+        for (int i = 0; i < STRIPES; i++) {
+            playerLocks[i] = new Object();
+        }
+
+        EntityStore savedPlayers = snapshot.getPlayers();
+        for (int row = 0; row < savedPlayers.size(); row++) {
+            int id = savedPlayers.getId(row);
+            players.add(id, savedPlayers.getX(row), savedPlayers.getY(row), savedPlayers.getValue(row),
+                    savedPlayers.getLabel(row));
+            playerGrid.insert(id);
+        }
+        EntityStore savedLoot = snapshot.getLootBoxes();
+        for (int row = 0; row < savedLoot.size(); row++) {
+            int id = savedLoot.getId(row);
+            lootBoxes.add(id, savedLoot.getX(row), savedLoot.getY(row), savedLoot.getValue(row),
+                    savedLoot.getLabel(row));
+            lootGrid.insert(id);
+        }
+        nextPlayerId = snapshot.getNextPlayerId();
+        nextLootBoxId = snapshot.getNextLootBoxId();
+        shardMap = snapshot.getShardMap();
+        shard = snapshot.getShard();
+        version = snapshot.getVersion();
+        oldestDeltaVersion = version;
+    }
+
+    /**
+     * Starts appending every change to a write-ahead log. Attach it before any
+     * other thread uses the game state.
+     *
+     * @param log The log, or null to stop logging.
+     */
+    public void setWriteAheadLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Copies every player and loot box while no change is in progress, and
+     * starts a new segment of the write-ahead log at the same moment, so the
+     * snapshot plus that segment and every later one hold the whole game.
+     * Loot boxes already claimed by a pickup but not removed yet are left out,
+     * as the pickup is in the log before the new segment.
+     *
+     * @return The snapshot.
+     */
+    public GameSnapshot takeSnapshot() {
+        long stamp = lock.writeLock();
+        try {
+            EntityStore playerCopy = new EntityStore(players.size(), labels);
+            for (int row = 0; row < players.size(); row++) {
+                playerCopy.add(players.getId(row), players.getX(row), players.getY(row), players.getValue(row),
+                        players.getLabel(row));
+            }
+            EntityStore lootCopy = new EntityStore(lootBoxes.size(), labels);
+            for (int row = 0; row < lootBoxes.size(); row++) {
+                if (!claimedLoot.contains(lootBoxes.getId(row))) {
+                    lootCopy.add(lootBoxes.getId(row), lootBoxes.getX(row), lootBoxes.getY(row),
+                            lootBoxes.getValue(row), lootBoxes.getLabel(row));
+                }
+            }
+            WriteAheadLog current = log;
+            long segment = current != null ? current.roll() : 0;
+            return new GameSnapshot(version, nextPlayerId, nextLootBoxId, segment, shardMap, shard, playerCopy,
+                    lootCopy);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
      * Creates and adds a new player to the game state.
      *
      * @param name The name of the new player.
-     * @return A Player object representing the newly added player.
+     * @return A Player view of the newly added player.
      */
     public Player addNewPlayer(String name) {
-        Player p = new Player(nextPlayerId++, 0, 0, 100, name);
-        players.add(p);
-        return p;
+        long stamp = lock.writeLock();
+        try {
+            int id = nextPlayerId;
+            nextPlayerId += shardMap.getShards();
+            int row = players.add(id, 0, 0, 100, name);
+            playerGrid.insert(id);
+            recordChange(players, row, false);
+            WriteAheadLog current = log;
+            if (current != null) {
+                current.logJoin(id, name); // in ID order, as the write lock is held
+            }
+            return new Player(players, lock, id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a player handed over by another shard, with the position, health
+     * and name they had there. Nothing happens if the player is already here.
+     *
+     * @param id     The unique ID of the player.
+     * @param x      The x-coordinate of their position.
+     * @param y      The y-coordinate of their position.
+     * @param health Their health.
+     * @param name   Their name.
+     * @return true if the player was added.
+     */
+    public boolean adoptPlayer(int id, int x, int y, int health, String name) {
+        long stamp = lock.writeLock();
+        try {
+            if (players.indexOf(id) >= 0) {
+                return false;
+            }
+            int row = players.add(id, x, y, health, name);
+            playerGrid.insert(id);
+            recordChange(players, row, false);
+            WriteAheadLog current = log;
+            if (current != null) {
+                current.logAdopt(id, x, y, health, name);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a player if they are no longer standing in one of this shard's
+     * regions, so the shard owning their position can adopt them.
+     *
+     * @param playerId The unique ID of the player.
+     * @return A view of the player as they were when released, which no longer
+     *         changes, or null if the player is not here or is still inside.
+     */
+    public Player releaseIfOutside(int playerId) {
+        long stamp = lock.writeLock();
+        try {
+            int row = players.indexOf(playerId);
+            if (row < 0 || owns(players.getX(row), players.getY(row))) {
+                return null;
+            }
+            EntityStore released = new EntityStore(1, labels);
+            released.add(playerId, players.getX(row), players.getY(row), players.getValue(row), players.getLabel(row));
+            removePlayer(playerId);
+            return new Player(released, new StampedLock(), playerId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a player that was handed over to another shard, as when
+     * replaying a log or a recording.
+     *
+     * @param playerId The unique ID of the player.
+     */
+    public void releasePlayer(int playerId) {
+        long stamp = lock.writeLock();
+        try {
+            if (players.indexOf(playerId) >= 0) {
+                removePlayer(playerId);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a player while holding the write lock.
+     *
+     * @param playerId The unique ID of the player, who must be here.
+     */
+    private void removePlayer(int playerId) {
+        playerGrid.remove(playerId);
+        players.remove(playerId);
+        recordChange(players, playerId, true);
+        WriteAheadLog current = log;
+        if (current != null) {
+            current.logRelease(playerId);
+        }
+    }
+
+    /**
+     * Checks whether a position is in one of this shard's regions.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return true if this shard owns the position.
+     */
+    public boolean owns(int x, int y) {
+        return shardMap.shardOf(x, y) == shard;
+    }
+
+    /**
+     * Adds a loot box to the game world. On a shard, only loot boxes in its
+     * regions are added, but every one uses up an ID, so a loot box has the same
+     * ID whichever shard holds it.
+     *
+     * @param x        The x-coordinate of its position.
+     * @param y        The y-coordinate of its position.
+     * @param type     The type of item (e.g., LootType.HEALTH_PACK).
+     * @param quantity The amount or quantity of the item stored.
+     */
+    private void addLootBox(int x, int y, LootType type, int quantity) {
+        long stamp = lock.writeLock();
+        try {
+            int id = nextLootBoxId++;
+            if (!owns(x, y)) {
+                return;
+            }
+            int row = lootBoxes.add(id, x, y, quantity, type.getName());
+            lootGrid.insert(id);
+            recordChange(lootBoxes, row, false);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
      * Processes a request for a player to pick up a loot box, if they are
-     * standing at the same position as the box.
+     * standing within PICKUP_RADIUS of the box. If several players try to pick
+     * up the same box at once, exactly one of them gets it.
      *
      * @param playerId The unique ID of the player attempting the pickup.
      * @param lootId   The unique ID of the loot box being picked up.
      * @return true if the pickup was successful, false otherwise.
      */
     public boolean processPickup(int playerId, int lootId) {
-        Player player = getPlayerById(playerId);
-        LootBox box = getLootBoxById(lootId);
-        if (player == null || box == null) {
-            return false;
-        }
-        // Check distance (e.g., if same position, allow pickup)
-        if (player.getX() == box.getX() && player.getY() == box.getY()) {
-            // Example: picking up a HealthPack increases HP
-            if (box.getType().equalsIgnoreCase("HealthPack")) {
-                player.setHealth(player.getHealth() + 20);
+        long stamp = lock.readLock();
+        try {
+            int player = players.indexOf(playerId);
+            int box = lootBoxes.indexOf(lootId);
+            if (player < 0 || box < 0) {
+                return false;
             }
-            // Remove the loot from the game
-            lootBoxes.remove(box);
-            return true;
+            synchronized (playerLock(playerId)) {
+                // Check distance (e.g., if close enough, allow pickup)
+                long dx = players.getX(player) - lootBoxes.getX(box);
+                long dy = players.getY(player) - lootBoxes.getY(box);
+                if (dx * dx + dy * dy > (long) PICKUP_RADIUS * PICKUP_RADIUS) {
+                    return false;
+                }
+                // only the first player to claim the box gets it
+                if (!claimedLoot.add(lootId)) {
+                    return false;
+                }
+                WriteAheadLog current = log;
+                if (current != null) {
+                    current.logPickup(playerId, lootId); // after the player's earlier moves, before later ones
+                }
+                // Example: picking up a HealthPack increases HP
+                LootType type = LootType.of(lootBoxes.getLabelId(box));
+                if (type != null && type.getHealing() > 0) {
+                    players.setValue(player, players.getValue(player) + type.getHealing());
+                    recordChange(players, player, false);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        // Remove the loot from the game
+        stamp = lock.writeLock();
+        try {
+            lootGrid.remove(lootId);
+            lootBoxes.remove(lootId);
+            recordChange(lootBoxes, lootId, true);
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        return false;
+        claimedLoot.remove(lootId); // the ID is never reused, so it cannot be claimed again
+        return true;
     }
 
     /**
@@ -93,13 +431,214 @@ public class GameState {
      * @param dy       The change in the y-direction.
      */
     public void movePlayer(int playerId, int dx, int dy) {
-        Player p = getPlayerById(playerId);
-        if (p != null) {
-            p.setX(p.getX() + dx);
-            p.setY(p.getY() + dy);
+        long stamp = lock.readLock();
+        try {
+            move(playerId, dx, dy);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Moves several players at once, taking the lock a single time for the whole batch.
+     *
+     * @param count     How many moves to apply.
+     * @param playerIds The unique ID of the player making each move.
+     * @param dxs       The change in the x-direction of each move.
+     * @param dys       The change in the y-direction of each move.
+     */
+    public void movePlayers(int count, int[] playerIds, int[] dxs, int[] dys) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < count; i++) {
+                move(playerIds[i], dxs[i], dys[i]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Moves a player while holding the lock.
+     *
+     * @param playerId The unique ID of the player to move.
+     * @param dx       The change in the x-direction.
+     * @param dy       The change in the y-direction.
+     */
+    private void move(int playerId, int dx, int dy) {
+        int row = players.indexOf(playerId);
+        if (row < 0) {
+            return;
+        }
+        synchronized (playerLock(playerId)) {
+            int oldX = players.getX(row);
+            int oldY = players.getY(row);
+            players.setX(row, oldX + dx);
+            players.setY(row, oldY + dy);
+            playerGrid.move(playerId, oldX, oldY);
+            recordChange(players, row, false);
+            WriteAheadLog current = log;
+            if (current != null) {
+                current.logMove(playerId, dx, dy);
+            }
+        }
+    }
+
+    /**
+     * Finds every other player within a radius of a player.
+     *
+     * @param playerId The unique ID of the player to search around.
+     * @param radius   The largest distance to include.
+     * @return The nearby players, empty if the player does not exist.
+     */
+    public List<Player> getPlayersNear(int playerId, int radius) {
+        List<Player> near = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            int row = players.indexOf(playerId);
+            if (row >= 0) {
+                playerGrid.query(players.getX(row), players.getY(row), radius, id -> {
+                    if (id != playerId) {
+                        near.add(new Player(players, lock, id));
+                    }
+                });
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return near;
+    }
+
+    /**
+     * Finds every loot box within a radius of a player.
+     *
+     * @param playerId The unique ID of the player to search around.
+     * @param radius   The largest distance to include.
+     * @return The nearby loot boxes, empty if the player does not exist.
+     */
+    public List<LootBox> getLootNear(int playerId, int radius) {
+        List<LootBox> near = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            int row = players.indexOf(playerId);
+            if (row >= 0) {
+                lootGrid.query(players.getX(row), players.getY(row), radius,
+                        id -> near.add(new LootBox(lootBoxes, lock, id)));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return near;
+    }
+
+    /**
+     * Finds the loot box closest to a player.
+     *
+     * @param playerId  The unique ID of the player to search around.
+     * @param maxRadius The largest distance to search.
+     * @return The closest loot box, or null if none is within maxRadius.
+     */
+    public LootBox getNearestLootBox(int playerId, int maxRadius) {
+        long stamp = lock.readLock();
+        try {
+            int row = players.indexOf(playerId);
+            if (row < 0) {
+                return null;
+            }
+            int id = lootGrid.nearest(players.getX(row), players.getY(row), maxRadius);
+            return id < 0 ? null : new LootBox(lootBoxes, lock, id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the current version of the game state, which increases with every change.
+     *
+     * @return The current version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Moves the game state to a new version and remembers which entity changed,
+     * forgetting the oldest change once more than MAX_CHANGES are remembered.
+     * Called while holding the lock, and a player's own lock if a player changed.
+     *
+     * @param store   The store the entity is in.
+     * @param row     The entity's row, or its ID if it was removed.
+     * @param removed true if the entity was removed from the game.
+     */
+    private void recordChange(EntityStore store, int row, boolean removed) {
+        synchronized (changes) {
+            long next = version + 1;
+            int id = row;
+            if (!removed) {
+                id = store.getId(row);
+                store.setVersion(row, next);
+            }
+            changes.addLast(new Change(store, id, next, removed));
+            if (changes.size() > MAX_CHANGES) {
+                // deltas from before the forgotten change can no longer be built
+                oldestDeltaVersion = changes.removeFirst().getVersion();
+            }
+            version = next;
+        }
+    }
+
+    /**
+     * Computes a hash of every player and loot box, which two game states
+     * share if they hold the same entities with the same values, whatever
+     * order their rows are in. Used to check that a replayed match ends in
+     * the state it was recorded in.
+     *
+     * @return The hash.
+     */
+    public long stateHash() {
+        long stamp = lock.readLock();
+        try {
+            return hash(players, 1) + hash(lootBoxes, 2);
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
+    /**
+     * Sums a hash of each row of a store, so the order of the rows does not
+     * matter, while holding the lock.
+     *
+     * @param store The store.
+     * @param seed  Tells the stores apart.
+     * @return The hash.
+     */
+    private static long hash(EntityStore store, long seed) {
+        long sum = 0;
+        for (int row = 0; row < store.size(); row++) {
+            long h = seed;
+            h = h * 31 + store.getId(row);
+            h = h * 31 + store.getX(row);
+            h = h * 31 + store.getY(row);
+            h = h * 31 + store.getValue(row);
+            h = h * 31 + Objects.hashCode(store.getLabel(row));
+            h ^= h >>> 33; // spread the bits, so sums of similar rows do not cancel out
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            sum += h;
+        }
+        return sum;
+    }
+
+    /**
+     * Gets the lock guarding a player's position and health.
+     *
+     * @param playerId The unique ID of the player.
+     * @return The lock to synchronize on.
+     */
+    private Object playerLock(int playerId) {
+        return playerLocks[Math.floorMod(playerId, STRIPES)];
+    }
+
     /**
      * Converts the current game state (players and loot boxes) into a
      * simplified JSON-like string for transmission or debugging.
@@ -112,28 +651,30 @@ public class GameState {
      * @return A string representing the serialized game state.
      */
     public String serialize() {
+        long stamp = lock.readLock();
+        try {
+            return serializeAll();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Converts every player and loot box into a string, while holding the lock.
+     *
+     * @return A string representing the serialized game state.
+     */
+    private String serializeAll() {
         StringBuilder sb = new StringBuilder();
         sb.append("PLAYERS=[");
-        for (Player p : players) {
-            sb.append("(")
-                    .append(p.getId()).append(",")
-                    .append(p.getX()).append(",")
-                    .append(p.getY()).append(",")
-                    .append(p.getHealth()).append(",")
-                    .append(p.getName())
-                    .append("),");
+        for (int row = 0; row < players.size(); row++) {
+            appendPlayer(sb, row);
         }
         sb.append("];");
 
         sb.append("LOOT=[");
-        for (LootBox lb : lootBoxes) {
-            sb.append("(")
-                    .append(lb.getId()).append(",")
-                    .append(lb.getX()).append(",")
-                    .append(lb.getY()).append(",")
-                    .append(lb.getType()).append(",")
-                    .append(lb.getQuantity())
-                    .append("),");
+        for (int row = 0; row < lootBoxes.size(); row++) {
+            appendLootBox(sb, row);
         }
         sb.append("]");
 
@@ -141,220 +682,460 @@ public class GameState {
     }
 
     /**
-     * Finds a player by their unique ID.
+     * Converts only what changed since the given version into a string, so a client
+     * that already has that version only receives the difference. Falls back to a
+     * full snapshot when the version is 0 or too old to build a delta from.
      *
-     * @param id The ID of the player to find.
-     * @return The matching Player object, or null if none is found.
+     * Example formats:
+     * <pre>
+     * full:  VERSION=12;PLAYERS=[(id,x,y,health,name),...];LOOT=[(id,x,y,type,quantity),...]
+     * delta: VERSION=12;SINCE=9;PLAYERS=[...];LOOT=[...];REMOVED_LOOT=[id,...]
+     * </pre>
+     * A shard adds REMOVED_PLAYERS=[id,...] to a delta once players have left it.
+     *
+     * @param since The version the client already has.
+     * @return A string representing the serialized snapshot or delta.
      */
-    private Player getPlayerById(int id) {
-        for (Player p : players) {
-            if (p.getId() == id) {
-                return p;
+    public String serialize(long since) {
+        long stamp = lock.readLock();
+        try {
+            long current;
+            synchronized (changes) {
+                current = version;
+                if (since > 0 && since >= oldestDeltaVersion && since <= current) {
+                    return serializeDelta(since);
+                }
             }
+            // the values read afterwards are at least as new as this version
+            return "VERSION=" + current + ";" + serializeAll();
+        } finally {
+            lock.unlockRead(stamp);
         }
-        return null;
+    }
+
+    /**
+     * Encodes every player and loot box into a compact binary snapshot (see
+     * CompactSnapshot), which refers to names and loot types by their id in
+     * this game's dictionary and only carries the entries the client does not
+     * have yet.
+     *
+     * @param dictionaryId The id of the dictionary the client has, 0 if none.
+     * @param known        How many of its entries the client has.
+     * @return The encoded snapshot.
+     */
+    public byte[] serializeCompact(int dictionaryId, int known) {
+        long stamp = lock.readLock();
+        try {
+            long current = version; // the values read afterwards are at least as new as this version
+            int first = dictionaryId == labels.getId() && known >= 0 && known <= labels.size() ? known : 0;
+            return CompactSnapshot.encode(current, labels, first, players, lootBoxes);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Converts only the players and loot boxes within a radius of a player into
+     * a string, found through the spatial grids, so the work and the size of the
+     * result depend on how crowded the player's surroundings are rather than on
+     * the size of the world. The player is included. A player that does not
+     * exist, such as one on another shard, sees nothing.
+     *
+     * Example format:
+     * <pre>
+     * VERSION=12;VIEW=x,y,radius;PLAYERS=[(id,x,y,health,name),...];LOOT=[(id,x,y,type,quantity),...]
+     * </pre>
+     *
+     * @param playerId The unique ID of the player whose surroundings are serialized.
+     * @param radius   The largest distance from the player to include.
+     * @return A string representing the serialized view.
+     */
+    public String serializeView(int playerId, int radius) {
+        long stamp = lock.readLock();
+        try {
+            long current = version; // the values read afterwards are at least as new as this version
+            StringBuilder sb = new StringBuilder();
+            sb.append("VERSION=").append(current).append(";VIEW=");
+            int row = players.indexOf(playerId);
+            if (row < 0) {
+                return sb.append(";PLAYERS=[];LOOT=[]").toString();
+            }
+            int x = players.getX(row);
+            int y = players.getY(row);
+            sb.append(x).append(",").append(y).append(",").append(radius);
+
+            sb.append(";PLAYERS=[");
+            playerGrid.query(x, y, radius, id -> appendPlayer(sb, players.indexOf(id)));
+            sb.append("];");
+
+            sb.append("LOOT=[");
+            lootGrid.query(x, y, radius, id -> appendLootBox(sb, lootBoxes.indexOf(id)));
+            sb.append("]");
+
+            return sb.toString();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Converts only what changed since the given version into a string, while
+     * holding the lock and the change journal.
+     *
+     * @param since The version the client already has, which must still be in the journal.
+     * @return A string representing the serialized delta.
+     */
+    private String serializeDelta(long since) {
+        StringBuilder playersPart = new StringBuilder();
+        StringBuilder lootPart = new StringBuilder();
+        StringBuilder removedPart = new StringBuilder();
+        StringBuilder removedPlayersPart = new StringBuilder();
+
+        // walk back through the changes made after the client's version
+        Iterator<Change> it = changes.descendingIterator();
+        while (it.hasNext()) {
+            Change change = it.next();
+            if (change.getVersion() <= since) {
+                break;
+            }
+            if (change.isRemoved()) {
+                (change.getStore() == players ? removedPlayersPart : removedPart).append(change.getId()).append(",");
+                continue;
+            }
+            EntityStore store = change.getStore();
+            int row = store.indexOf(change.getId());
+            if (row >= 0 && store.getVersion(row) == change.getVersion()) {
+                // only the latest change to each entity is sent, with its current values
+                if (store == players) {
+                    appendPlayer(playersPart, row);
+                } else {
+                    appendLootBox(lootPart, row);
+                }
+            }
+        }
+
+        String delta = "VERSION=" + version + ";SINCE=" + since
+                + ";PLAYERS=[" + playersPart + "];LOOT=[" + lootPart + "];REMOVED_LOOT=[" + removedPart + "]";
+        // only a shard ever removes players, so a single server never sends this part
+        return removedPlayersPart.length() == 0 ? delta : delta + ";REMOVED_PLAYERS=[" + removedPlayersPart + "]";
+    }
+
+    /**
+     * Appends a single player in the serialized format.
+     *
+     * @param sb  The builder to append to.
+     * @param row The player's row.
+     */
+    private void appendPlayer(StringBuilder sb, int row) {
+        sb.append("(")
+                .append(players.getId(row)).append(",")
+                .append(players.getX(row)).append(",")
+                .append(players.getY(row)).append(",")
+                .append(players.getValue(row)).append(",")
+                .append(players.getLabel(row))
+                .append("),");
+    }
+
+    /**
+     * Appends a single loot box in the serialized format.
+     *
+     * @param sb  The builder to append to.
+     * @param row The loot box's row.
+     */
+    private void appendLootBox(StringBuilder sb, int row) {
+        sb.append("(")
+                .append(lootBoxes.getId(row)).append(",")
+                .append(lootBoxes.getX(row)).append(",")
+                .append(lootBoxes.getY(row)).append(",")
+                .append(lootBoxes.getLabel(row)).append(",")
+                .append(lootBoxes.getValue(row))
+                .append("),");
+    }
+
+    /**
+     * Finds a player by their unique ID.
+     *
+     * @param id The ID of the player to find.
+     * @return A view of the matching player, or null if none is found.
+     */
+    public Player getPlayerById(int id) {
+        return contains(players, id) ? new Player(players, lock, id) : null;
     }
 
     /**
      * Finds a loot box by its unique ID.
      *
      * @param id The ID of the loot box to find.
-     * @return The matching LootBox object, or null if none is found.
+     * @return A view of the matching loot box, or null if none is found.
+     */
+    public LootBox getLootBoxById(int id) {
+        return contains(lootBoxes, id) ? new LootBox(lootBoxes, lock, id) : null;
+    }
+
+    /**
+     * Checks whether an entity exists without taking the lock, unless an entity
+     * was added or removed while checking.
+     *
+     * @param store The store to look in.
+     * @param id    The unique ID of the entity.
+     * @return true if the entity is in the store.
      */
-    private LootBox getLootBoxById(int id) {
-        for (LootBox lb : lootBoxes) {
-            if (lb.getId() == id) {
-                return lb;
+    private boolean contains(EntityStore store, int id) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean found = store.indexOf(id) >= 0;
+            if (lock.validate(stamp)) {
+                return found;
             }
         }
-        return null;
+        stamp = lock.readLock();
+        try {
+            return store.indexOf(id) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 }
 
 /**
- * The Player class represents a single player's state within the game,
- * including their unique ID, position (x,y), health, and a display name.
+ * The Entity class is the common base of the Player and LootBox views. It
+ * refers to an entity by ID and reads its values from the store it lives in,
+ * so it stays valid when the entity's row moves.
  */
-class Player {
+abstract class Entity {
 
-    /** The unique ID of this player. */
-    private int id;
+    /** The store the entity lives in. */
+    protected final EntityStore store;
 
-    /** The x-coordinate of the player's position in the game world. */
-    private int x;
+    /** The game state's lock, held for writing while entities are added or removed. */
+    private final StampedLock lock;
 
-    /** The y-coordinate of the player's position in the game world. */
-    private int y;
+    /** The unique ID of the entity. */
+    private final int id;
 
-    /** The current health of this player. */
-    private int health;
+    /**
+     * Constructs a view of an entity.
+     *
+     * @param store The store the entity lives in.
+     * @param lock  The game state's lock.
+     * @param id    The unique ID of the entity.
+     */
+    protected Entity(EntityStore store, StampedLock lock, int id) {
+        this.store = store;
+        this.lock = lock;
+        this.id = id;
+    }
 
-    /** The display name of this player. */
-    private String name;
+    /**
+     * Finds the row the entity is currently stored in, while holding the lock.
+     *
+     * @return The row.
+     * @throws IllegalStateException if the entity is no longer in the game.
+     */
+    private int row() {
+        int row = store.indexOf(id);
+        if (row < 0) {
+            throw new IllegalStateException("Entity " + id + " is no longer in the game");
+        }
+        return row;
+    }
 
     /**
-     * Constructs a new Player with the given properties.
+     * Reads one of the entity's values, optimistically at first and under the
+     * read lock if an entity was added or removed while reading.
      *
-     * @param id     The unique ID for this player.
-     * @param x      The initial x-coordinate of the player.
-     * @param y      The initial y-coordinate of the player.
-     * @param health The initial health value of the player.
-     * @param name   The display name for this player.
+     * @param column Reads the value from the entity's row.
+     * @return The value.
+     * @throws IllegalStateException if the entity is no longer in the game.
      */
-    public Player(int id, int x, int y, int health, String name) {
-        this.id = id;
-        this.x = x;
-        this.y = y;
-        this.health = health;
-        this.name = name;
+    protected <T> T read(IntFunction<T> column) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T value = column.apply(store.indexOf(id));
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException e) {
+                // read a row while it was moving, retried under the lock below
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return column.apply(row());
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
-     * Gets the unique ID of this player.
+     * Gets the unique ID of this entity.
      *
-     * @return An integer representing the player's ID.
+     * @return The ID.
      */
     public int getId() {
         return id;
     }
 
     /**
-     * Gets the player's x-coordinate.
+     * Gets the x-coordinate of this entity's position.
      *
-     * @return The x-coordinate of the player's position.
+     * @return The x-coordinate.
      */
     public int getX() {
-        return x;
+        return read(store::getX);
     }
 
     /**
-     * Gets the player's y-coordinate.
+     * Gets the y-coordinate of this entity's position.
      *
-     * @return The y-coordinate of the player's position.
+     * @return The y-coordinate.
      */
     public int getY() {
-        return y;
+        return read(store::getY);
     }
 
     /**
-     * Gets the current health of this player.
+     * Gets the game state version in which this entity last changed.
      *
-     * @return The player's health as an integer.
+     * @return The version of the latest change.
      */
-    public int getHealth() {
-        return health;
+    public long getVersion() {
+        return read(store::getVersion);
     }
+}
+
+/**
+ * The Change class records a single addition, change or removal of an entity,
+ * so delta snapshots can find everything that changed after a given version.
+ */
+class Change {
+
+    /** The store the entity is in, or was in if it was removed. */
+    private final EntityStore store;
+
+    /** The unique ID of the entity that was added, changed or removed. */
+    private final int id;
+
+    /** The game state version this change produced. */
+    private final long version;
+
+    /** Whether the entity was removed from the game. */
+    private final boolean removed;
 
     /**
-     * Gets the display name of this player.
+     * Constructs a new Change.
      *
-     * @return A String representing the player's name.
+     * @param store   The store the entity is in.
+     * @param id      The unique ID of the entity.
+     * @param version The game state version this change produced.
+     * @param removed true if the entity was removed from the game.
      */
-    public String getName() {
-        return name;
+    public Change(EntityStore store, int id, long version, boolean removed) {
+        this.store = store;
+        this.id = id;
+        this.version = version;
+        this.removed = removed;
+    }
+
+    /**
+     * Gets the store the entity is in.
+     *
+     * @return The store.
+     */
+    public EntityStore getStore() {
+        return store;
     }
 
     /**
-     * Sets the x-coordinate of the player's position.
+     * Gets the unique ID of the entity that was added, changed or removed.
      *
-     * @param x The new x-coordinate.
+     * @return The ID.
      */
-    public void setX(int x) {
-        this.x = x;
+    public int getId() {
+        return id;
     }
 
     /**
-     * Sets the y-coordinate of the player's position.
+     * Gets the game state version this change produced.
      *
-     * @param y The new y-coordinate.
+     * @return The version.
      */
-    public void setY(int y) {
-        this.y = y;
+    public long getVersion() {
+        return version;
     }
 
     /**
-     * Updates the player's health to the specified value.
+     * Checks whether the entity was removed from the game.
      *
-     * @param health The new health value.
+     * @return true if the entity was removed.
      */
-    public void setHealth(int health) {
-        this.health = health;
+    public boolean isRemoved() {
+        return removed;
     }
 }
 
 /**
- * The LootBox class represents a single loot box in the game world.
- * Loot boxes contain items or resources (e.g., health packs, ammunition)
- * that players can pick up.
+ * The Player class is a view of a single player's state within the game,
+ * including their unique ID, position (x,y), health, and a display name.
  */
-class LootBox {
-
-    /** The unique ID of this loot box. */
-    private int id;
-
-    /** The x-coordinate of the loot box's location. */
-    private int x;
-
-    /** The y-coordinate of the loot box's location. */
-    private int y;
-
-    /** The type of item contained in this loot box (e.g., "HealthPack", "Ammo"). */
-    private String type;
-
-    /** The quantity or amount of the resource contained in this loot box. */
-    private int quantity;
+class Player extends Entity {
 
     /**
-     * Constructs a new LootBox with the specified properties.
+     * Constructs a view of the player with the given ID.
      *
-     * @param id       The unique ID for this loot box.
-     * @param x        The x-coordinate of its position.
-     * @param y        The y-coordinate of its position.
-     * @param type     A string describing the type of item (e.g., "HealthPack").
-     * @param quantity The amount or quantity of the item stored.
+     * @param store The player store.
+     * @param lock  The game state's lock.
+     * @param id    The unique ID of the player.
      */
-    public LootBox(int id, int x, int y, String type, int quantity) {
-        this.id = id;
-        this.x = x;
-        this.y = y;
-        this.type = type;
-        this.quantity = quantity;
+    public Player(EntityStore store, StampedLock lock, int id) {
+        super(store, lock, id);
     }
 
     /**
-     * Gets the unique ID of this loot box.
+     * Gets the current health of this player.
      *
-     * @return An integer representing the loot box ID.
+     * @return The player's health as an integer.
      */
-    public int getId() {
-        return id;
+    public int getHealth() {
+        return read(store::getValue);
     }
 
     /**
-     * Gets the x-coordinate of this loot box.
+     * Gets the display name of this player.
      *
-     * @return The x-coordinate as an integer.
+     * @return A String representing the player's name.
      */
-    public int getX() {
-        return x;
+    public String getName() {
+        return read(store::getLabel);
     }
+}
+
+/**
+ * The LootBox class is a view of a single loot box in the game world.
+ * Loot boxes contain items or resources (e.g., health packs, ammunition)
+ * that players can pick up.
+ */
+class LootBox extends Entity {
 
     /**
-     * Gets the y-coordinate of this loot box.
+     * Constructs a view of the loot box with the given ID.
      *
-     * @return The y-coordinate as an integer.
+     * @param store The loot box store.
+     * @param lock  The game state's lock.
+     * @param id    The unique ID of the loot box.
      */
-    public int getY() {
-        return y;
+    public LootBox(EntityStore store, StampedLock lock, int id) {
+        super(store, lock, id);
     }
 
     /**
      * Gets the type of item contained in this loot box.
      *
-     * @return A string representing the item type (e.g., "HealthPack").
+     * @return A string representing the item type (e.g., "HealthPack"), see LootType.
      */
     public String getType() {
-        return type;
+        return read(store::getLabel);
     }
 
     /**
@@ -363,6 +1144,6 @@ class LootBox {
      * @return The quantity of the item as an integer.
      */
     public int getQuantity() {
-        return quantity;
+        return read(store::getValue);
     }
-}
\ No newline at end of file
+}
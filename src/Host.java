@@ -1,39 +1,141 @@
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 public class Host {
-    private DatagramPacket clientSendPacket, clientReceivePacket, serverSendPacket, serverReceivePacket;
-    private DatagramSocket clientSocket, serverSocket;
-    private InetAddress clientAddress, serverAddress;
-    private int clientPort, serverPort;
-    public static final String acknowledgment = "[Host] Acknowledgment";
+    private Selector selector;
+    private DatagramChannel clientChannel;
+    private DatagramChannel[] serverChannels; // one connected to the server of each shard
+    private DatagramBatcher[] toServers; // bundles what is sent to the server of each shard
+    private InetSocketAddress[] shards; // the server of each shard, in shard order, a single one unless the map is split
+    private final ShardMap shardMap;
+    private final IntIndexMap playerShards = new IntIndexMap(64); // player id -> shard, for players off the spawn shard
+    private final Map<Long, StateGather> gathers = new HashMap<>(); // session and request id -> STATE being gathered
+    private final Deque<StateGather> freeGathers = new ArrayDeque<>();
+    private final Fragmenter fragmenter = new Fragmenter(); // splits merged snapshots too big for one datagram
+    private final Map<Long, Integer> mergedMessages = new LinkedHashMap<>(16, 0.75f, true) { // session and request id -> message id of a merged snapshot sent in fragments
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > Fragmenter.MAX_REMEMBERED; // the fragmenter has forgotten it too
+        }
+    };
+    private ByteBuffer mergeBuffer = ByteBuffer.allocate(WireCodec.MAX_DATAGRAM); // grows to fit the biggest snapshot
+    private final Frame merged = new Frame();
+    private final ByteBuffer resendBuffer = ByteBuffer.allocate(WireCodec.HEADER_SIZE + 6);
+    private final Frame resend = new Frame();
+    private final ByteBuffer endedBuffer = ByteBuffer.allocate(WireCodec.HEADER_SIZE);
+    private final Frame ended = new Frame();
+    private final BufferPool pool = new BufferPool(WireCodec.MAX_DATAGRAM, POOL_SIZE); // every datagram is read into one
+    private final Map<SocketAddress, Session> sessions = new HashMap<>(); // client endpoint -> session
+    private final IntIndexMap sessionIndex = new IntIndexMap(64); // session id -> index in sessionList
+    private final List<Session> sessionList = new ArrayList<>();
+    private final Deque<PooledBuffer> waitingForServer = new ArrayDeque<>(); // requests queued while the window is full
+    private final HostMetrics metrics = new HostMetrics();
+    private final Frame stats = new Frame();
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+    private final Consumer<ByteBuffer> routeBundled = this::routeBundled;
+    private int bundleShard; // the shard the bundle being routed came from
+    private int unacknowledged; // requests pushed to the server that it has not acknowledged yet
+    private boolean acknowledgedSincePoll; // if a BATCH_ACK arrived since the window was last checked
+    private long lastAcknowledged; // when the window was last seen empty or acknowledged, in ms
+    private int nextSessionId = 1;
+    private long nextPoll; // when the client links are next checked for timeouts
+    public static final int MAX_IN_FLIGHT = 256; // most requests pushed to the server before it acknowledges them
+    public static final long POLL_INTERVAL = 10; // ms between checks for retransmissions and delayed acknowledgments
+    public static final int POOL_SIZE = 4096; // most free buffers kept, enough for MAX_IN_FLIGHT and every client's window
+    public static final long ACK_TIMEOUT = 1000; // ms without any BATCH_ACK before unacknowledged requests are given up as lost
+    public static final long GATHER_RETRY = 200; // ms without a shard's answer to a STATE before asking it again
+    public static final int GATHER_ATTEMPTS = 5; // times a shard is asked again before the STATE is given up
 
     /**
      * Host constructor to act as an intermediate host between client and server
      */
     public Host() {
-        try{ // create datagram sockets to communicate with client and server using UDP
-            clientSocket = new DatagramSocket(5000); // specific port for client
-            serverSocket = new DatagramSocket(); // specify port when sending to server
-        } catch (SocketException e) {
+        this(null, ShardMap.SINGLE);
+    }
+
+    /**
+     * Host constructor to act as an intermediate host between clients and the servers of a map
+     * split into shards. Each request goes to the shard owning the player's position, and STATE
+     * is gathered from every shard
+     * @param shards the server of each shard, in shard order, or null for a single server on port 6000 of this machine
+     * @param shardMap how the map is split between the shards, the same as on every server
+     */
+    public Host(InetSocketAddress[] shards, ShardMap shardMap) {
+        this.shardMap = shardMap;
+        try{ // create datagram channels to communicate with client and server using UDP
+            selector = Selector.open();
+            clientChannel = DatagramChannel.open();
+            clientChannel.bind(new InetSocketAddress(5000)); // specific port for client
+            this.shards = shards != null ? shards // port 6000 is server's specific port, on this machine
+                    : new InetSocketAddress[]{new InetSocketAddress(InetAddress.getLoopbackAddress(), Server.PORT)};
+
+            // room for bursts from many clients
+            clientChannel.setOption(StandardSocketOptions.SO_RCVBUF, WireCodec.SOCKET_BUFFER);
+            clientChannel.configureBlocking(false);
+            clientChannel.register(selector, SelectionKey.OP_READ);
+
+            // a channel connected to each server, resolved once, all served by the same event loop
+            serverChannels = new DatagramChannel[this.shards.length];
+            toServers = new DatagramBatcher[this.shards.length];
+            for (int shard = 0; shard < this.shards.length; shard++) {
+                serverChannels[shard] = DatagramChannel.open();
+                serverChannels[shard].setOption(StandardSocketOptions.SO_RCVBUF, WireCodec.SOCKET_BUFFER); // room for the responses
+                serverChannels[shard].connect(this.shards[shard]);
+                serverChannels[shard].configureBlocking(false);
+                serverChannels[shard].register(selector, SelectionKey.OP_READ, shard);
+            }
+            setLinger(DatagramBatcher.LINGER);
+        } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
     /**
-     * Sends an acknowledgment to either the client or the server
-     * @param address address of the client or server
-     * @param port the port of the client or server
-     * @param socket the socket for the client or server
+     * Sets how long the first request of a bundle may wait for more before the bundle is sent to
+     * its server. Call before startHost
+     * @param lingerMicros us to wait, 0 to send as soon as every waiting datagram has been read
      */
-    public void acknowledge(InetAddress address, int port, DatagramSocket socket) {
-        try { // send acknowledgment to client
-            byte[] ackBytes = acknowledgment.getBytes();
-            DatagramPacket ackPacket = new DatagramPacket(ackBytes, ackBytes.length,
-                    address, port);
-            socket.send(ackPacket);
+    public void setLinger(long lingerMicros) {
+        for (int shard = 0; shard < shards.length; shard++) {
+            toServers[shard] = new DatagramBatcher(serverChannels[shard], lingerMicros, metrics.getServerSend());
+        }
+    }
 
+    /**
+     * Gets the counters and latency histograms of this host
+     * @return the metrics
+     */
+    public HostMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sends a datagram packet to the Client that owns the session over its reliable link, which
+     * retains the buffer until the client acknowledges it
+     * @param session the session of the client to send to
+     * @param packet the frame to send to Client
+     */
+    public void sendToClient(Session session, PooledBuffer packet) {
+        ByteBuffer hostReceivedServer = packet.buffer();
+        if (Log.isDebugEnabled()) { // showcase what is sent to client, read before the link stamps it
+            Log.debug("[Host -> Client] Forwarded server response {} for request {} to session {} ({})",
+                    Frame.opcodeName(hostReceivedServer.get(WireCodec.OPCODE_OFFSET)),
+                    hostReceivedServer.getInt(WireCodec.REQUEST_ID_OFFSET), session.getId(), session.getAddress());
+        }
+        try { // send the processed command to the client, retransmitted until the client acknowledges it
+            long start = System.nanoTime();
+            session.getLink().send(packet);
+            metrics.getClientSend().record(System.nanoTime() - start);
+            metrics.responseForwarded();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -41,136 +143,700 @@ public class Host {
     }
 
     /**
-     * Sends a datagram packet to the Client using UDP
-     * @param hostReceivedServer the message to send to Client
+     * Receive every datagram packet waiting from the Clients and push their requests to the Server
      */
-    public void sendToClient(String hostReceivedServer) {
-        try { // send the processed command to the client on a new datagram packet using UDP
-            // use the origin port of the packet received from client earlier to directly contact the client
-            clientSendPacket = new DatagramPacket(hostReceivedServer.getBytes(), hostReceivedServer.getBytes().length,
-                    clientAddress, clientPort);
-            clientSocket.send(clientSendPacket);
-        } catch (UnknownHostException e) {
+    public void receiveFromClient() {
+        try { // receive commands from any client
+            while (true) {
+                PooledBuffer packet = pool.acquire();
+                try {
+                    if (!receiveFromClient(packet)) {
+                        return; // nothing left to read
+                    }
+                } finally {
+                    packet.release(); // still held if queued for the server
+                }
+            }
+        } catch(IOException e) {
             e.printStackTrace();
             System.exit(1);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
-
-        // showcase what was sent to client
-        String hostForwardClient = new String(clientSendPacket.getData(),0,clientSendPacket.getLength());
-        System.out.println("[Host -> Client] Forwarded server response to " + clientAddress + ": " + hostForwardClient);
     }
 
     /**
-     * Receive a datagram packet from the Client using UDP and extract the message
-     * @return the message from the client
+     * Receive one datagram packet from a Client and push its request to the Server, or queue it
+     * @param packet the buffer to receive into, retained if the request has to wait
+     * @return false if no datagram was waiting
+     * @throws IOException if a channel fails
      */
-    public String receiveFromClient() {
-        byte[] data = new byte[1024];  // size of the message
-        clientReceivePacket = new DatagramPacket(data, data.length);
+    private boolean receiveFromClient(PooledBuffer packet) throws IOException {
+        ByteBuffer receiveBuffer = packet.buffer();
+        long start = System.nanoTime();
+        SocketAddress clientAddress = clientChannel.receive(receiveBuffer);
+        if (clientAddress == null) {
+            return false;
+        }
+        packet.setTimestamp(System.nanoTime());
+        metrics.getClientReceive().record(packet.getTimestamp() - start);
+        receiveBuffer.flip();
 
-        try { // receive initial command from client
-            while (true) {
-                clientSocket.receive(clientReceivePacket);
+        // ensure the packet is a frame this host understands
+        if (!WireCodec.isValid(receiveBuffer)) {
+            metrics.invalidFrame();
+            Log.warn("ERROR: Received a packet that is not a valid frame from {}", clientAddress);
+            return true;
+        }
 
-                // save the client address and port
-                clientAddress = clientReceivePacket.getAddress();
-                clientPort = clientReceivePacket.getPort();
+        // find the session for this client, or start a new one
+        Session session = sessions.get(clientAddress);
+        if (session == null) {
+            session = new Session(nextSessionId++, clientAddress, clientChannel, pool);
+            sessions.put(clientAddress, session);
+            sessionIndex.put(session.getId(), sessionList.size());
+            sessionList.add(session);
+            metrics.setSessions(sessions.size());
+        }
 
-                // ensure the packet is valid and not corrupted
-                if (clientAddress == null || clientPort == 0) {
-                    System.out.println("ERROR: Received a packet but address/port is missing!");
-                    return null;  // stop the process of receiving
-                }
+        // the acknowledgment rides on the response, so only new requests go any further
+        if (!session.getLink().receive(receiveBuffer)) {
+            if (receiveBuffer.getInt(WireCodec.SEQ_OFFSET) > 0) {
+                metrics.duplicate(); // rather than a bare ACCEPT from the client
+            }
+            return true;
+        }
+
+        // showcase what was received from client
+        byte opcode = receiveBuffer.get(WireCodec.OPCODE_OFFSET);
+        if (Log.isDebugEnabled()) {
+            Log.debug("\n[Host] Got from client: {} request {} (session {} from {})", Frame.opcodeName(opcode),
+                    receiveBuffer.getInt(WireCodec.REQUEST_ID_OFFSET), session.getId(), clientAddress);
+        }
+
+        // only requests go to the servers, never what the host and servers send each other
+        if (!Frame.isClientRequest(opcode)) {
+            metrics.invalidFrame();
+            Log.warn("ERROR: Received a {} frame, which is not a request, from session {}", Frame.opcodeName(opcode),
+                    session.getId());
+            return true;
+        }
+        // routing reads the player or message a request names, so it must carry them
+        if (!hasRoutingFields(receiveBuffer, opcode)) {
+            metrics.invalidFrame();
+            Log.warn("ERROR: Received a {} request cut short from session {}", Frame.opcodeName(opcode), session.getId());
+            return true;
+        }
+        // stamp the session in place so the server's response can be routed back without parsing
+        receiveBuffer.putInt(WireCodec.SESSION_OFFSET, session.getId());
+        if (opcode == Frame.STATS) {
+            addStats(receiveBuffer);
+        }
+        if (opcode == Frame.RESEND && isMerged(receiveBuffer)) {
+            resendFragment(session, receiveBuffer); // fragments of a merged snapshot come from this host
+            return true;
+        }
+        if (unacknowledged < MAX_IN_FLIGHT) {
+            sendToServer(packet);
+        } else { // window is full, hold on to the buffer until the server acknowledges more
+            waitingForServer.add(packet.retain());
+            metrics.requestQueued();
+        }
+        return true;
+    }
 
-                // showcase what was received from client
-                String hostReceivedClient = new String(data,0,clientReceivePacket.getLength());
-                System.out.println("\n[Host] Got from client: " + hostReceivedClient + " (from " + clientAddress + ")");
+    /**
+     * Checks that a request from a client is long enough for the body fields this host reads
+     * to route it: the player of a MOVE or PICKUP, and the message and fragment of a RESEND
+     * @param request the request, from the start of its buffer to its limit
+     * @param opcode the opcode of the request
+     * @return false if routing it would read past its end
+     */
+    private static boolean hasRoutingFields(ByteBuffer request, byte opcode) {
+        int needed = switch (opcode) {
+            case Frame.MOVE, Frame.PICKUP -> 4;
+            case Frame.RESEND -> 6;
+            default -> 0;
+        };
+        return request.remaining() >= WireCodec.HEADER_SIZE + needed;
+    }
 
-                acknowledge(clientAddress, clientPort, clientSocket); // send acknowledgment to the client that message is received
-                System.out.println("[Host -> Client] Sent immediate ACCEPT to " + clientAddress);
+    /**
+     * Puts this host's metrics into a STATS request, for the server to add its own to
+     * @param request the STATS request received from the client, rewritten in place
+     */
+    private void addStats(ByteBuffer request) {
+        WireCodec.decode(request.duplicate(), stats);
+        stats.setText(metrics.report());
+        WireCodec.encode(stats, request);
+    }
 
-                return hostReceivedClient;
+    /**
+     * Sends a datagram packet to the Server using UDP, recording how long it waited in the host.
+     * When the map is split, the request goes to the shard of the player it is about, a STATE to
+     * every shard, a RESEND to the shard that sent the fragments, and anything else to the shard
+     * new players join
+     * @param packet the frame to send to the Server, which the caller still releases
+     */
+    public void sendToServer(PooledBuffer packet) {
+        ByteBuffer hostReceivedClient = packet.buffer();
+        metrics.getQueueDelay().record(System.nanoTime() - packet.getTimestamp());
+        if (Log.isDebugEnabled()) { // read before sending moves the buffer's position
+            Log.debug("[Host -> Server] Forwarded request {} of session {} to server",
+                    hostReceivedClient.getInt(WireCodec.REQUEST_ID_OFFSET),
+                    hostReceivedClient.getInt(WireCodec.SESSION_OFFSET));
+        }
+        if (shards.length == 1) {
+            sendToShard(hostReceivedClient, 0);
+            return;
+        }
+        byte opcode = hostReceivedClient.get(WireCodec.OPCODE_OFFSET);
+        switch (opcode) {
+            case Frame.STATE -> scatter(packet);
+            case Frame.QUIT -> {
+                for (int shard = 0; shard < shards.length; shard++) {
+                    sendToShard(hostReceivedClient.duplicate(), shard);
+                }
             }
-        } catch(IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+            case Frame.MOVE, Frame.PICKUP -> {
+                int shard = playerShards.get(hostReceivedClient.getInt(WireCodec.HEADER_SIZE));
+                sendToShard(hostReceivedClient, shard != IntIndexMap.MISSING ? shard : shardMap.spawnShard());
+            }
+            case Frame.RESEND -> { // to the shard the fragments came from
+                int index = sessionIndex.get(hostReceivedClient.getInt(WireCodec.SESSION_OFFSET));
+                int shard = index != IntIndexMap.MISSING ? sessionList.get(index).getFragmentShard() : -1;
+                sendToShard(hostReceivedClient, shard >= 0 ? shard : shardMap.spawnShard());
+            }
+            default -> sendToShard(hostReceivedClient, shardMap.spawnShard());
         }
-
-       return null;
     }
 
     /**
-     * Sends a datagram packet to the Server using UDP
-     * @param hostReceivedClient the message to send to the Server
+     * Adds an encoded frame to the bundle for the server of one shard, which acknowledges it in a
+     * batch. The bundle is sent once full, or by flushToServers
+     * @param frame the encoded frame, copied into the bundle
+     * @param shard the index of the shard
      */
-    public void sendToServer(String hostReceivedClient) {
-        try { // send client's command to server on a new datagram packet using UDP
-            serverSendPacket = new DatagramPacket(hostReceivedClient.getBytes(), hostReceivedClient.getBytes().length,
-                    InetAddress.getLocalHost(), 6000); // port 6000 is server's specific port
-            serverSocket.send(serverSendPacket);
+    private void sendToShard(ByteBuffer frame, int shard) {
+        try { // send client's command to server using UDP
+            toServers[shard].add(frame);
+            metrics.requestForwarded();
+            unacknowledged++;
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
+    }
+
+    /**
+     * Sends a STATE request to every shard and starts gathering their answers. Each shard is asked
+     * for a full snapshot, as the version a client has is the sum of every shard's, not one of theirs
+     * @param packet the STATE request, retained until every shard has answered
+     */
+    private void scatter(PooledBuffer packet) {
+        ByteBuffer request = packet.buffer();
+        if (request.limit() >= WireCodec.HEADER_SIZE + 8) {
+            request.putLong(WireCodec.HEADER_SIZE, 0); // since
+        }
+        StateGather gather = freeGathers.isEmpty() ? new StateGather(shards.length) : freeGathers.pop();
+        gather.begin(packet, System.currentTimeMillis());
+        StateGather previous = gathers.put(gatherKey(request), gather);
+        if (previous != null) {
+            recycle(previous); // the same request again, so its first gather is of no use
+        }
+        for (int shard = 0; shard < shards.length; shard++) {
+            sendToShard(request.duplicate(), shard);
+        }
+    }
+
+    /**
+     * Adds a shard's answer, or a fragment of one, to the STATE being gathered for its request,
+     * and sends the merged snapshot to the client once every shard has answered
+     * @param shard the index of the shard that answered
+     * @param response the STATE_DATA or FRAGMENT frame
+     * @return false if no STATE is being gathered for it, so it is routed like any other response
+     */
+    private boolean gather(int shard, ByteBuffer response) {
+        long key = gatherKey(response);
+        StateGather gather = gathers.get(key);
+        if (gather == null) {
+            return false;
+        }
+        if (gather.accept(shard, response, System.currentTimeMillis())) {
+            gathers.remove(key);
+            sendMerged(gather);
+            recycle(gather);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the snapshot merged from every shard's answer to the client that asked for it, in
+     * fragments if it does not fit in one datagram
+     * @param gather the gather every shard has answered
+     */
+    private void sendMerged(StateGather gather) {
+        metrics.stateGathered();
+        int index = sessionIndex.get(gather.getSessionId());
+        if (index == IntIndexMap.MISSING) {
+            metrics.unroutedResponse(); // the client's session ended while the shards worked
+            return;
+        }
+        Session session = sessionList.get(index);
+
+        merged.reset(Frame.STATE_DATA);
+        merged.setSessionId(gather.getSessionId());
+        merged.setRequestId(gather.getRequestId());
+        merged.setText(gather.merge());
+        while (true) {
+            try {
+                WireCodec.encode(merged, mergeBuffer);
+                break;
+            } catch (BufferOverflowException e) {
+                mergeBuffer = ByteBuffer.allocate(mergeBuffer.capacity() * 2);
+            }
+        }
+
+        if (!Fragmenter.needsFragmenting(mergeBuffer)) {
+            PooledBuffer packet = pool.acquire();
+            packet.buffer().put(mergeBuffer).flip();
+            sendToClient(session, packet);
+            packet.release();
+            return;
+        }
+        int messageId = fragmenter.split(mergeBuffer);
+        mergedMessages.put(gatherKey(mergeBuffer), messageId);
+        int count = Fragmenter.fragmentCount(mergeBuffer.remaining());
+        for (int i = 0; i < count; i++) {
+            PooledBuffer packet = pool.acquire();
+            fragmenter.encodeFragment(messageId, i, packet.buffer());
+            sendToClient(session, packet);
+            packet.release();
+        }
+    }
+
+    /**
+     * Checks whether a RESEND asks for a fragment of a snapshot this host merged, rather than of a
+     * response a server split, whose message ids may be the same
+     * @param request the RESEND request, stamped with its session
+     * @return if the request and message it names are those of a merged snapshot
+     */
+    private boolean isMerged(ByteBuffer request) {
+        if (shards.length == 1) {
+            return false; // nothing is merged
+        }
+        Integer messageId = mergedMessages.get(gatherKey(request));
+        return messageId != null && messageId == request.getInt(WireCodec.HEADER_SIZE);
+    }
+
+    /**
+     * Sends a client a single fragment of a merged snapshot again
+     * @param session the session of the client
+     * @param request the RESEND request naming the message and fragment
+     */
+    private void resendFragment(Session session, ByteBuffer request) {
+        PooledBuffer packet = pool.acquire();
+        int messageId = request.getInt(WireCodec.HEADER_SIZE);
+        int index = Short.toUnsignedInt(request.getShort(WireCodec.HEADER_SIZE + 4));
+        if (fragmenter.encodeFragment(messageId, index, packet.buffer())) {
+            sendToClient(session, packet);
+        } else {
+            Log.warn("ERROR: Fragment {} of snapshot {} is no longer available", index, messageId);
+        }
+        packet.release();
+    }
+
+    /**
+     * Asks the shards again for answers to STATE requests that stopped arriving for GATHER_RETRY:
+     * the missing fragments of an answer, or the whole answer if none of it arrived. A STATE is given
+     * up after GATHER_ATTEMPTS
+     * @param now the current time in ms
+     */
+    private void pollGathers(long now) {
+        Iterator<StateGather> it = gathers.values().iterator();
+        while (it.hasNext()) {
+            StateGather gather = it.next();
+            if (now - gather.getLastActivity() < GATHER_RETRY) {
+                continue;
+            }
+            if (gather.retried(now) > GATHER_ATTEMPTS) {
+                it.remove();
+                Log.warn("ERROR: Gave up gathering STATE request {} of session {} from every shard",
+                        gather.getRequestId(), gather.getSessionId());
+                recycle(gather);
+                continue;
+            }
+            for (int shard = 0; shard < shards.length; shard++) {
+                if (gather.hasAnswered(shard)) {
+                    continue;
+                }
+                Reassembler reassembler = gather.getReassembler(shard);
+                if (reassembler.getMessageId() == 0) { // nothing arrived, so the request or the answer was lost
+                    sendToShard(gather.getRequest().buffer().duplicate().position(0), shard);
+                    continue;
+                }
+                for (int index = reassembler.nextMissing(0); index >= 0; index = reassembler.nextMissing(index + 1)) {
+                    resend.reset(Frame.RESEND);
+                    resend.setSessionId(gather.getSessionId());
+                    resend.setRequestId(gather.getRequestId());
+                    resend.setMessageId(reassembler.getMessageId());
+                    resend.setIndex(index);
+                    WireCodec.encode(resend, resendBuffer);
+                    sendToShard(resendBuffer, shard);
+                }
+            }
+        }
+    }
 
-        // showcase what was sent/forwarded to server
-        String hostForwardServer = new String(serverSendPacket.getData(),0,serverSendPacket.getLength());
+    /**
+     * Gives back the window slots of requests the servers will never acknowledge, lost on the way
+     * or in a bundle cut short, once no BATCH_ACK has arrived for ACK_TIMEOUT while some are
+     * outstanding. Otherwise each loss would shrink the window for good
+     * @param now the current time in ms
+     */
+    private void pollWindow(long now) {
+        if (unacknowledged == 0 || acknowledgedSincePoll) {
+            acknowledgedSincePoll = false;
+            lastAcknowledged = now;
+            return;
+        }
+        if (now - lastAcknowledged >= ACK_TIMEOUT) {
+            Log.warn("ERROR: No acknowledgment from the servers for {} ms, gave up {} requests as lost",
+                    now - lastAcknowledged, unacknowledged);
+            unacknowledged = 0;
+            lastAcknowledged = now;
+            forwardRequests();
+        }
+    }
 
+    /**
+     * Puts a gather back for the next STATE request
+     * @param gather the gather
+     */
+    private void recycle(StateGather gather) {
+        gather.reset();
+        freeGathers.push(gather);
     }
 
     /**
-     * Receive a datagram packet from the Server using UDP and extract the message
-     * @return the message from the server
+     * Gets the key of the STATE being gathered for a request or its answers
+     * @param frame the request or an answer
+     * @return the session id and request id in one number
      */
-    public String receiveFromServer() {
-        byte[] data = new byte[1024];  // size of the message
-        serverReceivePacket = new DatagramPacket(data, data.length);
+    private static long gatherKey(ByteBuffer frame) {
+        return ((long) frame.getInt(WireCodec.SESSION_OFFSET) << 32)
+                | (frame.getInt(WireCodec.REQUEST_ID_OFFSET) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Passes a player handed over by one shard on to the shard owning their new position, and
+     * routes their requests there from now on
+     * @param handoff the HANDOFF frame
+     */
+    private void handOff(ByteBuffer handoff) {
+        int playerId = handoff.getInt(WireCodec.HEADER_SIZE);
+        int shard = shardMap.shardOf(handoff.getInt(WireCodec.HEADER_SIZE + 4), handoff.getInt(WireCodec.HEADER_SIZE + 8));
+        if (shard == shardMap.spawnShard()) {
+            playerShards.remove(playerId);
+        } else {
+            playerShards.put(playerId, shard);
+        }
+        sendToShard(handoff, shard); // ahead of any queued request, which may be for this player
+        metrics.handoff();
+        if (Log.isDebugEnabled()) {
+            Log.debug("[Host] Handed player {} over to shard {}", playerId, shard);
+        }
+    }
+
+    /**
+     * Pushes requests queued while the window was full, as long as the Server has acknowledged
+     * enough of the earlier ones
+     */
+    private void forwardRequests() {
+        while (unacknowledged < MAX_IN_FLIGHT && !waitingForServer.isEmpty()) {
+            PooledBuffer packet = waitingForServer.poll();
+            sendToServer(packet);
+            packet.release();
+        }
+    }
 
-        try { // receive the processed command from server
-            serverSocket.receive(serverReceivePacket);
+    /**
+     * Receive every datagram packet waiting from the server of a shard and route the responses back to their Clients
+     * @param shard the index of the shard
+     */
+    public void receiveFromServer(int shard) {
+        try { // receive the processed commands from server
+            while (true) {
+                PooledBuffer packet = pool.acquire();
+                try {
+                    if (!receiveFromServer(packet, shard)) {
+                        return; // nothing left to read
+                    }
+                } finally {
+                    packet.release(); // still held by the client's link until the client acknowledges it
+                }
+            }
+        } catch (PortUnreachableException e) {
+            // an earlier request found no server listening, which is reported on the next read
+            Log.warn("ERROR: The server of shard {} at {} is not running", shard, shards[shard]);
         } catch(IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
+    }
+
+    /**
+     * Receive one datagram packet from the server of a shard and route the responses in it back to their Clients
+     * @param packet the buffer to receive into, retained by the client's link if it is a response
+     * @param shard the index of the shard
+     * @return false if no datagram was waiting
+     */
+    private boolean receiveFromServer(PooledBuffer packet, int shard) throws IOException {
+        ByteBuffer receiveBuffer = packet.buffer();
+        long start = System.nanoTime();
+        if (serverChannels[shard].receive(receiveBuffer) == null) {
+            return false;
+        }
+        metrics.getServerReceive().record(System.nanoTime() - start);
+        receiveBuffer.flip();
+
+        if (DatagramBatcher.isBundle(receiveBuffer)) {
+            bundleShard = shard;
+            if (!DatagramBatcher.unbundle(receiveBuffer, routeBundled)) {
+                metrics.invalidFrame();
+                Log.warn("ERROR: Received a bundle cut short from the server!");
+            }
+        } else {
+            route(packet, shard);
+        }
+        return true;
+    }
 
-        // save the server address and port
-        serverAddress = serverReceivePacket.getAddress();
-        serverPort = serverReceivePacket.getPort();
+    /**
+     * Routes one frame of a bundle, copied into a pooled buffer of its own so the client's link can
+     * hold on to it
+     * @param frame the bundle narrowed to the frame
+     */
+    private void routeBundled(ByteBuffer frame) {
+        PooledBuffer packet = pool.acquire();
+        try {
+            ByteBuffer buffer = packet.buffer();
+            buffer.put(0, frame, frame.position(), frame.remaining());
+            buffer.position(frame.remaining()).flip();
+            route(packet, bundleShard);
+        } finally {
+            packet.release();
+        }
+    }
 
-        String hostReceiveServer = new String(data,0, serverReceivePacket.getLength());
+    /**
+     * Routes one response from the server of a shard back to its Client, or handles it here if it is
+     * meant for the host
+     * @param packet the response, from the start of its buffer to its limit
+     * @param shard the index of the shard it came from
+     */
+    private void route(PooledBuffer packet, int shard) {
+        ByteBuffer receiveBuffer = packet.buffer();
+        if (!WireCodec.isValid(receiveBuffer)) {
+            metrics.invalidFrame();
+            Log.warn("ERROR: Received a packet that is not a valid frame from the server!");
+            return;
+        }
+        byte opcode = receiveBuffer.get(WireCodec.OPCODE_OFFSET);
 
         // showcase what was received from server
-        System.out.println("\n[Host] Got from server: " + hostReceiveServer + " (from " + serverAddress + ")");
+        if (Log.isDebugEnabled()) {
+            Log.debug("\n[Host] Got from server: {} (from {})", Frame.opcodeName(opcode), shards[shard]);
+        }
 
-        acknowledge(serverAddress, serverPort, serverSocket); // send acknowledgment to the client that message is received
-        System.out.println("[Host -> Server] Sent immediate ACCEPT to " + serverAddress);
+        if (opcode == Frame.BATCH_ACK) {
+            // the server accepted a batch, so more requests can be pushed
+            unacknowledged = Math.max(0, unacknowledged - receiveBuffer.getInt(WireCodec.HEADER_SIZE));
+            acknowledgedSincePoll = true;
+            metrics.batchAck();
+            forwardRequests();
+        } else if (opcode == Frame.HANDOFF) {
+            handOff(receiveBuffer);
+        } else if (shards.length > 1 && (opcode == Frame.STATE_DATA || opcode == Frame.FRAGMENT)
+                && gather(shard, receiveBuffer)) {
+            // part of a STATE gathered from every shard, sent on once complete
+        } else {
+            // route the response back to the session that made the request
+            int index = sessionIndex.get(receiveBuffer.getInt(WireCodec.SESSION_OFFSET));
+            if (index != IntIndexMap.MISSING) {
+                if (opcode == Frame.FRAGMENT) {
+                    sessionList.get(index).setFragmentShard(shard); // where to ask for it again
+                }
+                sendToClient(sessionList.get(index), packet);
+            } else {
+                metrics.unroutedResponse(); // the client's session ended while the server worked
+                if (receiveBuffer.getInt(WireCodec.REQUEST_ID_OFFSET) == 0) {
+                    // pushed to a session the server still has, as its ENDED was lost or it predates this host
+                    sendEnded(receiveBuffer.getInt(WireCodec.SESSION_OFFSET), shard);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retransmits what the clients have not acknowledged and sends acknowledgments that found nothing
+     * to ride on, ending the sessions of clients that stopped answering
+     */
+    private void pollClients() {
+        try {
+            for (int i = sessionList.size() - 1; i >= 0; i--) { // backwards, as ending a session moves the last one here
+                Session session = sessionList.get(i);
+                if (session.getLink().poll() > 0) {
+                    endSession(i);
+                    Log.info("[Host] Session {} ({}) stopped acknowledging, ended it", session.getId(),
+                            session.getAddress());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Ends a session, releasing whatever its link still holds and telling every server it has ended
+     * @param index the index of the session in the session list
+     */
+    private void endSession(int index) {
+        Session session = sessionList.get(index);
+        Session last = sessionList.remove(sessionList.size() - 1);
+        if (last != session) { // fill the gap with the last session
+            sessionList.set(index, last);
+            sessionIndex.put(last.getId(), index);
+        }
+        sessionIndex.remove(session.getId());
+        sessions.remove(session.getAddress());
+        session.getLink().close();
+        metrics.sessionEnded();
+        metrics.setSessions(sessions.size());
+        for (int shard = 0; shard < shards.length; shard++) {
+            sendEnded(session.getId(), shard); // any of them may be pushing updates to it
+        }
+    }
+
+    /**
+     * Tells the server of a shard that a session has ended, so it stops pushing updates to it and,
+     * in a lobby, takes it out of its match
+     * @param sessionId the id of the session
+     * @param shard the index of the shard
+     */
+    private void sendEnded(int sessionId, int shard) {
+        ended.reset(Frame.ENDED);
+        ended.setSessionId(sessionId);
+        WireCodec.encode(ended, endedBuffer);
+        sendToShard(endedBuffer, shard);
+    }
+
+    /**
+     * Handles a channel the selector found ready
+     * @param key the key of the channel
+     */
+    private void handleKey(SelectionKey key) {
+        if (key.channel() == clientChannel) {
+            receiveFromClient();
+        } else {
+            receiveFromServer((Integer) key.attachment());
+        }
+    }
 
-        return hostReceiveServer;
+    /**
+     * Sends the requests bundled for every server once nothing more has arrived for LINGER, handling
+     * whatever arrives in the meantime
+     * @throws IOException if a channel fails
+     */
+    private void flushToServers() throws IOException {
+        while (true) {
+            long now = System.nanoTime();
+            long left = -1;
+            for (DatagramBatcher batcher : toServers) {
+                long batcherLeft = batcher.lingerLeft(now);
+                if (batcherLeft >= 0 && (left < 0 || batcherLeft < left)) {
+                    left = batcherLeft;
+                }
+            }
+            if (left <= 0) {
+                break; // nothing bundled, or a bundle has waited long enough
+            }
+            LockSupport.parkNanos(left);
+            if (selector.selectNow(keyHandler) == 0) {
+                break; // nothing more came in while waiting
+            }
+        }
+        for (DatagramBatcher batcher : toServers) {
+            batcher.flush();
+        }
     }
 
     /**
-     * Starts the host and creates two threads to simulate two way communication
+     * Starts the host and serves every client and the server from a single event loop
      */
     public void startHost() {
-        // thread from client to server
-        Thread clientThread = new Thread(new ClientThread(this));
-        // thread from server to client
-        Thread serverThread = new Thread(new ServerThread(this));
+        lastAcknowledged = System.currentTimeMillis(); // so the first requests get a full ACK_TIMEOUT
+        while (true) {
+            try {
+                // wait until a client or the server has sent something, and handle it
+                selector.select(keyHandler, POLL_INTERVAL);
+                flushToServers();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextPoll) {
+                pollClients();
+                pollGathers(now);
+                pollWindow(now);
+                nextPoll = now + POLL_INTERVAL;
+            }
+        }
+    }
 
-        // start threads
-        clientThread.start();
-        serverThread.start();
+    /**
+     * Parses the servers given on the command line, such as localhost:6001,localhost:6002
+     * @param option the option value, one host:port per shard in shard order
+     * @return the address of each shard's server
+     */
+    private static InetSocketAddress[] parseServers(String option) {
+        String[] servers = option.split(",");
+        InetSocketAddress[] addresses = new InetSocketAddress[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            int colon = servers[i].lastIndexOf(':');
+            addresses[i] = new InetSocketAddress(servers[i].substring(0, colon),
+                    Integer.parseInt(servers[i].substring(colon + 1)));
+        }
+        return addresses;
     }
 
     /**
      * Main method
-     * @param args args
+     * @param args the servers of the shards as --servers host:port,host:port, the width of their regions as --region
+     *             and the us a request may wait to share a datagram with others as --linger
      */
     public static void main(String[] args) {
-        System.out.println("Battle Royale Host started on port 5000");
-        Host host = new Host();
+        InetSocketAddress[] shards = null;
+        int regionWidth = ShardMap.REGION_WIDTH;
+        long linger = DatagramBatcher.LINGER;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--servers" -> shards = parseServers(args[i + 1]);
+                case "--region" -> regionWidth = Integer.parseInt(args[i + 1]);
+                case "--linger" -> linger = Long.parseLong(args[i + 1]);
+                default -> Log.warn("ERROR: Unknown option {} {}", args[i], args[i + 1]);
+            }
+        }
+
+        Log.info("Battle Royale Host started on port 5000");
+        ShardMap shardMap = shards == null ? ShardMap.SINGLE : new ShardMap(shards.length, regionWidth);
+        Host host = new Host(shards, shardMap);
+        host.setLinger(linger);
+        if (shards != null && shards.length > 1) {
+            Log.info("Routing to {} shards in stripes {} wide: {}", shards.length, regionWidth, Arrays.toString(shards));
+        }
+        host.getMetrics().register(); // watchable with jconsole, under BattleRoyale
         host.startHost();
     }
 }
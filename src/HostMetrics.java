@@ -0,0 +1,238 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the Host: what was forwarded, acknowledged and dropped on
+ * the client and server paths, how long requests waited for room in the window to the server, and
+ * how long each socket takes to receive and send. Written by the event loop, readable from any
+ * thread.
+ */
+public class HostMetrics implements HostMetricsMBean {
+    private final long started = System.nanoTime();
+    private final LatencyStats queueDelay = new LatencyStats();
+    private final LatencyStats clientReceive = new LatencyStats();
+    private final LatencyStats clientSend = new LatencyStats();
+    private final LatencyStats serverReceive = new LatencyStats();
+    private final LatencyStats serverSend = new LatencyStats();
+    private final LongAdder requestsForwarded = new LongAdder();
+    private final LongAdder responsesForwarded = new LongAdder();
+    private final LongAdder batchAcks = new LongAdder();
+    private final LongAdder requestsQueued = new LongAdder();
+    private final LongAdder invalidFrames = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder unroutedResponses = new LongAdder();
+    private final LongAdder sessionsEnded = new LongAdder();
+    private final LongAdder handoffs = new LongAdder();
+    private final LongAdder statesGathered = new LongAdder();
+    private volatile int sessions;
+
+    /**
+     * Gets the stats of how long each request waited in the host before being pushed to the
+     * server, 0 for those pushed straight away
+     * @return the queueing delay stats
+     */
+    public LatencyStats getQueueDelay() {
+        return queueDelay;
+    }
+
+    /**
+     * Gets the stats of receive calls on the client channel that returned a datagram
+     * @return the client receive stats
+     */
+    public LatencyStats getClientReceive() {
+        return clientReceive;
+    }
+
+    /**
+     * Gets the stats of sends to clients, through their reliable links
+     * @return the client send stats
+     */
+    public LatencyStats getClientSend() {
+        return clientSend;
+    }
+
+    /**
+     * Gets the stats of receive calls on the server channel that returned a datagram
+     * @return the server receive stats
+     */
+    public LatencyStats getServerReceive() {
+        return serverReceive;
+    }
+
+    /**
+     * Gets the stats of sends to the server
+     * @return the server send stats
+     */
+    public LatencyStats getServerSend() {
+        return serverSend;
+    }
+
+    /**
+     * Counts a request pushed to the server
+     */
+    public void requestForwarded() {
+        requestsForwarded.increment();
+    }
+
+    /**
+     * Counts a response sent on to its client
+     */
+    public void responseForwarded() {
+        responsesForwarded.increment();
+    }
+
+    /**
+     * Counts a batch acknowledgment from the server
+     */
+    public void batchAck() {
+        batchAcks.increment();
+    }
+
+    /**
+     * Counts a request that has to wait for room in the window to the server
+     */
+    public void requestQueued() {
+        requestsQueued.increment();
+    }
+
+    /**
+     * Counts a datagram dropped for not being a valid frame
+     */
+    public void invalidFrame() {
+        invalidFrames.increment();
+    }
+
+    /**
+     * Counts a request dropped for arriving more than once
+     */
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    /**
+     * Counts a response dropped because its session had already ended
+     */
+    public void unroutedResponse() {
+        unroutedResponses.increment();
+    }
+
+    /**
+     * Counts a session ended because its client stopped acknowledging
+     */
+    public void sessionEnded() {
+        sessionsEnded.increment();
+    }
+
+    /**
+     * Counts a player handed over from one shard to another
+     */
+    public void handoff() {
+        handoffs.increment();
+    }
+
+    /**
+     * Counts a STATE gathered from every shard
+     */
+    public void stateGathered() {
+        statesGathered.increment();
+    }
+
+    /**
+     * Sets how many client sessions are open
+     * @param sessions the number of sessions
+     */
+    public void setSessions(int sessions) {
+        this.sessions = sessions;
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+    }
+
+    @Override
+    public int getSessions() {
+        return sessions;
+    }
+
+    @Override
+    public long getRequestsForwarded() {
+        return requestsForwarded.sum();
+    }
+
+    @Override
+    public long getResponsesForwarded() {
+        return responsesForwarded.sum();
+    }
+
+    @Override
+    public long getBatchAcks() {
+        return batchAcks.sum();
+    }
+
+    @Override
+    public long getRequestsQueued() {
+        return requestsQueued.sum();
+    }
+
+    @Override
+    public long getInvalidFrames() {
+        return invalidFrames.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getUnroutedResponses() {
+        return unroutedResponses.sum();
+    }
+
+    @Override
+    public long getSessionsEnded() {
+        return sessionsEnded.sum();
+    }
+
+    @Override
+    public long getHandoffs() {
+        return handoffs.sum();
+    }
+
+    @Override
+    public long getStatesGathered() {
+        return statesGathered.sum();
+    }
+
+    /**
+     * Describes every counter and histogram, one per line, for the STATS command. Kept short
+     * enough to ride to the server inside a single STATS request
+     * @return the report
+     */
+    public String report() {
+        return "HOST uptime=" + getUptimeSeconds() + "s sessions=" + getSessions()
+                + " forwarded=" + getRequestsForwarded() + " responses=" + getResponsesForwarded()
+                + " batchAcks=" + getBatchAcks() + " queued=" + getRequestsQueued()
+                + " handoffs=" + getHandoffs() + " gathered=" + getStatesGathered()
+                + "\nHOST dropped invalid=" + getInvalidFrames() + " duplicates=" + getDuplicates()
+                + " unrouted=" + getUnroutedResponses() + " sessionsEnded=" + getSessionsEnded()
+                + "\n" + queueDelay.describe("queueDelay")
+                + "\n" + clientReceive.describe("clientReceive")
+                + "\n" + clientSend.describe("clientSend")
+                + "\n" + serverReceive.describe("serverReceive")
+                + "\n" + serverSend.describe("serverSend");
+    }
+
+    /**
+     * Registers these metrics and every histogram with JMX
+     */
+    public void register() {
+        LatencyStats.register("Host", "Traffic", this);
+        LatencyStats.register("Host", "queueDelay", queueDelay);
+        LatencyStats.register("Host", "clientReceive", clientReceive);
+        LatencyStats.register("Host", "clientSend", clientSend);
+        LatencyStats.register("Host", "serverReceive", serverReceive);
+        LatencyStats.register("Host", "serverSend", serverSend);
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * What JMX shows of a HostMetrics. The queueing delay, and the socket time on each channel, are
+ * MBeans of their own, see LatencyStatsMBean
+ */
+public interface HostMetricsMBean {
+    /**
+     * Gets how long the host has been running
+     * @return the uptime in seconds
+     */
+    long getUptimeSeconds();
+
+    /**
+     * Gets how many client sessions are open
+     * @return the number of sessions
+     */
+    int getSessions();
+
+    /**
+     * Gets how many client requests were pushed to the server
+     * @return the number of requests
+     */
+    long getRequestsForwarded();
+
+    /**
+     * Gets how many server responses were sent on to their clients
+     * @return the number of responses
+     */
+    long getResponsesForwarded();
+
+    /**
+     * Gets how many batch acknowledgments arrived from the server
+     * @return the number of batch acknowledgments
+     */
+    long getBatchAcks();
+
+    /**
+     * Gets how many requests had to wait because too many were already pushed to the server
+     * @return the number of queued requests
+     */
+    long getRequestsQueued();
+
+    /**
+     * Gets how many datagrams were dropped for not being valid frames
+     * @return the number of invalid datagrams
+     */
+    long getInvalidFrames();
+
+    /**
+     * Gets how many requests were dropped for arriving from a client more than once
+     * @return the number of duplicates
+     */
+    long getDuplicates();
+
+    /**
+     * Gets how many responses were dropped because their session had already ended
+     * @return the number of unrouted responses
+     */
+    long getUnroutedResponses();
+
+    /**
+     * Gets how many sessions were ended because their client stopped acknowledging
+     * @return the number of ended sessions
+     */
+    long getSessionsEnded();
+
+    /**
+     * Gets how many players were handed over from one shard to another
+     * @return the number of handoffs
+     */
+    long getHandoffs();
+
+    /**
+     * Gets how many STATE requests were answered with a snapshot gathered from every shard
+     * @return the number of gathered snapshots
+     */
+    long getStatesGathered();
+}
@@ -0,0 +1,179 @@
+/**
+ * An open-addressing hash map from int keys to int values, using linear probing and no boxed
+ * objects. Used to find the row an entity id is stored in without scanning.
+ *
+ * Not thread-safe, but get only reads the table once and is always bounded by an empty slot, so
+ * it can be attempted under an optimistic read and validated afterwards.
+ */
+public class IntIndexMap {
+
+    /** Marks a slot that holds no key. Never a valid key. */
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /** The value returned when a key is not in the map. */
+    public static final int MISSING = -1;
+
+    /** Each slot's key at an even index and its value right after it, replaced whole when grown. */
+    private int[] table;
+    private int size;
+
+    /**
+     * Constructs an empty map.
+     *
+     * @param expected How many keys the map should hold before it has to grow.
+     */
+    public IntIndexMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        table = emptyTable(capacity);
+    }
+
+    /**
+     * Gets the value stored for a key.
+     *
+     * @param key The key to look up.
+     * @return The value, or MISSING if the key is not in the map.
+     */
+    public int get(int key) {
+        int[] t = table; // read once so a concurrent grow cannot mix two tables
+        int mask = (t.length >> 1) - 1;
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            int k = t[slot << 1];
+            if (k == key) {
+                return t[(slot << 1) + 1];
+            }
+            if (k == EMPTY) {
+                return MISSING;
+            }
+        }
+    }
+
+    /**
+     * Stores a value for a key, replacing any value it already had.
+     *
+     * @param key   The key, which must not be Integer.MIN_VALUE.
+     * @param value The value.
+     */
+    public void put(int key, int value) {
+        if ((size + 1) * 2 > capacity()) {
+            grow(); // keep the table at most half full so probe runs stay short
+        }
+        if (insert(table, key, value)) {
+            size++;
+        }
+    }
+
+    /**
+     * Removes a key, shifting later entries of its probe run back so lookups never need tombstones.
+     *
+     * @param key The key to remove.
+     * @return The value it had, or MISSING if the key was not in the map.
+     */
+    public int remove(int key) {
+        int[] t = table;
+        int mask = capacity() - 1;
+        int slot = slot(key, mask);
+        while (t[slot << 1] != key) {
+            if (t[slot << 1] == EMPTY) {
+                return MISSING;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int removed = t[(slot << 1) + 1];
+        size--;
+
+        // move back any entry that would no longer be reachable past the hole
+        int hole = slot;
+        for (int next = (hole + 1) & mask; t[next << 1] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(t[next << 1], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                t[(hole << 1) + 1] = t[(next << 1) + 1];
+                t[hole << 1] = t[next << 1];
+                hole = next;
+            }
+        }
+        t[hole << 1] = EMPTY;
+        return removed;
+    }
+
+    /**
+     * Gets how many keys are in the map.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of slots.
+     *
+     * @return The number of slots, a power of two.
+     */
+    private int capacity() {
+        return table.length >> 1;
+    }
+
+    /**
+     * Finds the slot a key's probe run starts at.
+     *
+     * @param key  The key.
+     * @param mask The number of slots minus one.
+     * @return The home slot.
+     */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9; // spread sequential ids across the table
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Stores a value for a key in a table, the value first so a reader that finds the key never
+     * sees the value of another.
+     *
+     * @param t     The table.
+     * @param key   The key.
+     * @param value The value.
+     * @return Whether the key is new to the table.
+     */
+    private static boolean insert(int[] t, int key, int value) {
+        int mask = (t.length >> 1) - 1;
+        int slot = slot(key, mask);
+        while (t[slot << 1] != EMPTY && t[slot << 1] != key) {
+            slot = (slot + 1) & mask;
+        }
+        t[(slot << 1) + 1] = value;
+        if (t[slot << 1] == EMPTY) {
+            t[slot << 1] = key;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Allocates a table with every slot empty.
+     *
+     * @param capacity The number of slots, a power of two.
+     * @return The table.
+     */
+    private static int[] emptyTable(int capacity) {
+        int[] t = new int[capacity * 2];
+        for (int i = 0; i < t.length; i += 2) {
+            t[i] = EMPTY;
+        }
+        return t;
+    }
+
+    /**
+     * Doubles the number of slots and re-inserts every key. The new table is filled in completely
+     * before it replaces the old one, so a concurrent get only ever sees one whole table.
+     */
+    private void grow() {
+        int[] old = table;
+        int[] grown = emptyTable(old.length); // twice the slots, as old holds two ints a slot
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != EMPTY) {
+                insert(grown, old[i], old[i + 1]);
+            }
+        }
+        table = grown;
+    }
+}
@@ -0,0 +1,93 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Times one kind of operation, such as processing a MOVE or receiving a datagram: a count and a
+ * LatencyHistogram, readable from the STATS command and from JMX. Recording is lock-free and
+ * costs a few atomic increments, so it stays on in production.
+ */
+public class LatencyStats implements LatencyStatsMBean {
+    public static final String DOMAIN = "BattleRoyale"; // JMX domain every MBean is registered under
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private volatile long since = System.nanoTime(); // when throughput started being counted
+
+    /**
+     * Records one timed operation
+     * @param nanos how long it took in ns
+     */
+    public void record(long nanos) {
+        histogram.record(nanos);
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    @Override
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - since) / (double) TimeUnit.SECONDS.toNanos(1);
+        return seconds > 0 ? histogram.getCount() / seconds : 0;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return histogram.getMean() / 1000;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return histogram.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return histogram.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return histogram.percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return histogram.getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        histogram.reset();
+        since = System.nanoTime();
+    }
+
+    /**
+     * Describes the stats on one line, for the STATS command
+     * @param name what was timed
+     * @return the line
+     */
+    public String describe(String name) {
+        return String.format("%-14s count=%d rate=%.1f/s mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                name, getCount(), getThroughput(), getMeanMicros(), getP50Micros(), getP99Micros(),
+                getP999Micros(), getMaxMicros());
+    }
+
+    /**
+     * Registers an MBean with the platform MBean server, so tools such as jconsole can watch it. A
+     * name that is already taken, such as by a second server in the same JVM, is only reported
+     * @param type the component the MBean belongs to, such as Server
+     * @param name the name of the MBean within the component
+     * @param mbean the MBean
+     */
+    public static void register(String type, String name, Object mbean) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            Log.warn("ERROR: Could not register {} {} with JMX: {}", type, name, e.getMessage());
+        }
+    }
+}
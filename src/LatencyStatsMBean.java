@@ -0,0 +1,52 @@
+/**
+ * What JMX shows of a LatencyStats: how many operations were timed, how fast they came and their
+ * latency percentiles
+ */
+public interface LatencyStatsMBean {
+    /**
+     * Gets how many operations were timed
+     * @return the number of operations
+     */
+    long getCount();
+
+    /**
+     * Gets how many operations were timed per second, since the start or the last reset
+     * @return the operations per second
+     */
+    double getThroughput();
+
+    /**
+     * Gets the mean latency
+     * @return the mean in microseconds
+     */
+    double getMeanMicros();
+
+    /**
+     * Gets the median latency
+     * @return the median in microseconds
+     */
+    double getP50Micros();
+
+    /**
+     * Gets the latency 99% of the operations are at or below
+     * @return the 99th percentile in microseconds
+     */
+    double getP99Micros();
+
+    /**
+     * Gets the latency 99.9% of the operations are at or below
+     * @return the 99.9th percentile in microseconds
+     */
+    double getP999Micros();
+
+    /**
+     * Gets the largest latency
+     * @return the largest latency in microseconds
+     */
+    double getMaxMicros();
+
+    /**
+     * Forgets every timed operation and starts counting throughput again
+     */
+    void reset();
+}
@@ -0,0 +1,390 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless load generator that drives simulated players through the Client RPC path against a
+ * running Host and Server, then reports throughput, errors, timeouts and latency percentiles.
+ *
+ * The players share a few Clients, each with its own channel and session at the Host. Requests are
+ * picked at random from a weighted mix of JOIN, MOVE, PICKUP and STATE. In closed-loop mode every
+ * player sends its next request as soon as the last one is answered; in open-loop mode requests
+ * are sent at a fixed rate whether or not earlier ones were answered, and latency is measured from
+ * when each request was due so a stalled server cannot hide its own delays.
+ *
+ * Usage: java LoadGenerator [--players 1000] [--clients 16] [--window 32] [--mode closed|open]
+ *        [--rate 5000] [--duration 10] [--mix join,move,pickup,state] [--timeout 2000]
+ *        [--host localhost] [--port 5000] [--matches 0] [--subscribe off|on]
+ */
+public class LoadGenerator {
+    private final List<Client> clients = new ArrayList<>();
+    private final List<SimulatedPlayer> players = new ArrayList<>();
+    private final int[] mix; // cumulative weights of JOIN, MOVE, PICKUP and STATE
+    private final long timeout; // ms before a request counts as timed out
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong(); // UPDATEs pushed to subscribed clients
+    private volatile boolean running;
+
+    /**
+     * Constructor for a load generator, which connects its clients straight away
+     * @param host the host name of the intermediate host
+     * @param port the port of the intermediate host
+     * @param clientCount how many clients the players are spread over
+     * @param window the most requests each client has outstanding at once
+     * @param mix the weights of JOIN, MOVE, PICKUP and STATE requests
+     * @param timeout ms a sent request waits for its response before it counts as timed out and
+     *                its client sends the next one in its place
+     */
+    public LoadGenerator(String host, int port, int clientCount, int window, int[] mix, long timeout) {
+        for (int i = 0; i < clientCount; i++) {
+            Client client = new Client(host, port, window);
+            client.setRequestTimeout(timeout); // frees the window place of a lost request, not just its caller
+            clients.add(client);
+        }
+        this.mix = new int[mix.length];
+        int sum = 0;
+        for (int i = 0; i < mix.length; i++) {
+            sum += mix[i];
+            this.mix[i] = sum;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("The request mix needs at least one positive weight");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Joins the simulated players, spread evenly over the clients
+     * @param count how many players to join
+     * @return how many players did not manage to join
+     */
+    public int join(int count) {
+        return join(count, 0);
+    }
+
+    /**
+     * Joins the simulated players, spread evenly over the clients and, on a server running many
+     * matches, over matches 1 to matches. A client's players all play in the same match
+     * @param count how many players to join
+     * @param matches how many matches to spread the clients over, 0 to let the server match them
+     * @return how many players did not manage to join
+     */
+    public int join(int count, int matches) {
+        List<CompletableFuture<Frame>> joins = new ArrayList<>();
+        Frame request = new Frame(Frame.JOIN);
+        for (int i = 0; i < count; i++) {
+            Client client = clients.get(i % clients.size());
+            request.setText("Bot" + i);
+            request.setMatchId(matches > 0 ? i % clients.size() % matches + 1 : 0);
+            joins.add(client.rpc_send_async(request));
+            players.add(new SimulatedPlayer(client));
+        }
+        int failed = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            try {
+                players.get(i).playerId = joins.get(i).get(timeout, TimeUnit.MILLISECONDS).getPlayerId();
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                players.remove(i); // never got a player id, so it cannot take part
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Subscribes every client to state updates, which are counted instead of polled for with STATE
+     * @return how many clients did not manage to subscribe
+     */
+    public int subscribe() {
+        List<CompletableFuture<Frame>> subscriptions = new ArrayList<>();
+        for (Client client : clients) {
+            client.setUpdateListener(update -> updates.incrementAndGet());
+            subscriptions.add(client.rpc_send_async(new Frame(Frame.SUBSCRIBE)));
+        }
+        int failed = 0;
+        for (CompletableFuture<Frame> subscription : subscriptions) {
+            try {
+                if (subscription.get(timeout, TimeUnit.MILLISECONDS).getOpcode() != Frame.STATE_DATA) {
+                    failed++;
+                }
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Runs closed-loop: every player keeps exactly one request outstanding until the time is up
+     * @param seconds how long to run for
+     */
+    public void runClosedLoop(int seconds) {
+        running = true;
+        for (SimulatedPlayer player : players) {
+            sendNext(player);
+        }
+        sleep(TimeUnit.SECONDS.toNanos(seconds));
+        running = false;
+    }
+
+    /**
+     * Sends the next request of a closed-loop player, and again once it is answered
+     * @param player the player
+     */
+    private void sendNext(SimulatedPlayer player) {
+        if (running) {
+            send(player, System.nanoTime()).whenComplete((reply, error) -> {
+                if (error == null || error instanceof TimeoutException) {
+                    sendNext(player); // a client that failed outright stops its players
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs open-loop: sends requests at a fixed rate, taking turns between the players, whether or
+     * not earlier requests were answered
+     * @param seconds how long to run for
+     * @param rate requests to send per second
+     */
+    public void runOpenLoop(int seconds, int rate) {
+        running = true;
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (long i = 0; ; i++) {
+            long due = start + i * period;
+            if (due >= end) {
+                break;
+            }
+            sleep(due - System.nanoTime());
+            send(players.get((int) (i % players.size())), due);
+        }
+        running = false;
+    }
+
+    /**
+     * Sends one request picked from the mix on behalf of a player and records how it went
+     * @param player the player
+     * @param due when the request was meant to be sent, which latency is measured from
+     * @return completes once the request is answered, failed or timed out
+     */
+    private CompletableFuture<Frame> send(SimulatedPlayer player, long due) {
+        Frame request = nextRequest(player);
+        byte opcode = request.getOpcode();
+        sent.incrementAndGet();
+        return player.client.rpc_send_async(request)
+                .whenComplete((reply, error) -> {
+                    if (error instanceof TimeoutException) { // counted apart, not in the latencies
+                        timeouts.incrementAndGet();
+                        return;
+                    }
+                    if (error != null || !answers(opcode, reply)) {
+                        errors.incrementAndGet();
+                        return;
+                    }
+                    latency.record(System.nanoTime() - due);
+                    completed.incrementAndGet();
+                    if (opcode == Frame.STATE) {
+                        player.version = version(reply.getText(), player.version);
+                    }
+                });
+    }
+
+    /**
+     * Picks the next request of a player from the mix
+     * @param player the player
+     * @return the request, reused by the player's next request
+     */
+    private Frame nextRequest(SimulatedPlayer player) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(mix[mix.length - 1]);
+        Frame request = player.request;
+        if (pick < mix[0]) {
+            request.reset(Frame.JOIN);
+            request.setText("Bot");
+        } else if (pick < mix[1]) {
+            request.reset(Frame.MOVE);
+            request.setPlayerId(player.playerId);
+            request.setDx(random.nextInt(3) - 1);
+            request.setDy(random.nextInt(3) - 1);
+        } else if (pick < mix[2]) {
+            request.reset(Frame.PICKUP);
+            request.setPlayerId(player.playerId);
+            request.setLootId(200 + random.nextInt(2));
+        } else {
+            request.reset(Frame.STATE);
+            request.setPlayerId(player.playerId); // only what is near the player, if the server is told to
+            request.setSince(player.version); // only what changed since the player last looked
+        }
+        return request;
+    }
+
+    /**
+     * Checks whether a reply is a proper answer to a request
+     * @param opcode the opcode of the request
+     * @param reply the reply
+     * @return if the reply answers the request
+     */
+    private static boolean answers(byte opcode, Frame reply) {
+        return switch (opcode) {
+            case Frame.JOIN -> reply.getOpcode() == Frame.JOINED;
+            case Frame.MOVE -> reply.getOpcode() == Frame.MOVE_OK;
+            case Frame.PICKUP -> reply.getOpcode() == Frame.PICKUP_OK || reply.getOpcode() == Frame.PICKUP_FAIL;
+            case Frame.STATE -> reply.getOpcode() == Frame.STATE_DATA;
+            default -> false;
+        };
+    }
+
+    /**
+     * Reads the version a snapshot or delta brings the player up to
+     * @param snapshot the STATE_DATA text, starting with VERSION=
+     * @param previous the version to keep if the text has none
+     * @return the version
+     */
+    private static long version(String snapshot, long previous) {
+        if (snapshot == null || !snapshot.startsWith("VERSION=")) {
+            return previous;
+        }
+        int end = snapshot.indexOf(';');
+        return Long.parseLong(snapshot.substring("VERSION=".length(), end < 0 ? snapshot.length() : end));
+    }
+
+    /**
+     * Waits for requests still outstanding to be answered or time out
+     */
+    public void drain() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout * 2);
+        while (completed.get() + errors.get() + timeouts.get() < sent.get() && System.nanoTime() < deadline) {
+            sleep(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    /**
+     * Prints what was sent, how much of it was answered and how quickly
+     * @param out where to print
+     * @param seconds how long the load ran for
+     */
+    public void report(PrintStream out, int seconds) {
+        out.printf("  requests:   sent %d, completed %d, errors %d, timeouts %d%n",
+                sent.get(), completed.get(), errors.get(), timeouts.get());
+        out.printf("  throughput: %.1f requests/s%n", (double) completed.get() / seconds);
+        out.printf("  latency ms: mean %.3f  p50 %.3f  p99 %.3f  p999 %.3f  max %.3f%n",
+                latency.getMean() / 1e6, latency.percentile(50) / 1e6, latency.percentile(99) / 1e6,
+                latency.percentile(99.9) / 1e6, latency.getMax() / 1e6);
+        if (updates.get() > 0) {
+            out.printf("  pushed:     %d updates, %.1f per client per second%n", updates.get(),
+                    (double) updates.get() / clients.size() / seconds);
+        }
+    }
+
+    /**
+     * Waits for a number of nanoseconds, returning straight away if it is not positive
+     * @param nanos how long to wait
+     */
+    private static void sleep(long nanos) {
+        long end = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = end - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /**
+     * Main method
+     * @param args see the usage in the class comment
+     */
+    public static void main(String[] args) {
+        String host = "localhost";
+        int port = 5000;
+        int playerCount = 1000;
+        int clientCount = 16;
+        int window = 32;
+        boolean openLoop = false;
+        int rate = 5000;
+        int seconds = 10;
+        int[] mix = {0, 70, 10, 20};
+        long timeout = 2000;
+        int matches = 0;
+        boolean subscribe = false;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host" -> host = value;
+                case "--port" -> port = Integer.parseInt(value);
+                case "--players" -> playerCount = Integer.parseInt(value);
+                case "--clients" -> clientCount = Integer.parseInt(value);
+                case "--window" -> window = Integer.parseInt(value);
+                case "--mode" -> openLoop = value.equalsIgnoreCase("open");
+                case "--rate" -> rate = Integer.parseInt(value);
+                case "--duration" -> seconds = Integer.parseInt(value);
+                case "--timeout" -> timeout = Long.parseLong(value);
+                case "--matches" -> matches = Integer.parseInt(value);
+                case "--subscribe" -> subscribe = value.equalsIgnoreCase("on");
+                case "--mix" -> {
+                    String[] weights = value.split(",");
+                    for (int w = 0; w < mix.length; w++) {
+                        mix[w] = w < weights.length ? Integer.parseInt(weights[w].trim()) : 0;
+                    }
+                }
+                default -> System.out.println("Ignoring unknown option " + args[i]);
+            }
+        }
+
+        // the clients log every request, which would drown out the report and slow the load down
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        LoadGenerator generator = new LoadGenerator(host, port, clientCount, window, mix, timeout);
+        console.printf("Joining %d players over %d clients...%n", playerCount, clientCount);
+        int failed = generator.join(playerCount, matches);
+        if (failed > 0) {
+            console.printf("%d players did not manage to join%n", failed);
+        }
+        if (subscribe && generator.subscribe() > 0) {
+            console.println("Some clients did not manage to subscribe");
+        }
+
+        console.printf("Running %s loop for %d s%s, mix JOIN/MOVE/PICKUP/STATE = %d/%d/%d/%d%n",
+                openLoop ? "open" : "closed", seconds, openLoop ? " at " + rate + " requests/s" : "",
+                mix[0], mix[1], mix[2], mix[3]);
+        if (openLoop) {
+            generator.runOpenLoop(seconds, rate);
+        } else {
+            generator.runClosedLoop(seconds);
+        }
+        generator.drain();
+        generator.report(console, seconds);
+        System.exit(0);
+    }
+}
+
+/**
+ * One player driven by the LoadGenerator
+ */
+class SimulatedPlayer {
+    final Client client;
+    final Frame request = new Frame(); // reused, the client copies every request it is given
+    volatile int playerId;
+    volatile long version; // the latest version this player has seen, for delta snapshots
+
+    /**
+     * Constructor for a player that has not joined yet
+     * @param client the client the player's requests go through
+     */
+    SimulatedPlayer(Client client) {
+        this.client = client;
+    }
+}
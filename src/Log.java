@@ -0,0 +1,256 @@
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Logging that stays off the packet path. A message below the current level is dropped before
+ * anything is built. One at or above it is stored unformatted, as its template and arguments, in
+ * a preallocated ring buffer, and a background writer thread formats and prints it. Callers never
+ * wait for the console.
+ *
+ * The level comes from the log.level system property (DEBUG, INFO, WARN, ERROR or OFF) and is INFO
+ * by default, which leaves out the per-packet DEBUG messages. For example:
+ * <pre>
+ * java -Dlog.level=DEBUG Host
+ * </pre>
+ *
+ * Templates use {} for each argument. Arguments are formatted later on the writer thread, so they
+ * must not change afterwards: pass numbers, strings and addresses, and call toString on reused
+ * objects such as frames first. Around an argument that is costly to build, check
+ * isDebugEnabled first, or pass a Supplier. If the ring buffer is full, messages are dropped
+ * rather than making the caller wait, and the writer reports how many were lost.
+ */
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    public static final int RING_SIZE = 8192; // messages waiting for the writer, a power of two
+    public static final long WRITER_PAUSE = 1; // ms the writer sleeps when it finds nothing to print
+
+    private static final Entry[] ring = new Entry[RING_SIZE];
+    private static final AtomicLong claimed = new AtomicLong(); // next sequence number a caller takes
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Object drainLock = new Object(); // held by whoever prints, the writer or a flush
+    private static volatile long drained; // every message before this sequence number has been printed
+    private static volatile Level level = parseLevel(System.getProperty("log.level", "INFO"));
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Entry(i - RING_SIZE); // no slot holds a message yet
+        }
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush")); // print what is left on exit
+    }
+
+    /**
+     * Gets the lowest level messages are printed at
+     * @return the level
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the lowest level messages are printed at
+     * @param level the level
+     */
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * Checks whether messages of a level are printed
+     * @param messageLevel the level of the message
+     * @return if the message would be printed
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    /**
+     * Checks whether DEBUG messages are printed, to guard building arguments on the packet path
+     * @return if DEBUG messages would be printed
+     */
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    /**
+     * Logs a message at DEBUG, such as one per packet
+     * @param template the message, with {} for each argument
+     * @param args the arguments
+     */
+    public static void debug(String template, Object... args) {
+        log(Level.DEBUG, template, args);
+    }
+
+    /**
+     * Logs a message at DEBUG that is only built if it will be printed
+     * @param message builds the message
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get(), (Object[]) null);
+        }
+    }
+
+    /**
+     * Logs a message at INFO, such as starting up or a session ending
+     * @param template the message, with {} for each argument
+     * @param args the arguments
+     */
+    public static void info(String template, Object... args) {
+        log(Level.INFO, template, args);
+    }
+
+    /**
+     * Logs a message at WARN, such as a packet that had to be dropped
+     * @param template the message, with {} for each argument
+     * @param args the arguments
+     */
+    public static void warn(String template, Object... args) {
+        log(Level.WARN, template, args);
+    }
+
+    /**
+     * Logs a message at ERROR
+     * @param template the message, with {} for each argument
+     * @param args the arguments
+     */
+    public static void error(String template, Object... args) {
+        log(Level.ERROR, template, args);
+    }
+
+    /**
+     * Prints every message logged so far before returning
+     */
+    public static void flush() {
+        synchronized (drainLock) {
+            drain();
+        }
+    }
+
+    /**
+     * Puts a message into the ring buffer for the writer, or drops it if the buffer is full
+     * @param messageLevel the level of the message
+     * @param template the message, with {} for each argument
+     * @param args the arguments, or null
+     */
+    private static void log(Level messageLevel, String template, Object[] args) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - drained >= RING_SIZE) {
+                dropped.incrementAndGet(); // the writer is behind, the caller does not wait for it
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Entry entry = ring[(int) (seq & (RING_SIZE - 1))];
+        entry.template = template;
+        entry.args = args;
+        entry.published = seq; // the writer may read the slot from now on
+    }
+
+    /**
+     * Runs on the writer thread: prints messages as they are published, pausing when there are none
+     */
+    private static void write() {
+        while (true) {
+            boolean printed;
+            synchronized (drainLock) {
+                printed = drain();
+            }
+            if (!printed) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WRITER_PAUSE));
+            }
+        }
+    }
+
+    /**
+     * Prints every message published in order so far, while holding the drain lock
+     * @return if anything was printed
+     */
+    private static boolean drain() {
+        PrintStream out = System.out; // looked up each time, so redirecting System.out still works
+        StringBuilder sb = new StringBuilder();
+        long first = drained;
+        long next = first;
+        while (true) {
+            Entry entry = ring[(int) (next & (RING_SIZE - 1))];
+            if (entry.published != next) {
+                break; // not written yet
+            }
+            sb.setLength(0);
+            format(sb, entry.template, entry.args);
+            entry.template = null;
+            entry.args = null;
+            next++;
+            drained = next; // the slot can be reused
+            out.println(sb);
+        }
+
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.println("[Log] Dropped " + lost + " messages, the writer fell behind");
+        }
+        return lost > 0 || next > first;
+    }
+
+    /**
+     * Fills the arguments into a template
+     * @param sb where the message is built
+     * @param template the message, with {} for each argument
+     * @param args the arguments, or null
+     */
+    private static void format(StringBuilder sb, String template, Object[] args) {
+        int from = 0;
+        int arg = 0;
+        while (args != null && arg < args.length) {
+            int at = template.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            sb.append(template, from, at).append(args[arg++]);
+            from = at + 2;
+        }
+        sb.append(template, from, template.length());
+    }
+
+    /**
+     * Reads a level from its name
+     * @param name the name, in any case
+     * @return the level, or INFO if the name is not a level
+     */
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: Unknown log level " + name + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * A slot of the ring buffer, reused by one message after another
+     */
+    private static class Entry {
+        private volatile long published; // sequence number of the message in the slot
+        private String template;
+        private Object[] args;
+
+        /**
+         * Constructor for an empty slot
+         * @param published a sequence number no message will have in this slot
+         */
+        Entry(long published) {
+            this.published = published;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * The registry of the kinds of item a loot box can hold, and what picking each one up does.
+ *
+ * Every GameState's dictionary starts with the names of these types, in this order, so the label
+ * id of a loot box is the ordinal of its type and game rules look the type up by that id instead
+ * of comparing names.
+ */
+public enum LootType {
+    HEALTH_PACK("HealthPack", 20),
+    AMMO("Ammo", 0);
+
+    private static final LootType[] TYPES = values();
+
+    /** The name the type is serialized as. */
+    private final String name;
+
+    /** How much health picking it up gives. */
+    private final int healing;
+
+    /**
+     * Constructs a loot type.
+     *
+     * @param name    The name the type is serialized as.
+     * @param healing How much health picking it up gives.
+     */
+    LootType(String name, int healing) {
+        this.name = name;
+        this.healing = healing;
+    }
+
+    /**
+     * Creates a dictionary that starts with every loot type, so each one's id is its ordinal.
+     *
+     * @return The dictionary.
+     */
+    public static StringDictionary newDictionary() {
+        StringDictionary dictionary = new StringDictionary();
+        for (LootType type : TYPES) {
+            dictionary.intern(type.name);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Finds the type of a loot box by its label id, in a dictionary made by newDictionary.
+     *
+     * @param labelId The label id of the loot box.
+     * @return The type, or null if the label is not one of the registered types.
+     */
+    public static LootType of(int labelId) {
+        return labelId >= 0 && labelId < TYPES.length ? TYPES[labelId] : null;
+    }
+
+    /**
+     * Gets the name the type is serialized as.
+     *
+     * @return The name, such as HealthPack.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets how much health picking up a loot box of this type gives.
+     *
+     * @return The health gained, 0 if none.
+     */
+    public int getHealing() {
+        return healing;
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * One match run by a MatchRegistry: its own game, and the lane its requests are processed on
+ */
+public class Match {
+    final int id;
+    final int laneIndex;
+    private final ExecutorService lane;
+    private final GameState gameState = new GameState();
+    final Set<Integer> sessions = new HashSet<>(); // sessions playing in the match
+    int players; // players that joined, including those whose session moved on
+    long lastActivity; // when the latest request for the match arrived
+    boolean finished;
+
+    /**
+     * Constructor for a new match with a fresh game
+     * @param id the id of the match
+     * @param laneIndex the index of the lane it is pinned to
+     * @param lane the single thread its requests are processed on
+     */
+    Match(int id, int laneIndex, ExecutorService lane) {
+        this.id = id;
+        this.laneIndex = laneIndex;
+        this.lane = lane;
+    }
+
+    /**
+     * Gets the id of the match
+     * @return the match id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the game of the match, only to be used on its lane
+     * @return the game state
+     */
+    public GameState getGameState() {
+        return gameState;
+    }
+
+    /**
+     * Gets the single thread the match's requests are processed on
+     * @return the lane
+     */
+    public ExecutorService getLane() {
+        return lane;
+    }
+}
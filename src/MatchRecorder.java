@@ -0,0 +1,274 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Records the commands a Server applies to its GameState into a compact file, so MatchReplay can
+ * feed a real match back into a fresh GameState later. Use it to profile changes to GameState on
+ * a realistic workload, and to check that they still end in the same state.
+ *
+ * The file starts with a GameSnapshot of the game when recording began. Then comes one record per
+ * JOIN, MOVE, PICKUP and STATE: its opcode, the microseconds since the previous record, its
+ * arguments and its outcome, such as the id a JOIN got or whether a PICKUP succeeded. On a shard,
+ * players handed over to it are HANDOFF records and players handed over to another shard are
+ * RELEASE records. Numbers are varints. Closing the recorder adds an end record with the version and stateHash of the game.
+ *
+ * Changes to the game are applied and recorded under the recorder's monitor, so the file holds
+ * them in the order they were really applied, and replaying it is deterministic. While recording,
+ * the workers and the tick thread therefore take turns at changing the game. STATE requests are
+ * still served in parallel.
+ */
+public class MatchRecorder {
+    public static final int MAGIC = 0x42525231; // "BRR1", the start of every recording
+    public static final byte END = 0; // opcode of the record closing the file, the others are Frame opcodes
+    public static final byte RELEASE = 64; // opcode of a player handed over to another shard
+
+    private final GameState gameState;
+    private final DataOutputStream out;
+    private long last = System.nanoTime(); // when the previous record was written
+    private boolean closed;
+
+    /**
+     * Constructor for a recorder, which writes the current game as the start of the recording
+     * @param file the file to record to, replaced if it exists
+     * @param gameState the game being recorded
+     * @throws IOException if the file cannot be written
+     */
+    public MatchRecorder(Path file, GameState gameState) throws IOException {
+        this.gameState = gameState;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        gameState.takeSnapshot().writeTo(out);
+    }
+
+    /**
+     * Executes a request and records it. Changes to the game are executed and recorded as one step
+     * @param request the request
+     * @param response the frame the response is written into
+     * @param execute processes the request
+     */
+    public void process(Frame request, Frame response, BiConsumer<Frame, Frame> execute) {
+        switch (request.getOpcode()) {
+            case Frame.JOIN, Frame.MOVE, Frame.PICKUP, Frame.HANDOFF -> {
+                synchronized (this) {
+                    execute.accept(request, response);
+                    record(request, response);
+                }
+            }
+            case Frame.STATE -> {
+                execute.accept(request, response);
+                synchronized (this) {
+                    record(request, response);
+                }
+            }
+            default -> execute.accept(request, response); // does not touch the game
+        }
+    }
+
+    /**
+     * Records a move applied by the TickEngine. Called while holding this recorder's monitor
+     * @param playerId the id of the player
+     * @param dx the change in x
+     * @param dy the change in y
+     */
+    public synchronized void recordMove(int playerId, int dx, int dy) {
+        if (startRecord(Frame.MOVE)) {
+            writeMove(playerId, dx, dy);
+        }
+    }
+
+    /**
+     * Records a pickup applied by the TickEngine. Called while holding this recorder's monitor
+     * @param playerId the id of the player
+     * @param lootId the id of the loot box
+     * @param picked if the pickup succeeded
+     */
+    public synchronized void recordPickup(int playerId, int lootId, boolean picked) {
+        if (startRecord(Frame.PICKUP)) {
+            writePickup(playerId, lootId, picked);
+        }
+    }
+
+    /**
+     * Records a player handed over to another shard. Called while holding this recorder's monitor,
+     * together with the release itself
+     * @param playerId the id of the player
+     */
+    public synchronized void recordRelease(int playerId) {
+        if (startRecord(RELEASE)) {
+            try {
+                writeVarLong(out, playerId);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Ends the recording with the version and hash of the game, and closes the file. Nothing is
+     * recorded afterwards
+     */
+    public synchronized void close() {
+        if (!startRecord(END)) {
+            return;
+        }
+        try {
+            out.writeLong(gameState.getVersion());
+            out.writeLong(gameState.stateHash());
+            out.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+        closed = true;
+    }
+
+    /**
+     * Records a request along with its outcome, while holding the monitor
+     * @param request the request
+     * @param response the response it got
+     */
+    private void record(Frame request, Frame response) {
+        if (!startRecord(request.getOpcode())) {
+            return;
+        }
+        try {
+            switch (request.getOpcode()) {
+                case Frame.JOIN -> {
+                    writeVarLong(out, response.getPlayerId());
+                    out.writeUTF(request.getText() == null ? "" : request.getText());
+                }
+                case Frame.MOVE -> writeMove(request.getPlayerId(), request.getDx(), request.getDy());
+                case Frame.PICKUP -> writePickup(request.getPlayerId(), request.getLootId(),
+                        response.getOpcode() == Frame.PICKUP_OK);
+                case Frame.HANDOFF -> {
+                    writeVarLong(out, request.getPlayerId());
+                    writeVarLong(out, zigzag(request.getX()));
+                    writeVarLong(out, zigzag(request.getY()));
+                    writeVarLong(out, zigzag(request.getHealth()));
+                    out.writeUTF(request.getText() == null ? "" : request.getText());
+                }
+                default -> writeVarLong(out, request.getSince()); // STATE
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Starts a record with its opcode and the time since the previous one
+     * @param opcode the opcode of the record
+     * @return false if the recording is closed or failed
+     */
+    private boolean startRecord(byte opcode) {
+        if (closed) {
+            return false;
+        }
+        long now = System.nanoTime();
+        try {
+            out.writeByte(opcode);
+            writeVarLong(out, TimeUnit.NANOSECONDS.toMicros(now - last));
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+        last = now;
+        return true;
+    }
+
+    /**
+     * Writes the arguments of a move
+     * @param playerId the id of the player
+     * @param dx the change in x
+     * @param dy the change in y
+     */
+    private void writeMove(int playerId, int dx, int dy) {
+        try {
+            writeVarLong(out, playerId);
+            writeVarLong(out, zigzag(dx));
+            writeVarLong(out, zigzag(dy));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the arguments and outcome of a pickup
+     * @param playerId the id of the player
+     * @param lootId the id of the loot box
+     * @param picked if the pickup succeeded
+     */
+    private void writePickup(int playerId, int lootId, boolean picked) {
+        try {
+            writeVarLong(out, playerId);
+            writeVarLong(out, lootId);
+            out.writeBoolean(picked);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops recording after the file could not be written. The server carries on without it
+     * @param e what went wrong
+     */
+    private void fail(IOException e) {
+        Log.warn("ERROR: Stopped recording the match: {}", e.getMessage());
+        closed = true;
+    }
+
+    /**
+     * Maps a signed number to an unsigned one, so small negative numbers stay short as varints
+     * @param value the number
+     * @return the mapped number
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Undoes zigzag
+     * @param value the mapped number
+     * @return the signed number
+     */
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes a number as a varint: seven bits per byte, lowest first, with the top bit set on every
+     * byte but the last
+     * @param out where to write
+     * @param value the number, treated as unsigned
+     * @throws IOException if writing fails
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a varint written by writeVarLong
+     * @param in where to read from
+     * @return the number
+     * @throws IOException if reading fails
+     */
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Runs many independent matches on one Server, each with a GameState of its own. A JOIN names the
+ * match to join, or 0 to be matched: it then joins the newest match that still has room for
+ * another player, or opens a new one. A session plays in the match it joined until it joins
+ * another one or quits.
+ *
+ * Every match is pinned to one of a fixed number of lanes, each a single thread, picking the lane
+ * with the fewest matches. A match's requests are only ever processed on its lane, so matches never
+ * contend with each other for locks, and a lane's matches take turns at its thread.
+ *
+ * A match is finished once every session in it has quit, or nothing happened in it for
+ * IDLE_TIMEOUT, and is then reclaimed. Only used from the Server's receiving thread, except for
+ * the lanes themselves.
+ */
+public class MatchRegistry {
+    public static final int MATCH_SIZE = 16; // players matchmaking puts in a match unless another size is given
+    public static final long IDLE_TIMEOUT = 60_000; // ms without a request before a match is reclaimed
+    public static final long RECLAIM_INTERVAL = 1_000; // ms between looks for idle matches
+
+    private final ExecutorService[] lanes;
+    private final int[] laneMatches; // how many matches each lane runs
+    private final int matchSize;
+    private final Map<Integer, Match> matches = new HashMap<>(); // match id -> match
+    private final Map<Integer, Match> sessions = new HashMap<>(); // session id -> the match it plays in
+    private Match open; // the match matchmaking fills next, null if it is full or finished
+    private int nextMatchId = 1;
+    private long nextReclaim;
+    private long reclaimed;
+    private Consumer<Match> finishListener = match -> { }; // told about every match that finishes
+
+    /**
+     * Constructor for a registry with no matches yet
+     * @param lanes how many threads the matches are spread over, usually one per core
+     * @param matchSize how many players matchmaking puts in a match
+     */
+    public MatchRegistry(int lanes, int matchSize) {
+        this.lanes = new ExecutorService[lanes];
+        this.laneMatches = new int[lanes];
+        this.matchSize = matchSize;
+        for (int i = 0; i < lanes; i++) {
+            int lane = i;
+            this.lanes[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "match-lane-" + lane);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Sets what to tell about every match that finishes, to release what else is kept for it
+     * @param finishListener called with each match as it is reclaimed
+     */
+    public void setFinishListener(Consumer<Match> finishListener) {
+        this.finishListener = finishListener;
+    }
+
+    /**
+     * Finds or opens the match a JOIN goes to, and moves the session into it
+     * @param sessionId the session of the JOIN
+     * @param matchId the match asked for, or 0 to stay in the session's match or be matched
+     * @param now the current time in ms
+     * @return the match the player joins
+     */
+    public Match join(int sessionId, int matchId, long now) {
+        Match match;
+        if (matchId > 0) {
+            match = matches.get(matchId);
+            if (match == null) {
+                match = open(matchId); // asked for by id, so friends can meet in it
+            }
+        } else {
+            match = sessions.get(sessionId); // another player from the same session
+            if (match == null) {
+                if (open == null || open.players >= matchSize || open.finished) {
+                    open = open(nextFreeId());
+                }
+                match = open;
+            }
+        }
+        Match previous = sessions.put(sessionId, match);
+        if (previous != match) {
+            if (previous != null) {
+                previous.sessions.remove(sessionId);
+            }
+            match.sessions.add(sessionId);
+        }
+        match.players++;
+        match.lastActivity = now;
+        return match;
+    }
+
+    /**
+     * Finds the match a session plays in
+     * @param sessionId the session
+     * @param now the current time in ms, which keeps the match from being reclaimed
+     * @return the match, or null if the session has not joined one
+     */
+    public Match matchOf(int sessionId, long now) {
+        Match match = sessions.get(sessionId);
+        if (match != null) {
+            match.lastActivity = now;
+        }
+        return match;
+    }
+
+    /**
+     * Takes a session out of its match, reclaiming the match if it was the last one in it
+     * @param sessionId the session that quit
+     */
+    public void leave(int sessionId) {
+        Match match = sessions.remove(sessionId);
+        if (match != null) {
+            match.sessions.remove(sessionId);
+            if (match.sessions.isEmpty()) {
+                reclaim(match);
+            }
+        }
+    }
+
+    /**
+     * Reclaims every match nothing happened in for IDLE_TIMEOUT, at most once every RECLAIM_INTERVAL
+     * @param now the current time in ms
+     */
+    public void reclaimIdle(long now) {
+        if (now < nextReclaim) {
+            return;
+        }
+        nextReclaim = now + RECLAIM_INTERVAL;
+        Iterator<Match> it = matches.values().iterator();
+        while (it.hasNext()) {
+            Match match = it.next();
+            if (now - match.lastActivity >= IDLE_TIMEOUT) {
+                it.remove();
+                finish(match);
+            }
+        }
+    }
+
+    /**
+     * Gets how many matches are running
+     * @return the number of matches
+     */
+    public int size() {
+        return matches.size();
+    }
+
+    /**
+     * Gets how many matches have finished and been reclaimed
+     * @return the number of reclaimed matches
+     */
+    public long getReclaimed() {
+        return reclaimed;
+    }
+
+    /**
+     * Stops every lane once its current request is done
+     */
+    public void stop() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    /**
+     * Opens a new match on the lane running the fewest matches
+     * @param matchId the id of the match
+     * @return the match
+     */
+    private Match open(int matchId) {
+        int lane = 0;
+        for (int i = 1; i < lanes.length; i++) {
+            if (laneMatches[i] < laneMatches[lane]) {
+                lane = i;
+            }
+        }
+        laneMatches[lane]++;
+        Match match = new Match(matchId, lane, lanes[lane]);
+        matches.put(matchId, match);
+        Log.info("[Server] Opened match {} on lane {}", matchId, lane);
+        return match;
+    }
+
+    /**
+     * Finds the next match id nobody has asked for by id yet
+     * @return the id
+     */
+    private int nextFreeId() {
+        while (matches.containsKey(nextMatchId)) {
+            nextMatchId++;
+        }
+        return nextMatchId++;
+    }
+
+    /**
+     * Reclaims a finished match
+     * @param match the match
+     */
+    private void reclaim(Match match) {
+        matches.remove(match.id);
+        finish(match);
+    }
+
+    /**
+     * Releases what a match holds once it is no longer registered. Requests of it already queued on its
+     * lane still run, but nothing new reaches it
+     * @param match the match
+     */
+    private void finish(Match match) {
+        match.finished = true;
+        for (int sessionId : match.sessions) {
+            sessions.remove(sessionId, match);
+        }
+        match.sessions.clear();
+        laneMatches[match.laneIndex]--;
+        if (open == match) {
+            open = null;
+        }
+        reclaimed++;
+        finishListener.accept(match);
+        Log.info("[Server] Reclaimed match {} after {} players", match.id, match.players);
+    }
+}
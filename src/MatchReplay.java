@@ -0,0 +1,288 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a match recorded by a MatchRecorder back into a fresh GameState, with no networking. The
+ * recording is read into memory before the clock starts, so only GameState is measured. It runs
+ * as fast as possible, or at the speed it was recorded at.
+ *
+ * Each JOIN and PICKUP is checked against the outcome it had in the recording, and the final
+ * stateHash and version against the ones the recording ended with. A difference means GameState
+ * behaves differently from the server that recorded the match. Repeating the replay gives a
+ * profiler a steady, realistic workload.
+ *
+ * Usage: java MatchReplay recording.bin [--speed max|recorded] [--repeat 1]
+ */
+public class MatchReplay {
+    private final GameSnapshot start;
+
+    // the recorded commands as parallel columns, read once
+    private byte[] opcodes = new byte[1024];
+    private long[] times = new long[1024]; // ns since the recording started
+    private int[] playerIds = new int[1024];
+    private int[] firsts = new int[1024]; // dx, the loot id, or x
+    private int[] seconds = new int[1024]; // dy, 1 if the pickup succeeded, or y
+    private long[] sinces = new long[1024]; // since, or the health of a player handed over
+    private String[] names = new String[1024];
+    private int count;
+
+    private final int[] counts = new int[MatchRecorder.RELEASE + 1]; // commands per opcode
+    private boolean ended; // if the recording has its end record
+    private long finalVersion;
+    private long finalHash;
+
+    /**
+     * Constructor for a replay, which reads the whole recording
+     * @param file the recording
+     * @throws IOException if the file cannot be read or is not a recording
+     */
+    public MatchReplay(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MatchRecorder.MAGIC) {
+                throw new IOException(file + " is not a match recording");
+            }
+            start = GameSnapshot.readFrom(in);
+            long time = 0;
+            try {
+                while (true) {
+                    byte opcode = in.readByte();
+                    time += TimeUnit.MICROSECONDS.toNanos(MatchRecorder.readVarLong(in));
+                    if (opcode == MatchRecorder.END) {
+                        finalVersion = in.readLong();
+                        finalHash = in.readLong();
+                        ended = true;
+                        break;
+                    }
+                    read(in, opcode, time);
+                }
+            } catch (EOFException e) {
+                // the server stopped without closing the recording, so there is nothing to compare at the end
+            }
+        }
+    }
+
+    /**
+     * Reads one command into the columns
+     * @param in where to read from
+     * @param opcode the opcode of the command
+     * @param time ns since the recording started
+     * @throws IOException if reading fails or the opcode is not recorded
+     */
+    private void read(DataInputStream in, byte opcode, long time) throws IOException {
+        if (count == opcodes.length) {
+            grow();
+        }
+        int i = count;
+        switch (opcode) {
+            case Frame.JOIN -> {
+                playerIds[i] = (int) MatchRecorder.readVarLong(in);
+                names[i] = in.readUTF();
+            }
+            case Frame.MOVE -> {
+                playerIds[i] = (int) MatchRecorder.readVarLong(in);
+                firsts[i] = (int) MatchRecorder.unzigzag(MatchRecorder.readVarLong(in));
+                seconds[i] = (int) MatchRecorder.unzigzag(MatchRecorder.readVarLong(in));
+            }
+            case Frame.PICKUP -> {
+                playerIds[i] = (int) MatchRecorder.readVarLong(in);
+                firsts[i] = (int) MatchRecorder.readVarLong(in);
+                seconds[i] = in.readBoolean() ? 1 : 0;
+            }
+            case Frame.STATE -> sinces[i] = MatchRecorder.readVarLong(in);
+            case Frame.HANDOFF -> {
+                playerIds[i] = (int) MatchRecorder.readVarLong(in);
+                firsts[i] = (int) MatchRecorder.unzigzag(MatchRecorder.readVarLong(in));
+                seconds[i] = (int) MatchRecorder.unzigzag(MatchRecorder.readVarLong(in));
+                sinces[i] = MatchRecorder.unzigzag(MatchRecorder.readVarLong(in));
+                names[i] = in.readUTF();
+            }
+            case MatchRecorder.RELEASE -> playerIds[i] = (int) MatchRecorder.readVarLong(in);
+            default -> throw new IOException("Unknown record " + opcode + " after " + count + " commands");
+        }
+        opcodes[i] = opcode;
+        times[i] = time;
+        counts[opcode]++;
+        count++;
+    }
+
+    /**
+     * Doubles the capacity of every column
+     */
+    private void grow() {
+        int capacity = opcodes.length * 2;
+        opcodes = Arrays.copyOf(opcodes, capacity);
+        times = Arrays.copyOf(times, capacity);
+        playerIds = Arrays.copyOf(playerIds, capacity);
+        firsts = Arrays.copyOf(firsts, capacity);
+        seconds = Arrays.copyOf(seconds, capacity);
+        sinces = Arrays.copyOf(sinces, capacity);
+        names = Arrays.copyOf(names, capacity);
+    }
+
+    /**
+     * Plays the recording into a fresh game state and checks it against the recorded outcomes
+     * @param recordedSpeed if each command waits until its recorded time, otherwise they run back to back
+     * @return the outcome of the replay
+     */
+    public Result replay(boolean recordedSpeed) {
+        GameState gameState = new GameState(start);
+        int mismatches = 0;
+        int firstMismatch = -1;
+        long served = 0; // characters of STATE served, so the JIT cannot skip serializing
+        long begin = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            if (recordedSpeed) {
+                long wait = begin + times[i] - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            boolean matches = true;
+            switch (opcodes[i]) {
+                case Frame.JOIN -> matches = gameState.addNewPlayer(names[i]).getId() == playerIds[i];
+                case Frame.MOVE -> gameState.movePlayer(playerIds[i], firsts[i], seconds[i]);
+                case Frame.PICKUP -> matches = gameState.processPickup(playerIds[i], firsts[i]) == (seconds[i] == 1);
+                case Frame.HANDOFF -> gameState.adoptPlayer(playerIds[i], firsts[i], seconds[i], (int) sinces[i], names[i]);
+                case MatchRecorder.RELEASE -> gameState.releasePlayer(playerIds[i]);
+                default -> served += gameState.serialize(sinces[i]).length(); // STATE
+            }
+            if (!matches) {
+                mismatches++;
+                if (firstMismatch < 0) {
+                    firstMismatch = i;
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - begin;
+        return new Result(gameState, elapsed, mismatches, firstMismatch, served);
+    }
+
+    /**
+     * Describes what the recording holds
+     * @return the description
+     */
+    public String describe() {
+        double duration = count > 0 ? times[count - 1] / (double) TimeUnit.SECONDS.toNanos(1) : 0;
+        String handoffs = start.getShards() == 1 ? "" : String.format(", HANDOFF %d, RELEASE %d",
+                counts[Frame.HANDOFF], counts[MatchRecorder.RELEASE]);
+        return String.format("%d commands over %.1f s (JOIN %d, MOVE %d, PICKUP %d, STATE %d%s), starting from %d players and %d loot boxes",
+                count, duration, counts[Frame.JOIN], counts[Frame.MOVE], counts[Frame.PICKUP], counts[Frame.STATE],
+                handoffs, start.getPlayers().size(), start.getLootBoxes().size());
+    }
+
+    /**
+     * Checks a replay against the end of the recording
+     * @param result the replay
+     * @return a line saying whether the outcomes and the final state match
+     */
+    public String verify(Result result) {
+        StringBuilder sb = new StringBuilder();
+        if (result.mismatches > 0) {
+            sb.append(String.format("MISMATCH: %d commands had a different outcome, the first was command %d (%s). ",
+                    result.mismatches, result.firstMismatch, Frame.opcodeName(opcodes[result.firstMismatch])));
+        }
+        if (!ended) {
+            sb.append("The recording has no end record, so the final state was not checked");
+        } else if (result.gameState.stateHash() != finalHash || result.gameState.getVersion() != finalVersion) {
+            sb.append(String.format("MISMATCH: final state hash %016x at version %d, recorded %016x at version %d",
+                    result.gameState.stateHash(), result.gameState.getVersion(), finalHash, finalVersion));
+        } else {
+            sb.append(String.format("%sfinal state hash %016x at version %d matches the recording",
+                    result.mismatches > 0 ? "but the " : "OK: ", finalHash, finalVersion));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The outcome of one replay
+     */
+    public static class Result {
+        private final GameState gameState;
+        private final long elapsed;
+        private final int mismatches;
+        private final int firstMismatch;
+        private final long served;
+
+        /**
+         * Constructor for the outcome of a replay
+         * @param gameState the game state the replay ended in
+         * @param elapsed ns the replay took
+         * @param mismatches how many commands had a different outcome than recorded
+         * @param firstMismatch the index of the first of them, or -1
+         * @param served characters of STATE served
+         */
+        Result(GameState gameState, long elapsed, int mismatches, int firstMismatch, long served) {
+            this.gameState = gameState;
+            this.elapsed = elapsed;
+            this.mismatches = mismatches;
+            this.firstMismatch = firstMismatch;
+            this.served = served;
+        }
+
+        /**
+         * Checks whether every command had its recorded outcome
+         * @return if none differed
+         */
+        public boolean isConsistent() {
+            return mismatches == 0;
+        }
+
+        /**
+         * Gets how long the replay took
+         * @return the time in ns
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+    }
+
+    /**
+     * Main method
+     * @param args the recording, then --speed max or recorded, and --repeat for how many times to replay it
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java MatchReplay recording.bin [--speed max|recorded] [--repeat 1]");
+            System.exit(1);
+        }
+        boolean recordedSpeed = false;
+        int repeat = 1;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--speed" -> recordedSpeed = args[i + 1].equalsIgnoreCase("recorded");
+                case "--repeat" -> repeat = Integer.parseInt(args[i + 1]);
+                default -> System.out.println("Ignoring unknown option " + args[i]);
+            }
+        }
+
+        MatchReplay replay = null;
+        try {
+            replay = new MatchReplay(Path.of(args[0]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println(replay.describe());
+
+        boolean ok = true;
+        for (int run = 1; run <= repeat; run++) {
+            Result result = replay.replay(recordedSpeed);
+            double seconds = result.elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+            System.out.printf("Replay %d: %.3f s, %.0f commands/s, %.1f ns per command%n", run, seconds,
+                    replay.count / seconds, result.elapsed / (double) Math.max(replay.count, 1));
+            String verdict = replay.verify(result);
+            System.out.println(verdict);
+            ok &= result.isConsistent() && !verdict.startsWith("MISMATCH");
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
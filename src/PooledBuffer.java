@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A direct ByteBuffer borrowed from a BufferPool, with a count of who holds it. The one who
+ * acquires it holds it once. Anyone keeping it past the current call, such as a queue or a
+ * ReliableLink waiting for an acknowledgment, retains it, and everyone releases it when done. The
+ * buffer goes back to the pool when the count reaches 0, and must not be touched after that.
+ */
+public class PooledBuffer {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger();
+    private long timestamp;
+
+    /**
+     * Constructor for a buffer of a pool
+     * @param pool the pool it goes back to
+     * @param size the capacity of the buffer
+     */
+    PooledBuffer(BufferPool pool, int size) {
+        this.pool = pool;
+        this.buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Gets the buffer itself. Its position and limit are shared by everyone holding it
+     * @return the buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Holds the buffer once more, so it stays out of the pool until released again
+     * @return this buffer
+     * @throws IllegalStateException if the buffer was already back in the pool
+     */
+    public PooledBuffer retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Buffer retained after it was released");
+        }
+        return this;
+    }
+
+    /**
+     * Lets go of the buffer once, giving it back to the pool if nobody else holds it
+     * @throws IllegalStateException if the buffer was released more often than it was held
+     */
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            pool.recycle(this);
+        } else if (left < 0) {
+            throw new IllegalStateException("Buffer released more often than it was held");
+        }
+    }
+
+    /**
+     * Gets when the contents of the buffer arrived
+     * @return the time in ns, as set by the receiver
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Sets when the contents of the buffer arrived, so queueing delay can be measured
+     * @param timestamp the time in ns
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Gets the buffer ready to be handed out again, held once and cleared
+     */
+    void reset() {
+        references.set(1);
+        buffer.clear();
+        timestamp = 0;
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Interface for remote procedure calls
  */
@@ -9,4 +11,24 @@ public interface RPCInterface {
      * @return the response
      */
     String rpc_send(String request);
+
+    /**
+     * Typed version of rpc_send that sends and receives binary frames,
+     * skipping the text format entirely
+     * @param request the request from client or server
+     * @return the response
+     */
+    Frame rpc_send(Frame request);
+
+    /**
+     * Asynchronous version of rpc_send that returns as soon as the request is queued, so several
+     * requests can be outstanding at once. Each request is tagged with its own request id and its
+     * response is matched by that id, in whatever order the responses arrive. Implementations that
+     * answer synchronously return an already completed future
+     * @param request the request from client or server, which the caller may reuse straight away
+     * @return the response, once it arrives
+     */
+    default CompletableFuture<Frame> rpc_send_async(Frame request) {
+        return CompletableFuture.completedFuture(rpc_send(request));
+    }
 }
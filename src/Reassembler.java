@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Puts FRAGMENT frames back together into the encoded frame they were split from. Every fragment
+ * is copied once, straight into its place in a single buffer that is reused for every message and
+ * only grows when a bigger message arrives.
+ */
+public class Reassembler {
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final BitSet received = new BitSet();
+    private int messageId; // 0 while no message is being reassembled
+    private int count;
+    private int totalLength;
+
+    /**
+     * Adds a received fragment to the message being reassembled, starting a new message if the
+     * fragment belongs to a different one
+     * @param fragment the FRAGMENT frame, from its position to its limit
+     * @return if the message is now complete
+     */
+    public boolean accept(ByteBuffer fragment) {
+        int start = fragment.position();
+        if (fragment.remaining() < WireCodec.FRAGMENT_HEADER_SIZE) {
+            return false;
+        }
+        int id = fragment.getInt(start + WireCodec.HEADER_SIZE);
+        int index = Short.toUnsignedInt(fragment.getShort(start + WireCodec.HEADER_SIZE + 4));
+        int fragmentCount = Short.toUnsignedInt(fragment.getShort(start + WireCodec.HEADER_SIZE + 6));
+        int length = fragment.getInt(start + WireCodec.HEADER_SIZE + 8);
+
+        if (id != messageId && !begin(id, fragmentCount, length)) {
+            return false; // a length no fragmenter sends, so no buffer is allocated for it
+        }
+        if (index >= count || received.get(index)) {
+            return isComplete(); // out of range or a duplicate
+        }
+
+        // copy the payload straight to where it belongs in the message
+        int payload = fragment.remaining() - WireCodec.FRAGMENT_HEADER_SIZE;
+        int offset = index * WireCodec.FRAGMENT_PAYLOAD;
+        if (offset + payload > totalLength) {
+            return false; // does not match the length the other fragments announced
+        }
+        buffer.put(offset, fragment, start + WireCodec.FRAGMENT_HEADER_SIZE, payload);
+        received.set(index);
+        return isComplete();
+    }
+
+    /**
+     * Starts reassembling a new message, growing the buffer if it is too small. The length comes
+     * from the peer, so a message bigger than Fragmenter.MAX_MESSAGE, or whose fragment count does
+     * not match its length, is rejected before anything is allocated for it
+     * @param id the message id
+     * @param fragmentCount how many fragments the message was split into
+     * @param length the size of the whole message
+     * @return false if the message was rejected, leaving the current one as it was
+     */
+    private boolean begin(int id, int fragmentCount, int length) {
+        if (id == 0 || length <= 0 || length > Fragmenter.MAX_MESSAGE
+                || fragmentCount != Fragmenter.fragmentCount(length)) {
+            return false;
+        }
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.min(Math.max(length, buffer.capacity() * 2), Fragmenter.MAX_MESSAGE));
+        }
+        messageId = id;
+        count = fragmentCount;
+        totalLength = length;
+        received.clear();
+        return true;
+    }
+
+    /**
+     * Checks whether every fragment of the current message has arrived
+     * @return if the message is complete
+     */
+    public boolean isComplete() {
+        return messageId != 0 && received.cardinality() == count;
+    }
+
+    /**
+     * Gets the id of the message being reassembled
+     * @return the message id, or 0 if none
+     */
+    public int getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Finds the next fragment that has not arrived yet
+     * @param from the index to start looking at
+     * @return the index of the missing fragment, or -1 if there are none
+     */
+    public int nextMissing(int from) {
+        int index = received.nextClearBit(from);
+        return index < count ? index : -1;
+    }
+
+    /**
+     * Gets the reassembled message, valid until the next fragment is accepted
+     * @return the encoded frame, from position 0 to its length
+     */
+    public ByteBuffer message() {
+        return buffer.slice(0, totalLength);
+    }
+
+    /**
+     * Forgets the current message, for example after it has been decoded
+     */
+    public void reset() {
+        messageId = 0;
+        count = 0;
+        totalLength = 0;
+        received.clear();
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes frames sent over UDP to one peer arrive, each exactly once. Every frame gets a sequence
+ * number, and every frame going the other way carries what has arrived so far: the highest
+ * sequence number up to which everything arrived (the cumulative ack), plus a bitmap of the 32
+ * sequence numbers after it that arrived out of order (the selective ack). Frames the peer has not
+ * acknowledged within the retransmission timeout are sent again, with the timeout following the
+ * measured round trip time, and frames that arrive twice are only delivered the first time.
+ *
+ * Acknowledgments ride on the next frame sent to the peer. Only when nothing is sent for ACK_DELAY
+ * does a bare ACCEPT frame carry them instead.
+ *
+ * Frames waiting for an acknowledgment or for room in the window are kept in PooledBuffers. A frame
+ * handed over in a PooledBuffer is retained rather than copied, and every frame is released back
+ * to its pool once the peer acknowledges it.
+ *
+ * Not thread-safe. The owner calls poll regularly so timeouts and delayed acknowledgments fire.
+ */
+public class ReliableLink {
+    public static final int WINDOW = 64; // most frames waiting for an acknowledgment, the rest queue
+    public static final long ACK_DELAY = 20; // ms an acknowledgment waits for a frame to ride on
+    public static final long INITIAL_RTO = 200; // ms to wait before the first round trip is measured
+    public static final long MIN_RTO = 20;
+    public static final long MAX_RTO = 2000;
+    public static final int MAX_TRANSMISSIONS = 10; // times a frame is sent before the peer counts as gone
+
+    private final DatagramChannel channel;
+    private final SocketAddress peer;
+    private final BufferPool pool;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(WireCodec.HEADER_SIZE);
+
+    // sending side, frames waiting for an acknowledgment are kept by sequence number modulo WINDOW
+    private final PooledBuffer[] unacked = new PooledBuffer[WINDOW];
+    private final boolean[] inFlight = new boolean[WINDOW];
+    private final long[] sentAt = new long[WINDOW];
+    private final int[] transmissions = new int[WINDOW];
+    private final Deque<PooledBuffer> backlog = new ArrayDeque<>(); // frames waiting for room in the window
+    private int nextSeq = 1;
+    private int ackedThrough; // the peer has every frame up to this sequence number
+    private long smoothedRtt = -1; // ns, -1 until the first round trip is measured
+    private long rttVariance;
+    private long rto = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO);
+    private long retransmissions;
+
+    // receiving side
+    private int receivedThrough; // every frame up to this sequence number arrived
+    private long receivedAhead; // bit i is set if receivedThrough + 1 + i arrived
+    private long ackOwedSince = -1; // when the oldest unsent acknowledgment became due, -1 if none
+
+    /**
+     * Constructor for the link to one peer, with a pool of its own for the frames it keeps
+     * @param channel the channel to send on
+     * @param peer the address and port of the peer
+     */
+    public ReliableLink(DatagramChannel channel, SocketAddress peer) {
+        this(channel, peer, new BufferPool(WireCodec.MAX_DATAGRAM, WINDOW));
+    }
+
+    /**
+     * Constructor for the link to one peer
+     * @param channel the channel to send on, shared with other links
+     * @param peer the address and port of the peer
+     * @param pool the pool frames sent from a plain ByteBuffer are copied into, shared with other links
+     */
+    public ReliableLink(DatagramChannel channel, SocketAddress peer, BufferPool pool) {
+        this.channel = channel;
+        this.peer = peer;
+        this.pool = pool;
+    }
+
+    /**
+     * Sends a frame reliably, or queues it if WINDOW frames are already waiting for an acknowledgment.
+     * The frame is copied into a pooled buffer, since it has to be kept until acknowledged
+     * @param frame the encoded frame, from its position to its limit, which is left untouched
+     * @throws IOException if the channel fails
+     */
+    public void send(ByteBuffer frame) throws IOException {
+        PooledBuffer copy = pool.acquire();
+        copy.buffer().put(frame.duplicate()).flip();
+        send(copy);
+        copy.release();
+    }
+
+    /**
+     * Sends a frame reliably, or queues it if WINDOW frames are already waiting for an acknowledgment.
+     * The buffer is retained rather than copied, and its header is stamped in place, so the caller
+     * must not change it afterwards, only release it
+     * @param frame the encoded frame, from position 0 to its limit
+     * @throws IOException if the channel fails
+     */
+    public void send(PooledBuffer frame) throws IOException {
+        if (!backlog.isEmpty() || nextSeq - ackedThrough > WINDOW) {
+            backlog.add(frame.retain());
+            return;
+        }
+        sendNew(frame);
+    }
+
+    /**
+     * Handles a frame received from the peer: takes note of what it acknowledges and whether it
+     * has been seen before
+     * @param packet the received frame, from position 0 to its limit
+     * @return true if the frame is new and should be delivered, false for a duplicate or a bare ACCEPT
+     * @throws IOException if the channel fails while sending queued frames
+     */
+    public boolean receive(ByteBuffer packet) throws IOException {
+        int seq = packet.getInt(WireCodec.SEQ_OFFSET);
+        acknowledged(packet.getInt(WireCodec.ACK_OFFSET), packet.getInt(WireCodec.ACK_BITS_OFFSET));
+        if (seq <= 0) {
+            return false; // only carried acknowledgments
+        }
+
+        // even a duplicate is acknowledged again, since the peer evidently missed the last one
+        if (ackOwedSince < 0) {
+            ackOwedSince = System.nanoTime();
+        }
+        int ahead = seq - receivedThrough - 1;
+        if (ahead < 0 || ahead >= Long.SIZE || (receivedAhead & (1L << ahead)) != 0) {
+            return false; // already delivered, or further ahead than the peer's window allows
+        }
+        receivedAhead |= 1L << ahead;
+
+        // move the cumulative ack past every frame that has now arrived in order
+        int arrived = Long.numberOfTrailingZeros(~receivedAhead);
+        receivedThrough += arrived;
+        receivedAhead = arrived == Long.SIZE ? 0 : receivedAhead >>> arrived;
+        return true;
+    }
+
+    /**
+     * Sends again every frame whose retransmission timeout expired, and a bare ACCEPT if an
+     * acknowledgment has waited ACK_DELAY without a frame to ride on
+     * @return how many frames were given up on after MAX_TRANSMISSIONS, meaning the peer is gone
+     * @throws IOException if the channel fails
+     */
+    public int poll() throws IOException {
+        long now = System.nanoTime();
+        int abandoned = 0;
+        boolean backedOff = false;
+        for (int seq = ackedThrough + 1; seq < nextSeq; seq++) {
+            int slot = seq % WINDOW;
+            if (!inFlight[slot] || now - sentAt[slot] < rto) {
+                continue;
+            }
+            if (transmissions[slot] >= MAX_TRANSMISSIONS) {
+                forget(slot);
+                abandoned++;
+                continue;
+            }
+            if (!backedOff) { // back off once per timeout, not once per frame
+                rto = Math.min(rto * 2, TimeUnit.MILLISECONDS.toNanos(MAX_RTO));
+                backedOff = true;
+            }
+            transmit(slot);
+            retransmissions++;
+        }
+
+        if (ackOwedSince >= 0 && now - ackOwedSince >= TimeUnit.MILLISECONDS.toNanos(ACK_DELAY)) {
+            flush();
+        }
+        return abandoned;
+    }
+
+    /**
+     * Sends a bare ACCEPT right away if an acknowledgment is owed, for example before going idle
+     * @throws IOException if the channel fails
+     */
+    public void flush() throws IOException {
+        if (ackOwedSince < 0) {
+            return;
+        }
+        WireCodec.encodeHeader(ackBuffer, Frame.ACCEPT, 0, 0);
+        stampAck(ackBuffer);
+        channel.send(ackBuffer, peer);
+    }
+
+    /**
+     * Releases every frame still waiting for an acknowledgment or for room in the window, once the
+     * link is no longer used
+     */
+    public void close() {
+        for (int slot = 0; slot < WINDOW; slot++) {
+            if (inFlight[slot]) {
+                forget(slot);
+            }
+        }
+        while (!backlog.isEmpty()) {
+            backlog.poll().release();
+        }
+    }
+
+    /**
+     * Gets how long until poll has something to do
+     * @return ms until the next retransmission or delayed acknowledgment is due, or 0 if none is pending
+     */
+    public long nextTimeout() {
+        long now = System.nanoTime();
+        long due = Long.MAX_VALUE;
+        for (int seq = ackedThrough + 1; seq < nextSeq; seq++) {
+            int slot = seq % WINDOW;
+            if (inFlight[slot]) {
+                due = Math.min(due, sentAt[slot] + rto);
+            }
+        }
+        if (ackOwedSince >= 0) {
+            due = Math.min(due, ackOwedSince + TimeUnit.MILLISECONDS.toNanos(ACK_DELAY));
+        }
+        if (due == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(due - now));
+    }
+
+    /**
+     * Checks whether every frame sent so far has been acknowledged
+     * @return if nothing is waiting for an acknowledgment
+     */
+    public boolean isIdle() {
+        return backlog.isEmpty() && ackedThrough == nextSeq - 1;
+    }
+
+    /**
+     * Gets the current retransmission timeout
+     * @return the timeout in ms
+     */
+    public long getRto() {
+        return TimeUnit.NANOSECONDS.toMillis(rto);
+    }
+
+    /**
+     * Gets how many frames had to be sent again
+     * @return the number of retransmissions
+     */
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    /**
+     * Gives a frame the next sequence number, holds on to it until it is acknowledged and sends it
+     * @param frame the encoded frame, from position 0 to its limit
+     * @throws IOException if the channel fails
+     */
+    private void sendNew(PooledBuffer frame) throws IOException {
+        int seq = nextSeq++;
+        int slot = seq % WINDOW;
+        unacked[slot] = frame.retain();
+        frame.buffer().putInt(WireCodec.SEQ_OFFSET, seq);
+
+        inFlight[slot] = true;
+        transmissions[slot] = 0;
+        transmit(slot);
+    }
+
+    /**
+     * Sends the frame in a slot with the latest acknowledgments stamped into it
+     * @param slot the slot of the frame
+     * @throws IOException if the channel fails
+     */
+    private void transmit(int slot) throws IOException {
+        ByteBuffer packet = unacked[slot].buffer();
+        stampAck(packet);
+        packet.position(0);
+        channel.send(packet, peer);
+        sentAt[slot] = System.nanoTime();
+        transmissions[slot]++;
+    }
+
+    /**
+     * Writes what has arrived from the peer into an outgoing frame, which settles any owed acknowledgment
+     * @param packet the outgoing frame
+     */
+    private void stampAck(ByteBuffer packet) {
+        packet.putInt(WireCodec.ACK_OFFSET, receivedThrough);
+        packet.putInt(WireCodec.ACK_BITS_OFFSET, (int) receivedAhead);
+        ackOwedSince = -1;
+    }
+
+    /**
+     * Stops waiting for every frame the peer acknowledged, measures the round trip time from the
+     * ones sent only once, and sends queued frames that now fit in the window
+     * @param ack every frame up to this sequence number arrived at the peer
+     * @param ackBits bit i is set if ack + 1 + i arrived at the peer
+     * @throws IOException if the channel fails
+     */
+    private void acknowledged(int ack, int ackBits) throws IOException {
+        long now = System.nanoTime();
+        int last = nextSeq - 1;
+        for (int seq = ackedThrough + 1; seq <= Math.min(ack, last); seq++) {
+            settle(seq, now);
+        }
+        ackedThrough = Math.max(ackedThrough, Math.min(ack, last));
+        for (int i = 0; i < Integer.SIZE; i++) {
+            int seq = ack + 1 + i;
+            if ((ackBits >>> i & 1) != 0 && seq > ackedThrough && seq <= last) {
+                settle(seq, now);
+            }
+        }
+
+        while (!backlog.isEmpty() && nextSeq - ackedThrough <= WINDOW) {
+            PooledBuffer frame = backlog.poll();
+            sendNew(frame);
+            frame.release(); // the window holds it now
+        }
+    }
+
+    /**
+     * Stops waiting for an acknowledged frame
+     * @param seq the sequence number of the frame
+     * @param now the current time in ns
+     */
+    private void settle(int seq, long now) {
+        int slot = seq % WINDOW;
+        if (!inFlight[slot]) {
+            return;
+        }
+        if (transmissions[slot] == 1) { // a resent frame's ack could belong to either copy, so it is not measured
+            measured(now - sentAt[slot]);
+        }
+        forget(slot);
+    }
+
+    /**
+     * Stops waiting for the frame in a slot and releases its buffer
+     * @param slot the slot of the frame
+     */
+    private void forget(int slot) {
+        inFlight[slot] = false;
+        unacked[slot].release();
+        unacked[slot] = null;
+    }
+
+    /**
+     * Updates the smoothed round trip time and the retransmission timeout from a new measurement
+     * @param rtt the measured round trip time in ns
+     */
+    private void measured(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+        rto = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_RTO),
+                Math.min(smoothedRtt + 4 * rttVariance, TimeUnit.MILLISECONDS.toNanos(MAX_RTO)));
+    }
+}
@@ -1,89 +1,710 @@
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Server implements RPCInterface {
-    private DatagramPacket sendPacket, receivePacket;
-    private DatagramSocket sendReceiveSocket;
-    private final GameState gameState = new GameState();
-    private static final String requestHost = "REQUEST_DATA";
-    public static final String hostAcknowledgment = "[Host] Acknowledgment";
+    private Selector selector;
+    private DatagramChannel channel;
+    private SocketAddress hostAddress;
+    private DatagramBatcher toHost; // bundles everything sent to the host, null until the host is first heard from
+    private long lingerMicros = DatagramBatcher.LINGER; // us a bundle waits for more frames unless flushed first
+    private Thread lingerThread; // null until something sends to the host outside the batch loop
+    // direct buffers, so the channel reads and writes them without copying
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(WireCodec.HEADER_SIZE + 4);
+    private final Frame ack = new Frame();
+    // each worker thread reuses its own buffers and reply
+    private final ThreadLocal<ByteBuffer> sendBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM));
+    private final ThreadLocal<ByteBuffer> messageBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM)); // grows to fit the biggest response
+    private final ThreadLocal<Frame> reply = ThreadLocal.withInitial(Frame::new);
+    private final Fragmenter fragmenter = new Fragmenter();
+    private final Frame[] batch = new Frame[MAX_BATCH + DatagramBatcher.MAX_BUNDLED]; // requests drained from the channel together
+    private final Consumer<ByteBuffer> addToBatch = this::addToBatch;
+    private int batchSize;
+    private int received; // frames received for the batch, including any that could not be decoded
+    private final List<Future<?>> pending = new ArrayList<>(MAX_BATCH);
+    private GameState gameState = new GameState();
+    private final ExecutorService[] workers; // single threads, each processing the requests of its sessions in order
+    private final ServerMetrics metrics = new ServerMetrics();
+    private TickEngine tickEngine; // null unless MOVE and PICKUP requests are applied once per tick
+    private SessionDispatcher dispatcher; // null unless every session has its own handler thread
+    private WriteAheadLog writeAheadLog; // null unless the game is logged for crash recovery
+    private volatile MatchRecorder recorder; // null unless the match is being recorded
+    private MatchRegistry lobby; // null unless the server runs many matches at once
+    private ShardMap shardMap = ShardMap.SINGLE; // how the map is split between servers
+    private int shard; // the index of this server's shard
+    private int viewRadius; // how far around a player a STATE shows, 0 for the whole world
+    private StatePublisher publisher; // null until the first SUBSCRIBE
+    private long pushInterval = StatePublisher.PUSH_INTERVAL; // ms between pushes to subscribers
+    private final BiConsumer<Frame, Frame> execute = (request, response) -> execute(gameState, request, response);
+    public static final int MAX_BATCH = 64; // most requests processed before acknowledging the host
+    public static final int WORKERS = Runtime.getRuntime().availableProcessors(); // threads processing requests
+    public static final int PORT = 6000; // port the host sends to unless another is given
 
     /**
      * Server constructor for the server application
      */
     public Server(int port){
+        this(port, WORKERS);
+    }
+
+    /**
+     * Server constructor for the server application
+     * @param port the port to listen on
+     * @param workers how many threads process requests in parallel, each for its share of the sessions
+     */
+    public Server(int port, int workers){
+        this.workers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = Executors.newSingleThreadExecutor();
+        }
+
         try {
-            sendReceiveSocket = new DatagramSocket(port); // specific port for server
-        } catch (SocketException e) {
+            selector = Selector.open();
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(port)); // specific port for server
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, WireCodec.SOCKET_BUFFER); // room for bursts of requests
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
 
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new Frame();
+        }
     }
 
     /**
-     * Begin server application and establish connection with intermediate host
+     * Makes this server one shard of a map split between several servers: from now on it only
+     * holds the players and loot boxes in its own regions, and hands over every player who moves
+     * out of them. Call before startLogging, startTicking and startRecording
+     * @param shardMap how the map is split between shards, the same on every shard and the host
+     * @param shard the index of this server's shard
+     */
+    public void startSharding(ShardMap shardMap, int shard) {
+        this.shardMap = shardMap;
+        this.shard = shard;
+        gameState = new GameState(shardMap, shard);
+    }
+
+    /**
+     * Makes the game survive crashes and restarts: recovers the game logged in a directory, then
+     * logs every change to it and snapshots the whole game at a fixed interval. Call before
+     * startTicking, which works on the recovered game
+     * @param directory the directory of the write-ahead log and snapshots
+     * @param policy when logged changes are flushed to disk
+     * @param syncMillis ms between flushes with the INTERVAL policy
+     * @param snapshotMillis ms between snapshots
+     */
+    public void startLogging(Path directory, WriteAheadLog.SyncPolicy policy, long syncMillis, long snapshotMillis) {
+        try {
+            writeAheadLog = WriteAheadLog.open(directory, policy, syncMillis, shardMap, shard);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        gameState = writeAheadLog.getGameState();
+        writeAheadLog.startCheckpoints(gameState, snapshotMillis);
+    }
+
+    /**
+     * Records every command applied to the game from now on, for MatchReplay to play back. The
+     * recording is closed on QUIT or when the process is stopped
+     * @param file the file to record to
+     */
+    public void startRecording(Path file) {
+        try {
+            recorder = new MatchRecorder(file, gameState);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (tickEngine != null) {
+            tickEngine.setRecorder(recorder);
+        }
+        MatchRecorder closing = recorder;
+        Runtime.getRuntime().addShutdownHook(new Thread(closing::close, "recording-close")); // also on Ctrl+C
+    }
+
+    /**
+     * Switches to tick mode: from now on MOVE and PICKUP requests are queued and applied together
+     * at a fixed rate, and full snapshots are served from the one published after each tick
+     * @param tickRate how many ticks to run per second
+     */
+    public void startTicking(int tickRate) {
+        tickEngine = new TickEngine(gameState, tickRate, this::sendResponse, metrics.getTicks());
+        tickEngine.setRecorder(recorder);
+        if (shardMap.getShards() > 1) {
+            tickEngine.setMoveListener(this::handOffIfOutside);
+        }
+        tickEngine.start();
+    }
+
+    /**
+     * Switches to a handler thread per session: from now on each session's requests are processed
+     * in order on a thread of its own instead of on the shared workers, a virtual thread on Java 21
+     * and later
+     * @return if the handlers are virtual threads
+     */
+    public boolean startSessionThreads() {
+        dispatcher = new SessionDispatcher(request -> rpc_send(request));
+        return dispatcher.isVirtual();
+    }
+
+    /**
+     * Switches to running many matches at once: from now on every JOIN joins one of many matches,
+     * each with a game of its own pinned to one of WORKERS lanes, and QUIT only takes the session out
+     * of its match instead of stopping the server. Not combined with sharding, logging, recording,
+     * ticking or session threads, which all work on the server's single game
+     * @param matchSize how many players matchmaking puts in a match
+     */
+    public void startLobby(int matchSize) {
+        lobby = new MatchRegistry(WORKERS, matchSize);
+        lobby.setFinishListener(match -> publisher().drop(match.getGameState()));
+    }
+
+    /**
+     * Sets how often subscribers are pushed what changed, at most. Call before the first SUBSCRIBE
+     * @param intervalMillis ms between pushes
+     */
+    public void setPushInterval(long intervalMillis) {
+        pushInterval = intervalMillis;
+    }
+
+    /**
+     * Gets the publisher pushing updates to subscribers, creating it on first use
+     * @return the publisher
+     */
+    private synchronized StatePublisher publisher() {
+        if (publisher == null) {
+            publisher = new StatePublisher(pushInterval, fragmenter, this::sendToHost, metrics);
+            startLinger(); // its pushes are not flushed by the batch loop
+        }
+        return publisher;
+    }
+
+    /**
+     * Sets how long a bundle of responses may wait for more before it is sent to the host, when the
+     * batch that produced them is still being processed. Call before startServer
+     * @param lingerMicros us to wait
+     */
+    public void setLinger(long lingerMicros) {
+        this.lingerMicros = lingerMicros;
+    }
+
+    /**
+     * Switches STATE to interest management: a STATE naming a player only shows the players and loot
+     * boxes within a radius of them, so what it costs depends on how crowded their surroundings are
+     * rather than on the size of the world. A STATE naming no player still shows everything
+     * @param radius how far around the player a STATE shows
+     */
+    public void setViewRadius(int radius) {
+        viewRadius = radius;
+    }
+
+    /**
+     * Gets the counters and latency histograms of this server
+     * @return the metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Begin server application and process the requests the intermediate host pushes to it
      */
     public void startServer(){
 
         while (true){ // infinite loop until receiving a 'quit' request
-            String response = rpc_send(requestHost); // get the request from the host
+            receiveBatch(); // wait for the host to push requests
+            metrics.batchReceived();
+
+            // acknowledge the whole batch at once instead of each request
+            ack.reset(Frame.BATCH_ACK);
+            ack.setCount(received); // every frame the host counted, so none holds on to its window
+            WireCodec.encode(ack, ackBuffer);
+            sendToHost(ackBuffer);
+
+            boolean quit = false;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < batchSize; i++) {
+                Frame request = batch[i];
+                if (request.getOpcode() == Frame.ENDED) {
+                    endSession(request.getSessionId()); // the host ended it, so no QUIT will come
+                    continue;
+                }
+
+                if (lobby != null && dispatchToMatch(request, now)) {
+                    continue; // processed on the lane of the session's match
+                }
+
+                // close socket and terminal process if client requested to quit, once the rest are done
+                if (request.getOpcode() == Frame.QUIT){
+                    quit = true;
+                    continue;
+                }
+
+                if (request.getOpcode() == Frame.RESEND) {
+                    resendFragment(request); // a fragment of an earlier response went missing
+                    continue;
+                }
 
-            // close socket and terminal process if client requested to quit
-            if (response.equals("QUIT")){
-                sendReceiveSocket.close();
+                if (request.getOpcode() == Frame.HANDOFF) {
+                    // adopted before any later request of the batch can move the player
+                    processRequest(request, reply.get());
+                    continue;
+                }
+
+                if (tickEngine != null && (request.getOpcode() == Frame.MOVE || request.getOpcode() == Frame.PICKUP)) {
+                    tickEngine.submit(request); // answered once the next tick has applied it
+                    continue;
+                }
+
+                if (dispatcher != null) {
+                    dispatcher.dispatch(request); // the handler of the session processes a copy
+                    continue;
+                }
+
+                // process the request and send the response back to the host on the session's worker, so
+                // requests a client pipelines, such as a MOVE and the PICKUP it enables, keep their order
+                ExecutorService worker = workers[Math.floorMod(request.getSessionId(), workers.length)];
+                pending.add(worker.submit(() -> rpc_send(request)));
+            }
+            awaitBatch(); // the frames are reused by the next batch
+            flushToHost(); // the acknowledgment and every response the batch has had so far
+            if (lobby != null) {
+                lobby.reclaimIdle(now);
+                metrics.setMatches(lobby.size(), lobby.getReclaimed());
+            }
+
+            if (quit) {
+                if (dispatcher != null) {
+                    dispatcher.awaitIdle();
+                }
+                if (recorder != null) {
+                    recorder.close();
+                }
+                if (writeAheadLog != null) {
+                    writeAheadLog.checkpoint(gameState); // so the next start has nothing to replay
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
                 System.exit(0);
             }
+        }
+    }
+
+    /**
+     * Hands a request to the lane of the match it belongs to. A JOIN picks the match, other changes
+     * and STATE go to the match the session joined, and QUIT takes the session out of its match
+     * @param request the request
+     * @param now the current time in ms
+     * @return false if the request is not about a match, such as STATS, so it is processed as usual
+     */
+    private boolean dispatchToMatch(Frame request, long now) {
+        Match match;
+        switch (request.getOpcode()) {
+            case Frame.JOIN -> match = lobby.join(request.getSessionId(), request.getMatchId(), now);
+            case Frame.MOVE, Frame.PICKUP, Frame.STATE, Frame.SUBSCRIBE, Frame.SNAPSHOT ->
+                    match = lobby.matchOf(request.getSessionId(), now);
+            case Frame.QUIT -> {
+                endSession(request.getSessionId()); // the other matches carry on
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+        if (match == null) { // not in a match, so there is nothing to move or show yet
+            Frame response = reply.get();
+            response.reset(Frame.NOT_A_COMMAND);
+            response.setSessionId(request.getSessionId());
+            response.setRequestId(request.getRequestId());
+            sendResponse(response);
+            return true;
+        }
+        pending.add(match.getLane().submit(() -> processInMatch(match, request)));
+        return true;
+    }
+
+    /**
+     * Forgets a session that quit a lobby match or that the host ended: it leaves its match, if in a
+     * lobby, and gets no more updates
+     * @param sessionId the session
+     */
+    private void endSession(int sessionId) {
+        if (lobby != null) {
+            lobby.leave(sessionId);
+        }
+        publisher().unsubscribe(sessionId);
+    }
 
-            rpc_send(response); // send the response back to the host
+    /**
+     * Processes a request against the game of its match and sends the response back to the host.
+     * Called on the match's lane
+     * @param match the match
+     * @param request the request
+     */
+    private void processInMatch(Match match, Frame request) {
+        long start = System.nanoTime();
+        Frame response = reply.get();
+        execute(match.getGameState(), request, response);
+        if (response.getOpcode() == Frame.JOINED) {
+            response.setMatchId(match.getId());
         }
+        response.setSessionId(request.getSessionId());
+        response.setRequestId(request.getRequestId());
+        metrics.command(request.getOpcode()).record(System.nanoTime() - start);
+        sendResponse(response);
     }
 
     /**
-     * Check if the Host acknowledged the Server's request
-     * @return if host acknowledged or not
+     * Waits until the workers have processed every request of the current batch
      */
-    private boolean isAcknowledged() {
-        byte[] data = new byte[1024];
-        receivePacket = new DatagramPacket(data, data.length);
+    private void awaitBatch() {
+        try {
+            for (Future<?> request : pending) {
+                request.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        pending.clear();
+    }
 
-        // try to get the acknowledgment message from the host
+    /**
+     * Waits for the Host to push requests, then drains every request already waiting on the channel
+     * up to MAX_BATCH so they can be acknowledged and processed together. A datagram may bundle
+     * several requests, so the last one can take the batch past MAX_BATCH
+     */
+    private void receiveBatch() {
+        batchSize = 0;
+        received = 0;
         try {
-            sendReceiveSocket.receive(receivePacket);
-            String acknowledgement = new String(receivePacket.getData(), 0, receivePacket.getLength());
-            return acknowledgement.equals(hostAcknowledgment); // return boolean
+            while (received == 0) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                while (batchSize < MAX_BATCH) {
+                    receiveBuffer.clear();
+                    long start = System.nanoTime();
+                    SocketAddress address = channel.receive(receiveBuffer);
+                    if (address == null) {
+                        break; // nothing left to read
+                    }
+                    metrics.getReceive().record(System.nanoTime() - start);
+                    if (toHost == null) {
+                        startBundling(address);
+                    }
+                    receiveBuffer.flip();
+                    if (!DatagramBatcher.unbundle(receiveBuffer, addToBatch)) {
+                        metrics.invalidFrame();
+                        Log.warn("ERROR: Received a bundle that was cut short!");
+                    }
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
-            return false;
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Decodes a request received from the host into the next frame of the batch
+     * @param frame the encoded request, from its position to its limit
+     */
+    private void addToBatch(ByteBuffer frame) {
+        received++;
+        Frame request = batch[batchSize];
+        if (!WireCodec.decode(frame, request)) {
+            metrics.invalidFrame();
+            Log.warn("ERROR: Received a packet that is not a valid frame!");
+            return;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("\n[Server] Received: {} from Host({})", request.toString(), hostAddress);
+        }
+        batchSize++;
+    }
+
+    /**
+     * Starts bundling what is sent to the host it first heard from, sent to its cached, resolved
+     * address without looking it up. The Server only answers that host from then on. The channel
+     * is not connected to it, as connecting discards every datagram already waiting, which would
+     * lose the requests that arrived together with the first one
+     * @param address the address and port of the host
+     */
+    private void startBundling(SocketAddress address) {
+        hostAddress = address;
+        toHost = new DatagramBatcher(channel, address, lingerMicros, metrics.getSend());
+        if (tickEngine != null || dispatcher != null || lobby != null) {
+            startLinger(); // they answer after the batch that brought the request was flushed
+        }
+    }
+
+    /**
+     * Starts sending every bundle for the host once it has waited the linger, for the responses sent
+     * outside the batch loop. Without them the loop flushes everything itself, and no thread has
+     * to wake up for each bundle
+     */
+    private synchronized void startLinger() {
+        if (lingerThread == null) {
+            lingerThread = new Thread(toHost::runLinger, "host-linger");
+            lingerThread.setDaemon(true);
+            lingerThread.start();
+        }
+    }
+
+    /**
+     * Sends every response bundled so far to the host
+     */
+    private void flushToHost() {
+        try {
+            toHost.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sends the encoded frame in this thread's send buffer to the Host
+     */
+    private void sendToHost() {
+        sendToHost(sendBuffer.get());
+    }
+
+    /**
+     * Adds an encoded frame to the bundle for the Host, sent once full, at the end of the batch or
+     * after the linger. Safe to call from several threads at once
+     * @param frame the encoded frame, copied into the bundle
+     */
+    private void sendToHost(ByteBuffer frame) {
+        try {
+            toHost.add(frame);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Encodes a reply, growing this thread's message buffer until the reply fits
+     * @param reply the reply to encode
+     * @return the message buffer holding the encoded reply
+     */
+    private ByteBuffer encodeReply(Frame reply) {
+        ByteBuffer buffer = messageBuffer.get();
+        while (true) {
+            try {
+                WireCodec.encode(reply, buffer);
+                return buffer;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                messageBuffer.set(buffer);
+            }
+        }
+    }
+
+    /**
+     * Sends an encoded reply to the Host, split into fragments if it does not fit in one datagram
+     * @param message the encoded reply
+     */
+    private void sendReply(ByteBuffer message) {
+        if (!Fragmenter.needsFragmenting(message)) {
+            sendToHost(message);
+            return;
+        }
+
+        int messageId = fragmenter.split(message);
+        int count = Fragmenter.fragmentCount(message.remaining());
+        for (int index = 0; index < count; index++) {
+            fragmenter.encodeFragment(messageId, index, sendBuffer.get());
+            sendToHost();
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("[Server] Split response {} into {} fragments", messageId, count);
+        }
+    }
+
+    /**
+     * Sends a single fragment of an earlier response again
+     * @param request the RESEND request naming the message and fragment
+     */
+    private void resendFragment(Frame request) {
+        long start = System.nanoTime();
+        boolean resent = fragmenter.encodeFragment(request.getMessageId(), request.getIndex(), sendBuffer.get());
+        metrics.command(Frame.RESEND).record(System.nanoTime() - start);
+        if (resent) {
+            // an UPDATE's fragments are shared by every subscriber, so the header may name another one
+            sendBuffer.get().putInt(WireCodec.SESSION_OFFSET, request.getSessionId());
+            sendToHost();
+            if (Log.isDebugEnabled()) {
+                Log.debug("[Server] Resent fragment {} of response {}", request.getIndex(), request.getMessageId());
+            }
+        } else {
+            Log.warn("ERROR: Fragment {} of response {} is no longer available", request.getIndex(),
+                    request.getMessageId());
         }
     }
 
     /**
      * Process request from client sent through the intermediate host
-     * @param message the message containing the client's command
+     * @param message the message containing the client's command, in the colon-delimited text format
      * @return the processed command
      */
     public String processRequest(String message){
-        String[] m = message.split(":"); // parse message for the specific command
-        return switch (m[0]) {
-            // for each case, return the result of its command being processed
-            case "JOIN" -> {
-                Player newPlayer = gameState.addNewPlayer(message.substring(5));
-                yield "JOINED:" + newPlayer.getId();
-            }
-            case "MOVE" -> {
-                gameState.movePlayer(Integer.parseInt(m[1]), Integer.parseInt(m[2]), Integer.parseInt(m[3]));
-                yield "MOVE_OK";
-            }
-            case "PICKUP" -> {
-                if (gameState.processPickup(Integer.parseInt(m[1]), Integer.parseInt(m[2]))) yield "PICKUP_OK";
-                yield "PICKUP_FAIL";
-            }
-            case "STATE" -> gameState.serialize();
+        Frame response = new Frame();
+        processRequest(WireCodec.fromText(message), response);
+        return WireCodec.toText(response);
+    }
+
+    /**
+     * Process request from client sent through the intermediate host
+     * @param request the frame containing the client's command
+     * @param response the frame to write the processed command into
+     */
+    public void processRequest(Frame request, Frame response){
+        long start = System.nanoTime();
+        MatchRecorder recording = recorder;
+        if (recording != null) {
+            recording.process(request, response, execute);
+        } else {
+            execute(gameState, request, response);
+        }
+        if (request.getOpcode() == Frame.MOVE && shardMap.getShards() > 1) {
+            handOffIfOutside(request.getPlayerId()); // before the response, so the host reroutes the player first
+        }
+        // the response carries the same ids so the host can route it back to the client
+        response.setSessionId(request.getSessionId());
+        response.setRequestId(request.getRequestId());
+        metrics.command(request.getOpcode()).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Hands a player over to the shard owning their position if they moved out of this shard's
+     * regions. The HANDOFF goes to the host, which passes it on to the new shard
+     * @param playerId the id of the player who moved
+     */
+    private void handOffIfOutside(int playerId) {
+        Frame handoff;
+        MatchRecorder recording = recorder;
+        if (recording != null) {
+            synchronized (recording) { // released and recorded as one step
+                handoff = releaseIfOutside(playerId);
+                if (handoff != null) {
+                    recording.recordRelease(playerId);
+                }
+            }
+        } else {
+            handoff = releaseIfOutside(playerId);
+        }
+        if (handoff == null) {
+            return;
+        }
+
+        sendToHost(encodeReply(handoff));
+        if (Log.isDebugEnabled()) {
+            Log.debug("[Server] Handed player {} at ({},{}) over to shard {}", playerId, handoff.getX(), handoff.getY(),
+                    shardMap.shardOf(handoff.getX(), handoff.getY()));
+        }
+    }
+
+    /**
+     * Takes a player out of the game if they moved out of this shard's regions
+     * @param playerId the id of the player who moved
+     * @return the HANDOFF carrying them to their new shard, or null if they are still in this one
+     */
+    private Frame releaseIfOutside(int playerId) {
+        var released = gameState.releaseIfOutside(playerId);
+        if (released == null) {
+            return null;
+        }
+        Frame handoff = new Frame(Frame.HANDOFF);
+        handoff.setPlayerId(playerId);
+        handoff.setX(released.getX());
+        handoff.setY(released.getY());
+        handoff.setHealth(released.getHealth());
+        handoff.setText(released.getName());
+        return handoff;
+    }
+
+    /**
+     * Executes the command of a request
+     * @param gameState the game to execute it on, the server's own unless it runs many matches
+     * @param request the frame containing the client's command
+     * @param response the frame to write the processed command into
+     */
+    private void execute(GameState gameState, Frame request, Frame response) {
+        // for each case, write the result of its command being processed
+        switch (request.getOpcode()) {
+            case Frame.JOIN -> {
+                Player newPlayer = gameState.addNewPlayer(request.getText());
+                response.reset(Frame.JOINED);
+                response.setPlayerId(newPlayer.getId());
+            }
+            case Frame.MOVE -> {
+                gameState.movePlayer(request.getPlayerId(), request.getDx(), request.getDy());
+                response.reset(Frame.MOVE_OK);
+            }
+            case Frame.PICKUP -> response.reset(gameState.processPickup(request.getPlayerId(), request.getLootId())
+                    ? Frame.PICKUP_OK : Frame.PICKUP_FAIL);
+            // a player handed over by another shard, nobody waits for a response
+            case Frame.HANDOFF -> {
+                gameState.adoptPlayer(request.getPlayerId(), request.getX(), request.getY(), request.getHealth(),
+                        request.getText());
+                response.reset(Frame.ACCEPT);
+            }
+            case Frame.STATE -> {
+                response.reset(Frame.STATE_DATA);
+                if (viewRadius > 0 && request.getPlayerId() != 0) {
+                    // only the player's surroundings, always in full as what is in view changes as they move
+                    response.setText(gameState.serializeView(request.getPlayerId(), viewRadius));
+                } else {
+                    // in tick mode every full snapshot is the one serialized after the latest tick
+                    response.setText(tickEngine != null && request.getSince() <= 0
+                            ? tickEngine.getSnapshot() : gameState.serialize(request.getSince()));
+                }
+            }
+            // a full snapshot in the compact binary form, with only the dictionary entries the client lacks
+            case Frame.SNAPSHOT -> {
+                response.reset(Frame.SNAPSHOT_DATA);
+                response.setData(gameState.serializeCompact(request.getDictionaryId(), request.getCount()));
+            }
+            // pushed what changes from now on, after a full snapshot of how things stand
+            case Frame.SUBSCRIBE -> {
+                publisher().subscribe(gameState, request.getSessionId());
+                response.reset(Frame.STATE_DATA);
+                response.setText(gameState.serialize(0)); // after subscribing, so no change falls in between
+            }
+            // the host's metrics ride in the request, the server's are added to them
+            case Frame.STATS -> {
+                response.reset(Frame.STATS_DATA);
+                String hostReport = request.getText();
+                response.setText((hostReport == null || hostReport.isEmpty() ? "" : hostReport + "\n") + metrics.report());
+            }
             // otherwise client inputted a command that doesn't exist
-            case requestHost -> requestHost; // request for data, don't do anything
-            default -> "NOT_A_COMMAND"; // INVALID_COMMAND also works here
-        };
+            default -> response.reset(Frame.NOT_A_COMMAND); // INVALID_COMMAND also works here
+        }
     }
 
     /**
@@ -91,8 +712,94 @@ public class Server implements RPCInterface {
      * @param args args
      */
     public static void main(String[] args) {
-        System.out.println("Battle Royale Server started on port 6000");
-        Server server = new Server(6000);
+        int port = PORT;
+        int[] shard = {0, 1};
+        int regionWidth = ShardMap.REGION_WIDTH;
+        int tickRate = 0;
+        boolean sessionThreads = false;
+        String walDirectory = null;
+        String fsync = "" + WriteAheadLog.SYNC_INTERVAL;
+        long snapshotMillis = WriteAheadLog.SNAPSHOT_INTERVAL;
+        String recording = null;
+        int matchSize = 0;
+        int viewRadius = 0;
+        long pushInterval = StatePublisher.PUSH_INTERVAL;
+        long linger = DatagramBatcher.LINGER;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[i + 1]);
+                case "--shard" -> shard = ShardMap.parseShard(args[i + 1]);
+                case "--region" -> regionWidth = Integer.parseInt(args[i + 1]);
+                case "--tick" -> tickRate = Integer.parseInt(args[i + 1]);
+                case "--threads" -> sessionThreads = args[i + 1].equals("session");
+                case "--wal" -> walDirectory = args[i + 1];
+                case "--fsync" -> fsync = args[i + 1];
+                case "--snapshot" -> snapshotMillis = Long.parseLong(args[i + 1]) * 1000;
+                case "--record" -> recording = args[i + 1];
+                case "--lobby" -> matchSize = Integer.parseInt(args[i + 1]);
+                case "--view" -> viewRadius = Integer.parseInt(args[i + 1]);
+                case "--push" -> pushInterval = Long.parseLong(args[i + 1]);
+                case "--linger" -> linger = Long.parseLong(args[i + 1]);
+                default -> Log.warn("ERROR: Unknown option {} {}", args[i], args[i + 1]);
+            }
+        }
+        if (matchSize > 0 && (shard[1] > 1 || walDirectory != null || tickRate > 0 || recording != null || sessionThreads)) {
+            // each of these works on the server's single game, not on the matches of a lobby
+            Log.warn("ERROR: --lobby cannot be combined with --shard, --wal, --tick, --record or --threads session, so they are ignored");
+            shard = new int[]{0, 1};
+            walDirectory = null;
+            tickRate = 0;
+            recording = null;
+            sessionThreads = false;
+        }
+
+        Log.info("Battle Royale Server started on port {}", port);
+        Server server = new Server(port);
+        server.getMetrics().register(); // watchable with jconsole, under BattleRoyale
+
+        if (matchSize > 0) {
+            server.startLobby(matchSize);
+            Log.info("Running many matches of up to {} players, on {} lanes", matchSize, WORKERS);
+        }
+        server.setPushInterval(pushInterval);
+        server.setLinger(linger);
+        if (viewRadius > 0) {
+            server.setViewRadius(viewRadius);
+            Log.info("Showing each player what is within {} of them", viewRadius);
+        }
+        // the shard decides which game is started or recovered
+        if (shard[1] > 1) {
+            server.startSharding(new ShardMap(shard[1], regionWidth), shard[0]);
+            Log.info("Serving shard {} of {}, in stripes {} wide", shard[0], shard[1], regionWidth);
+        }
+        // the game is recovered first, as ticking works on the recovered one
+        if (walDirectory != null) {
+            WriteAheadLog.SyncPolicy policy = switch (fsync) {
+                case "never" -> WriteAheadLog.SyncPolicy.NEVER;
+                case "always" -> WriteAheadLog.SyncPolicy.ALWAYS;
+                default -> WriteAheadLog.SyncPolicy.INTERVAL;
+            };
+            long syncMillis = policy == WriteAheadLog.SyncPolicy.INTERVAL ? Long.parseLong(fsync) : 0;
+            server.startLogging(Path.of(walDirectory), policy, syncMillis, snapshotMillis);
+            Log.info("Logging the game to {}, flushing {}, with a snapshot every {} s", walDirectory,
+                    policy == WriteAheadLog.SyncPolicy.INTERVAL ? "every " + syncMillis + " ms" : fsync,
+                    snapshotMillis / 1000);
+        }
+        if (tickRate > 0) {
+            server.startTicking(tickRate);
+            Log.info("Applying moves and pickups at {} ticks per second", tickRate);
+        }
+        if (recording != null) {
+            server.startRecording(Path.of(recording));
+            Log.info("Recording the match to {}", recording);
+        }
+        if (sessionThreads) {
+            boolean virtual = server.startSessionThreads();
+            Log.info("Processing each session on its own {} thread", virtual ? "virtual" : "platform");
+            if (!virtual) {
+                Log.warn("Virtual threads need Java 21, so each session gets a platform thread instead");
+            }
+        }
         server.startServer();
     }
 
@@ -100,49 +807,42 @@ public class Server implements RPCInterface {
      * Reusable method to handle Remote Procedure Call (RPC) communication
      * in a single step instead of manually writing send() and receive()
      *
-     * @param request the request from client or server
+     * @param request the request pushed by the host, in the colon-delimited text format
      * @return the response
      */
     @Override
     public String rpc_send(String request) {
-        try{
-            // prepare receive packet and receive the message from the client
-            byte[] inData = new byte[100];
-            receivePacket = new DatagramPacket(inData, inData.length);
-
-            sendReceiveSocket.receive(receivePacket);
-
-            // save the values of the client address and port
-            InetAddress clientAddr = receivePacket.getAddress();
-            int clientPort = receivePacket.getPort();
-
-            // get the message of the request from the host
-            String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
-            System.out.println("\n[Server] Received: " + message + " from Host(" + clientAddr + ")");
-
-            // process the request
-            String response = processRequest(message);
-
-            // send the response using the saved values for client address and client port
-            byte[] outData = response.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(outData, outData.length,
-                    clientAddr, clientPort);
-
-            sendReceiveSocket.send(sendPacket);
-            System.out.println("[Server] Sent response back to Host: " + response);
+        return WireCodec.toText(rpc_send(WireCodec.fromText(request)));
+    }
 
-            // check if acknowledgment is received
-            if (!isAcknowledged()) { // not received
-                System.out.println("Error: Unable to receive acknowledgment from Host. Exiting.");
-                System.exit(1);
-            } // received acknowledgment, prepare to receive request
-            System.out.println("[Server <- Host] Got reply: ACCEPT(" + response + ")");
+    /**
+     * Typed version of rpc_send that processes a request frame pushed by the host and
+     * sends the response frame back to it. Called from the worker threads
+     *
+     * @param request the request pushed by the host
+     * @return the response, reused by the next call on the same thread
+     */
+    @Override
+    public Frame rpc_send(Frame request) {
+        // process the request
+        Frame response = reply.get();
+        processRequest(request, response);
 
+        sendResponse(response);
+        return response;
+    }
 
-            return response;
-        } catch (IOException e){
-            e.printStackTrace();
-            return "ERROR: Client I/O Exception";
+    /**
+     * Sends a response back to the host using its saved address. Safe to call from any thread
+     * @param response the response
+     */
+    private void sendResponse(Frame response) {
+        if (writeAheadLog != null) {
+            writeAheadLog.commit(); // what the response reports must survive a crash first
+        }
+        sendReply(encodeReply(response));
+        if (Log.isDebugEnabled()) {
+            Log.debug("[Server] Sent response back to Host: {}", response.toString());
         }
     }
 }
@@ -0,0 +1,185 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the Server: how long each command takes to process, how
+ * long the socket takes to receive and send datagrams, how long each tick takes in tick mode, and
+ * how many batches and invalid datagrams arrived. Safe to record into from every worker thread
+ * at once.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final byte[] COMMANDS = {Frame.JOIN, Frame.MOVE, Frame.PICKUP, Frame.STATE, Frame.RESEND,
+            Frame.STATS, Frame.HANDOFF, Frame.SUBSCRIBE, Frame.SNAPSHOT, Frame.UNKNOWN};
+
+    private final long started = System.nanoTime();
+    private final LatencyStats[] commands = new LatencyStats[Frame.SNAPSHOT + 1]; // by opcode, UNKNOWN for the rest
+    private final LatencyStats receive = new LatencyStats();
+    private final LatencyStats send = new LatencyStats();
+    private final LatencyStats ticks = new LatencyStats(); // only recorded in tick mode
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder invalidFrames = new LongAdder();
+    private volatile int matches; // only set when running many matches
+    private volatile long matchesReclaimed;
+    private final LongAdder updates = new LongAdder(); // UPDATE frames encoded for subscribers
+    private final LongAdder updatesSent = new LongAdder(); // copies of them sent, one per subscriber
+
+    /**
+     * Constructor for the metrics of a server
+     */
+    public ServerMetrics() {
+        for (byte opcode : COMMANDS) {
+            commands[opcode] = new LatencyStats();
+        }
+    }
+
+    /**
+     * Gets the stats a command's processing time is recorded in
+     * @param opcode the opcode of the request
+     * @return the stats of that command, or of UNKNOWN for opcodes that are not commands
+     */
+    public LatencyStats command(byte opcode) {
+        LatencyStats stats = opcode >= 0 && opcode < commands.length ? commands[opcode] : null;
+        return stats != null ? stats : commands[Frame.UNKNOWN];
+    }
+
+    /**
+     * Gets the stats of channel.receive calls that returned a datagram
+     * @return the receive stats
+     */
+    public LatencyStats getReceive() {
+        return receive;
+    }
+
+    /**
+     * Gets the stats of the sends to the host, one per datagram
+     * @return the send stats
+     */
+    public LatencyStats getSend() {
+        return send;
+    }
+
+    /**
+     * Gets the stats of how long each tick takes to apply its requests, in tick mode
+     * @return the tick stats
+     */
+    public LatencyStats getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Counts a batch of requests pushed by the host
+     */
+    public void batchReceived() {
+        batches.increment();
+    }
+
+    /**
+     * Counts a datagram dropped for not being a valid frame
+     */
+    public void invalidFrame() {
+        invalidFrames.increment();
+    }
+
+    /**
+     * Sets how many matches are running and how many have been reclaimed, when running many matches
+     * @param matches the number of running matches
+     * @param reclaimed the number of reclaimed matches
+     */
+    public void setMatches(int matches, long reclaimed) {
+        this.matches = matches;
+        this.matchesReclaimed = reclaimed;
+    }
+
+    /**
+     * Counts an UPDATE encoded once and sent to every subscriber of its game
+     * @param subscribers how many subscribers it was sent to
+     */
+    public void updatePushed(int subscribers) {
+        updates.increment();
+        updatesSent.add(subscribers);
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (byte opcode : COMMANDS) {
+            requests += commands[opcode].getCount();
+        }
+        return requests;
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getInvalidFrames() {
+        return invalidFrames.sum();
+    }
+
+    @Override
+    public int getMatches() {
+        return matches;
+    }
+
+    @Override
+    public long getMatchesReclaimed() {
+        return matchesReclaimed;
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getUpdatesSent() {
+        return updatesSent.sum();
+    }
+
+    /**
+     * Describes every counter and histogram, one per line, for the STATS command
+     * @return the report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SERVER uptime=").append(getUptimeSeconds()).append("s requests=").append(getRequests())
+                .append(" batches=").append(getBatches()).append(" invalid=").append(getInvalidFrames());
+        if (matches > 0 || matchesReclaimed > 0) {
+            sb.append(" matches=").append(matches).append(" reclaimed=").append(matchesReclaimed);
+        }
+        if (getUpdates() > 0) {
+            sb.append(" updates=").append(getUpdates()).append(" pushed=").append(getUpdatesSent());
+        }
+        for (byte opcode : COMMANDS) {
+            if (commands[opcode].getCount() > 0) {
+                sb.append('\n').append(commands[opcode].describe(Frame.opcodeName(opcode)));
+            }
+        }
+        if (ticks.getCount() > 0) {
+            sb.append('\n').append(ticks.describe("tick"));
+        }
+        sb.append('\n').append(receive.describe("receive"));
+        sb.append('\n').append(send.describe("send"));
+        return sb.toString();
+    }
+
+    /**
+     * Registers these metrics and every histogram with JMX
+     */
+    public void register() {
+        LatencyStats.register("Server", "Requests", this);
+        for (byte opcode : COMMANDS) {
+            LatencyStats.register("Server", Frame.opcodeName(opcode), commands[opcode]);
+        }
+        LatencyStats.register("Server", "receive", receive);
+        LatencyStats.register("Server", "send", send);
+        LatencyStats.register("Server", "tick", ticks);
+    }
+}
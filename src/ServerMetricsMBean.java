@@ -0,0 +1,53 @@
+/**
+ * What JMX shows of a ServerMetrics. The latency of each command, and of receiving and sending,
+ * are MBeans of their own, see LatencyStatsMBean
+ */
+public interface ServerMetricsMBean {
+    /**
+     * Gets how long the server has been running
+     * @return the uptime in seconds
+     */
+    long getUptimeSeconds();
+
+    /**
+     * Gets how many requests were processed, of any command
+     * @return the number of requests
+     */
+    long getRequests();
+
+    /**
+     * Gets how many batches of requests the host pushed
+     * @return the number of batches
+     */
+    long getBatches();
+
+    /**
+     * Gets how many datagrams were dropped for not being valid frames
+     * @return the number of invalid datagrams
+     */
+    long getInvalidFrames();
+
+    /**
+     * Gets how many matches are running, when the server runs many at once
+     * @return the number of matches
+     */
+    int getMatches();
+
+    /**
+     * Gets how many finished matches were reclaimed
+     * @return the number of reclaimed matches
+     */
+    long getMatchesReclaimed();
+
+    /**
+     * Gets how many state updates were encoded for subscribers
+     * @return the number of updates
+     */
+    long getUpdates();
+
+    /**
+     * Gets how many copies of the updates were sent, one per subscriber
+     * @return the number of updates sent
+     */
+    long getUpdatesSent();
+}
@@ -0,0 +1,63 @@
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+
+public class Session {
+    private final int id;
+    private final SocketAddress address;
+    private final ReliableLink link;
+    private int fragmentShard = -1; // the shard that last sent this client a fragment, -1 if none has
+
+    /**
+     * Constructor for a client session tracked by the intermediate host
+     * @param id the session id assigned by the host
+     * @param address the address and port the client sends from
+     * @param channel the channel the host talks to clients on
+     * @param pool the pool the host's buffers come from, shared by every session
+     */
+    public Session(int id, SocketAddress address, DatagramChannel channel, BufferPool pool) {
+        this.id = id;
+        this.address = address;
+        this.link = new ReliableLink(channel, address, pool);
+    }
+
+    /**
+     * Gets the session id used to correlate server responses with this client
+     * @return the session id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the address and port of the client that owns this session
+     * @return the client's socket address
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Gets the reliable link every frame to and from the client goes through
+     * @return the client's link
+     */
+    public ReliableLink getLink() {
+        return link;
+    }
+
+    /**
+     * Gets the shard whose server last sent this client a fragment, so a RESEND for it can be
+     * sent to the same server
+     * @return the index of the shard, or -1 if no server has sent a fragment yet
+     */
+    public int getFragmentShard() {
+        return fragmentShard;
+    }
+
+    /**
+     * Sets the shard whose server last sent this client a fragment
+     * @param fragmentShard the index of the shard
+     */
+    public void setFragmentShard(int fragmentShard) {
+        this.fragmentShard = fragmentShard;
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Gives every host session a handler thread of its own. The handler takes the session's requests
+ * one at a time, in the order they arrived, and processes each with plain blocking calls. On Java
+ * 21 and later the handlers are virtual threads, so tens of thousands of sessions share a few
+ * carrier threads. Older runtimes have no virtual threads, so each handler is a platform thread
+ * there, which suits a few hundred sessions at most.
+ *
+ * A handler that gets no request for IDLE_TIMEOUT ends. A new one starts if its session sends
+ * again.
+ */
+public class SessionDispatcher {
+    public static final long IDLE_TIMEOUT = 30_000; // ms a handler waits for its session's next request
+
+    private final Consumer<Frame> process;
+    private final ExecutorService threads;
+    private final boolean virtual;
+    private final Map<Integer, Handler> handlers = new ConcurrentHashMap<>(); // session id -> handler
+    private final Queue<Frame> free = new ConcurrentLinkedQueue<>(); // frames recycled once processed
+    private final AtomicInteger pending = new AtomicInteger(); // requests dispatched but not processed yet
+
+    /**
+     * Constructor for a dispatcher, which starts handlers as sessions send requests
+     * @param process processes one request and sends its response, called on the session's handler thread
+     */
+    public SessionDispatcher(Consumer<Frame> process) {
+        this.process = process;
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        this.virtual = virtualThreads != null;
+        this.threads = virtual ? virtualThreads : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Hands a request to the handler of its session, starting one if the session has none. Safe to
+     * call from any thread
+     * @param request the request, copied so the caller can reuse it straight away
+     */
+    public void dispatch(Frame request) {
+        Frame copy = free.poll();
+        if (copy == null) {
+            copy = new Frame();
+        }
+        copy.copyFrom(request);
+        pending.incrementAndGet();
+
+        Frame queued = copy;
+        handlers.compute(request.getSessionId(), (sessionId, handler) -> {
+            if (handler == null || !handler.offer(queued)) { // none yet, or it just ended for being idle
+                handler = new Handler(sessionId);
+                handler.offer(queued);
+                threads.execute(handler);
+            }
+            return handler;
+        });
+    }
+
+    /**
+     * Waits until every request dispatched so far has been processed
+     */
+    public void awaitIdle() {
+        while (pending.get() > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Checks whether the handlers are virtual threads
+     * @return true on Java 21 and later, false if they are platform threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Gets how many sessions have a handler right now
+     * @return the number of handlers
+     */
+    public int getHandlerCount() {
+        return handlers.size();
+    }
+
+    /**
+     * Stops every handler once its current request is done
+     */
+    public void stop() {
+        threads.shutdownNow();
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task, if the runtime has them. Looked up
+     * reflectively so the code still compiles and runs on Java 17
+     * @return the executor, or null before Java 21
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The handler of one session: takes its requests one at a time and processes them in order
+     */
+    private class Handler implements Runnable {
+        private final int sessionId;
+        private final BlockingQueue<Frame> requests = new LinkedBlockingQueue<>();
+        private boolean retired; // set once idle, after which the dispatcher starts a new handler
+
+        /**
+         * Constructor for the handler of a session
+         * @param sessionId the id of the session
+         */
+        Handler(int sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * Queues a request for this handler, unless it has ended
+         * @param request the request
+         * @return false if the handler ended for being idle
+         */
+        synchronized boolean offer(Frame request) {
+            if (retired) {
+                return false;
+            }
+            requests.add(request);
+            return true;
+        }
+
+        /**
+         * Ends the handler if nothing arrived since its last poll
+         * @return if the handler ended
+         */
+        synchronized boolean retireIfIdle() {
+            retired = requests.isEmpty();
+            return retired;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Frame request = requests.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (request == null) {
+                        if (retireIfIdle()) {
+                            handlers.remove(sessionId, this);
+                            return;
+                        }
+                        continue;
+                    }
+                    process.accept(request); // blocks this handler only, not the other sessions
+                    free.add(request);
+                    pending.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // stopped
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Splits the map into regions, each owned by one of several Server processes, called shards. A
+ * region is a vertical stripe REGION_WIDTH wide. The stripes are dealt out to the shards in turn,
+ * so shard 0 owns x from 0 to width - 1, shard 1 the next stripe, and so on, wrapping around to
+ * shard 0 again. Negative x works the same way.
+ *
+ * The Host and every shard build the same ShardMap from the same options, so they agree on which
+ * shard owns every position without asking each other.
+ */
+public class ShardMap {
+    public static final int REGION_WIDTH = 32; // width of each stripe unless another is given
+    public static final ShardMap SINGLE = new ShardMap(1, REGION_WIDTH); // one server owns the whole map
+
+    private final int shards;
+    private final int regionWidth;
+
+    /**
+     * Constructor for a map split between several shards
+     * @param shards how many shards there are
+     * @param regionWidth the width of each stripe
+     */
+    public ShardMap(int shards, int regionWidth) {
+        if (shards < 1 || regionWidth < 1) {
+            throw new IllegalArgumentException("Need at least one shard and a region width of at least 1");
+        }
+        this.shards = shards;
+        this.regionWidth = regionWidth;
+    }
+
+    /**
+     * Gets which shard owns a position
+     * @param x the x-coordinate
+     * @param y the y-coordinate, which does not matter for stripes but keeps callers independent of the layout
+     * @return the index of the shard
+     */
+    public int shardOf(int x, int y) {
+        return Math.floorMod(Math.floorDiv(x, regionWidth), shards);
+    }
+
+    /**
+     * Gets which shard new players join on, the owner of the spawn point
+     * @return the index of the shard
+     */
+    public int spawnShard() {
+        return shardOf(0, 0);
+    }
+
+    /**
+     * Gets how many shards the map is split between
+     * @return the number of shards
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Gets the width of each stripe
+     * @return the width
+     */
+    public int getRegionWidth() {
+        return regionWidth;
+    }
+
+    /**
+     * Parses a shard given on the command line as index/count, such as 1/3
+     * @param option the option value
+     * @return the index and the count
+     * @throws NumberFormatException if the value is not index/count
+     */
+    public static int[] parseShard(String option) {
+        int slash = option.indexOf('/');
+        if (slash < 0) {
+            throw new NumberFormatException("Expected index/count, such as 0/2, but got " + option);
+        }
+        return new int[]{Integer.parseInt(option.substring(0, slash)), Integer.parseInt(option.substring(slash + 1))};
+    }
+}
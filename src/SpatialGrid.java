@@ -0,0 +1,250 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * A uniform grid that buckets entities by the square cell their position falls in, so range and
+ * nearest-neighbour queries only look at the few cells around a point instead of every entity.
+ * Only cells that hold something are stored, so the world does not need fixed bounds.
+ *
+ * The grid holds entity ids and reads their positions from the EntityStore it indexes.
+ * It can be updated and queried from several threads at once: each cell is changed atomically
+ * and scanned while holding its lock. The store's rows must not be added or removed meanwhile.
+ */
+public class SpatialGrid {
+
+    /** The width and height of every cell. */
+    private final int cellSize;
+
+    /** The store holding the positions of the entities in the grid. */
+    private final EntityStore store;
+
+    /** The ids of the entities in each occupied cell, keyed by the cell's packed coordinates. */
+    private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs an empty grid.
+     *
+     * @param cellSize The width and height of every cell, ideally close to the usual query radius.
+     * @param store    The store holding the positions of the entities in the grid.
+     */
+    public SpatialGrid(int cellSize, EntityStore store) {
+        this.cellSize = cellSize;
+        this.store = store;
+    }
+
+    /**
+     * Adds an entity to the cell its current position falls in.
+     *
+     * @param id The unique ID of the entity.
+     */
+    public void insert(int id) {
+        int row = store.indexOf(id);
+        cells.compute(key(store.getX(row), store.getY(row)), (k, c) -> {
+            if (c == null) {
+                c = new Cell();
+            }
+            c.add(id);
+            return c;
+        });
+    }
+
+    /**
+     * Removes an entity from the cell its current position falls in.
+     *
+     * @param id The unique ID of the entity, still in the store.
+     */
+    public void remove(int id) {
+        int row = store.indexOf(id);
+        remove(id, store.getX(row), store.getY(row));
+    }
+
+    /**
+     * Moves an entity to a new cell after its position changed, if the cell is different.
+     *
+     * @param id   The unique ID of the entity, already at its new position.
+     * @param oldX The x-coordinate it had before moving.
+     * @param oldY The y-coordinate it had before moving.
+     */
+    public void move(int id, int oldX, int oldY) {
+        int row = store.indexOf(id);
+        if (key(oldX, oldY) != key(store.getX(row), store.getY(row))) {
+            remove(id, oldX, oldY);
+            insert(id);
+        }
+    }
+
+    /**
+     * Finds every entity within a radius of a point.
+     *
+     * @param x      The x-coordinate of the point.
+     * @param y      The y-coordinate of the point.
+     * @param radius The largest distance to include.
+     * @param found  Called with the id of every entity found.
+     */
+    public void query(int x, int y, int radius, IntConsumer found) {
+        long radiusSquared = (long) radius * radius;
+        for (int cx = cell(x - radius); cx <= cell(x + radius); cx++) {
+            for (int cy = cell(y - radius); cy <= cell(y + radius); cy++) {
+                Cell c = cells.get(pack(cx, cy));
+                if (c == null) {
+                    continue;
+                }
+                synchronized (c) {
+                    for (int i = 0; i < c.size; i++) {
+                        if (distanceSquared(c.ids[i], x, y) <= radiusSquared) {
+                            found.accept(c.ids[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the closest entity to a point, searching outwards one ring of cells at a time.
+     *
+     * @param x         The x-coordinate of the point.
+     * @param y         The y-coordinate of the point.
+     * @param maxRadius The largest distance to search.
+     * @return The id of the closest entity, or -1 if none is within maxRadius.
+     */
+    public int nearest(int x, int y, int maxRadius) {
+        int centreX = cell(x);
+        int centreY = cell(y);
+        int maxRing = maxRadius / cellSize + 1;
+        long maxSquared = (long) maxRadius * maxRadius;
+
+        int best = -1;
+        long bestSquared = Long.MAX_VALUE;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int cx = centreX - ring; cx <= centreX + ring; cx++) {
+                for (int cy = centreY - ring; cy <= centreY + ring; cy++) {
+                    if (Math.abs(cx - centreX) != ring && Math.abs(cy - centreY) != ring) {
+                        continue; // inner cells were searched by earlier rings
+                    }
+                    Cell c = cells.get(pack(cx, cy));
+                    if (c == null) {
+                        continue;
+                    }
+                    synchronized (c) {
+                        for (int i = 0; i < c.size; i++) {
+                            long d = distanceSquared(c.ids[i], x, y);
+                            if (d < bestSquared && d <= maxSquared) {
+                                best = c.ids[i];
+                                bestSquared = d;
+                            }
+                        }
+                    }
+                }
+            }
+            // everything in the next ring is at least ring * cellSize away
+            long reach = (long) ring * cellSize;
+            if (best != -1 && bestSquared <= reach * reach) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Removes an entity from the cell a given position falls in.
+     *
+     * @param id The unique ID of the entity.
+     * @param x  The x-coordinate the entity was stored under.
+     * @param y  The y-coordinate the entity was stored under.
+     */
+    private void remove(int id, int x, int y) {
+        // only occupied cells are kept
+        cells.computeIfPresent(key(x, y), (k, c) -> c.remove(id) && c.size == 0 ? null : c);
+    }
+
+    /**
+     * Gets the squared distance between an entity and a point.
+     *
+     * @param id The unique ID of the entity.
+     * @param x  The x-coordinate of the point.
+     * @param y  The y-coordinate of the point.
+     * @return The squared distance.
+     */
+    private long distanceSquared(int id, int x, int y) {
+        int row = store.indexOf(id);
+        long dx = store.getX(row) - x;
+        long dy = store.getY(row) - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Gets the cell column or row a coordinate falls in.
+     *
+     * @param coordinate The coordinate.
+     * @return The cell index, rounding down for negative coordinates.
+     */
+    private int cell(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    /**
+     * Gets the key of the cell a position falls in.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return The packed cell key.
+     */
+    private long key(int x, int y) {
+        return pack(cell(x), cell(y));
+    }
+
+    /**
+     * Packs a cell's column and row into a single key.
+     *
+     * @param cx The cell column.
+     * @param cy The cell row.
+     * @return The packed cell key.
+     */
+    private static long pack(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+}
+
+/**
+ * The Cell class holds the ids of the entities in one grid cell as a growable int array.
+ * Readers scan it while synchronized on the cell.
+ */
+class Cell {
+
+    /** The ids of the entities in the cell, valid up to size. */
+    int[] ids = new int[4];
+
+    /** How many ids are in the cell. */
+    int size;
+
+    /**
+     * Adds an id to the cell.
+     *
+     * @param id The id to add.
+     */
+    synchronized void add(int id) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size++] = id;
+    }
+
+    /**
+     * Removes an id from the cell by moving the last id into its place.
+     *
+     * @param id The id to remove.
+     * @return true if the id was in the cell.
+     */
+    synchronized boolean remove(int id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                ids[i] = ids[--size];
+                return true;
+            }
+        }
+        return false;
+    }
+}
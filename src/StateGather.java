@@ -0,0 +1,214 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Collects the answers of every shard to one STATE request and merges them into the single
+ * snapshot the client asked for. A shard's answer may arrive in fragments, which are put back
+ * together with a Reassembler of that shard. Reused for one request after another, so the Host
+ * keeps a few and allocates nothing per STATE once they have grown.
+ *
+ * Every shard is asked for a full snapshot. The merged snapshot has every shard's players and
+ * loot boxes, and the sum of their versions as its version, which grows whenever any shard
+ * changes. A STATE for one player's surroundings finds the player on one shard only, and the
+ * merged snapshot keeps that shard's VIEW.
+ */
+public class StateGather {
+    private final Reassembler[] reassemblers;
+    private final String[] parts; // each shard's STATE_DATA text, null until it arrives
+    private final Frame decoded = new Frame();
+    private int remaining; // shards that have not answered yet
+    private PooledBuffer request; // kept to ask a shard again
+    private long lastActivity; // when the latest answer or fragment arrived, or the shards were last asked
+    private int attempts; // how many times the shards were asked again
+
+    /**
+     * Constructor for a gather across shards
+     * @param shards how many shards answer
+     */
+    public StateGather(int shards) {
+        reassemblers = new Reassembler[shards];
+        parts = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            reassemblers[i] = new Reassembler();
+        }
+    }
+
+    /**
+     * Starts gathering the answers to a request
+     * @param request the STATE request sent to every shard, retained until reset
+     * @param now the current time in ms
+     */
+    public void begin(PooledBuffer request, long now) {
+        this.request = request.retain();
+        remaining = parts.length;
+        lastActivity = now;
+        attempts = 0;
+    }
+
+    /**
+     * Adds an answer, or a fragment of one, from a shard
+     * @param shard the index of the shard
+     * @param response the STATE_DATA or FRAGMENT frame, from its position to its limit
+     * @param now the current time in ms
+     * @return if every shard has now answered
+     */
+    public boolean accept(int shard, ByteBuffer response, long now) {
+        if (parts[shard] != null) {
+            return remaining == 0; // a duplicate
+        }
+        lastActivity = now;
+        ByteBuffer message = response;
+        if (response.get(response.position() + WireCodec.OPCODE_OFFSET) == Frame.FRAGMENT) {
+            if (!reassemblers[shard].accept(response)) {
+                return false;
+            }
+            message = reassemblers[shard].message();
+        }
+        if (!WireCodec.decode(message.duplicate(), decoded) || decoded.getOpcode() != Frame.STATE_DATA) {
+            return false;
+        }
+        parts[shard] = decoded.getText() == null ? "" : decoded.getText();
+        reassemblers[shard].reset();
+        return --remaining == 0;
+    }
+
+    /**
+     * Merges every shard's answer into one full snapshot
+     * @return VERSION=sum;PLAYERS=[...];LOOT=[...], with the VIEW of the shard the player is on if any
+     */
+    public String merge() {
+        long version = 0;
+        String view = "";
+        StringBuilder players = new StringBuilder();
+        StringBuilder loot = new StringBuilder();
+        for (String part : parts) {
+            version += number(part, "VERSION=");
+            if (view.isEmpty()) {
+                view = field(part, "VIEW=");
+            }
+            players.append(list(part, "PLAYERS=["));
+            loot.append(list(part, "LOOT=["));
+        }
+        return "VERSION=" + version + (view.isEmpty() ? "" : ";VIEW=" + view)
+                + ";PLAYERS=[" + players + "];LOOT=[" + loot + "]";
+    }
+
+    /**
+     * Reads the number after a key in a snapshot
+     * @param part the snapshot
+     * @param key the key, such as VERSION=
+     * @return the number, or 0 if the key is missing
+     */
+    private static long number(String part, String key) {
+        int start = part.indexOf(key);
+        if (start < 0) {
+            return 0;
+        }
+        start += key.length();
+        int end = part.indexOf(';', start);
+        return Long.parseLong(part.substring(start, end < 0 ? part.length() : end));
+    }
+
+    /**
+     * Reads the value after a key in a snapshot, up to the next semicolon
+     * @param part the snapshot
+     * @param key the key, such as VIEW=
+     * @return the value, empty if the key is missing
+     */
+    private static String field(String part, String key) {
+        int start = part.indexOf(key);
+        if (start < 0) {
+            return "";
+        }
+        start += key.length();
+        return part.substring(start, part.indexOf(';', start));
+    }
+
+    /**
+     * Reads the entries of a list in a snapshot, each of which ends with a comma
+     * @param part the snapshot
+     * @param key the key and opening bracket, such as PLAYERS=[
+     * @return the entries, empty if the key is missing
+     */
+    private static String list(String part, String key) {
+        int start = part.indexOf(key);
+        if (start < 0) {
+            return "";
+        }
+        start += key.length();
+        return part.substring(start, part.indexOf(']', start));
+    }
+
+    /**
+     * Checks whether a shard has answered
+     * @param shard the index of the shard
+     * @return if its whole answer arrived
+     */
+    public boolean hasAnswered(int shard) {
+        return parts[shard] != null;
+    }
+
+    /**
+     * Gets the reassembler of a shard's answer, to find its missing fragments
+     * @param shard the index of the shard
+     * @return the reassembler, whose message id is 0 if no fragment arrived
+     */
+    public Reassembler getReassembler(int shard) {
+        return reassemblers[shard];
+    }
+
+    /**
+     * Gets the STATE request, to send it to a shard again
+     * @return the request
+     */
+    public PooledBuffer getRequest() {
+        return request;
+    }
+
+    /**
+     * Gets the session id of the request
+     * @return the session id
+     */
+    public int getSessionId() {
+        return request.buffer().getInt(WireCodec.SESSION_OFFSET);
+    }
+
+    /**
+     * Gets the request id of the request
+     * @return the request id
+     */
+    public int getRequestId() {
+        return request.buffer().getInt(WireCodec.REQUEST_ID_OFFSET);
+    }
+
+    /**
+     * Gets when an answer last arrived or the shards were last asked again
+     * @return the time in ms
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Notes that the missing answers were asked for again
+     * @param now the current time in ms
+     * @return how many times they have been asked for
+     */
+    public int retried(long now) {
+        lastActivity = now;
+        return ++attempts;
+    }
+
+    /**
+     * Forgets the request and every answer so the gather can be reused
+     */
+    public void reset() {
+        if (request != null) {
+            request.release();
+            request = null;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = null;
+            reassemblers[i].reset();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Pushes state updates to the sessions that sent SUBSCRIBE, so they no longer have to poll with
+ * STATE. At most once every interval, each game that changed since its last push is serialized
+ * once, as a delta since that push, and encoded once into an UPDATE frame. Every change made
+ * between two pushes is coalesced into the next one.
+ *
+ * The same bytes go to every subscriber of the game: only the session id in the header, which the
+ * Host routes by, is stamped in before each send, so N subscribers cost one serialization, one
+ * encoding and N sends. An UPDATE too big for one datagram is split into fragments once, and each
+ * fragment is sent to every subscriber in turn.
+ *
+ * Subscribing is safe from any thread; the pushes are made by a single timer thread, started by
+ * the first subscription.
+ */
+public class StatePublisher {
+    public static final long PUSH_INTERVAL = 50; // ms between pushes unless another interval is given
+
+    private final long intervalMillis;
+    private final Fragmenter fragmenter;
+    private final Consumer<ByteBuffer> sink; // sends an encoded frame to the host
+    private final ServerMetrics metrics;
+    private final Map<GameState, Topic> topics = new ConcurrentHashMap<>(); // game -> its subscribers
+    private ScheduledExecutorService timer; // null until the first subscription
+    // only touched by the timer thread
+    private final Frame update = new Frame();
+    private ByteBuffer message = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM); // grows to fit the biggest update
+    private final ByteBuffer fragment = ByteBuffer.allocateDirect(WireCodec.MAX_DATAGRAM);
+
+    /**
+     * Constructor for a publisher with no subscribers yet
+     * @param intervalMillis ms between pushes
+     * @param fragmenter splits updates too big for one datagram, and keeps their fragments for resends
+     * @param sink sends an encoded frame to the host, from its position to its limit
+     * @param metrics where the pushes are counted
+     */
+    public StatePublisher(long intervalMillis, Fragmenter fragmenter, Consumer<ByteBuffer> sink, ServerMetrics metrics) {
+        this.intervalMillis = intervalMillis;
+        this.fragmenter = fragmenter;
+        this.sink = sink;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Pushes the changes to a game to a session from now on. Serialize the game for the session
+     * after subscribing, so the first push it gets holds nothing older than what it was sent
+     * @param gameState the game
+     * @param sessionId the session to push to
+     */
+    public void subscribe(GameState gameState, int sessionId) {
+        topics.computeIfAbsent(gameState, Topic::new).sessions.add(sessionId);
+        synchronized (this) {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "state-push");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                timer.scheduleAtFixedRate(this::pushAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stops pushing to a session, whatever game it subscribed to
+     * @param sessionId the session
+     */
+    public void unsubscribe(int sessionId) {
+        for (Topic topic : topics.values()) {
+            topic.sessions.remove(sessionId);
+        }
+    }
+
+    /**
+     * Stops pushing the changes to a game that has finished
+     * @param gameState the game
+     */
+    public void drop(GameState gameState) {
+        topics.remove(gameState);
+    }
+
+    /**
+     * Pushes what changed in every game with subscribers since its last push. Run by the timer, so
+     * anything a push throws is logged rather than cancelling every later push
+     */
+    private void pushAll() {
+        try {
+            pushChanges();
+        } catch (RuntimeException e) {
+            Log.error("[Server] Pushing updates failed: {}", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Pushes what changed in every game with subscribers since its last push
+     */
+    private void pushChanges() {
+        for (Topic topic : topics.values()) {
+            if (topic.sessions.isEmpty() || topic.gameState.getVersion() == topic.version) {
+                continue; // nobody to tell, or nothing to tell them
+            }
+            String delta = topic.gameState.serialize(topic.version);
+            topic.version = Long.parseLong(delta.substring("VERSION=".length(), delta.indexOf(';')));
+            update.reset(Frame.UPDATE);
+            update.setText(delta);
+            encode();
+            metrics.updatePushed(push(topic.sessions));
+        }
+    }
+
+    /**
+     * Encodes the update, growing the message buffer until it fits
+     */
+    private void encode() {
+        while (true) {
+            try {
+                WireCodec.encode(update, message);
+                return;
+            } catch (BufferOverflowException e) {
+                message = ByteBuffer.allocateDirect(message.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Sends the encoded update to every subscriber, in fragments if it does not fit in one datagram
+     * @param sessions the subscribers
+     * @return how many subscribers it was sent to
+     */
+    private int push(Set<Integer> sessions) {
+        if (!Fragmenter.needsFragmenting(message)) {
+            return sendToAll(message, sessions);
+        }
+        int messageId = fragmenter.split(message);
+        int count = Fragmenter.fragmentCount(message.remaining());
+        int sent = 0;
+        for (int index = 0; index < count; index++) {
+            fragmenter.encodeFragment(messageId, index, fragment);
+            sent = sendToAll(fragment, sessions);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the same encoded frame to every subscriber, stamping each one's session id into it
+     * @param frame the encoded frame, from its position to its limit
+     * @param sessions the subscribers
+     * @return how many subscribers it was sent to
+     */
+    private int sendToAll(ByteBuffer frame, Set<Integer> sessions) {
+        int sent = 0;
+        for (int sessionId : sessions) {
+            frame.putInt(WireCodec.SESSION_OFFSET, sessionId);
+            sink.accept(frame.duplicate());
+            sent++;
+        }
+        return sent;
+    }
+}
+
+/**
+ * The sessions subscribed to one game, and the version they were last pushed
+ */
+class Topic {
+    final GameState gameState;
+    final Set<Integer> sessions = ConcurrentHashMap.newKeySet();
+    long version; // the version of the latest push, only touched by the timer thread
+
+    /**
+     * Constructor for a game nobody has been pushed anything about yet
+     * @param gameState the game
+     */
+    Topic(GameState gameState) {
+        this.gameState = gameState;
+        this.version = gameState.getVersion();
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Interns strings, such as player names and loot types, into small integer ids. Ids are dealt out
+ * in order from 0 and a string keeps its id for as long as the dictionary lives, so a client that
+ * has been sent the first n entries of a dictionary only ever needs the entries after them.
+ *
+ * Every dictionary has a random id of its own, so a client can tell it apart from the dictionary
+ * of another game, or of the same game before the server restarted.
+ *
+ * Interning is synchronized; looking an id up takes no lock and is safe from any thread that got
+ * the id after it was interned.
+ */
+public class StringDictionary {
+
+    /** Tells this dictionary apart from every other one, never 0. */
+    private final int id = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+
+    /** The id of every string interned so far. */
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /** The strings by id, replaced by a bigger copy when full. */
+    private volatile String[] strings = new String[16];
+
+    /** How many strings have been interned. */
+    private volatile int size;
+
+    /**
+     * Gets the id of a string, interning it first if it is new.
+     *
+     * @param string The string.
+     * @return Its id.
+     */
+    public synchronized int intern(String string) {
+        Integer existing = ids.get(string);
+        if (existing != null) {
+            return existing;
+        }
+        int next = size;
+        String[] current = strings;
+        if (next == current.length) {
+            current = Arrays.copyOf(current, next * 2);
+        }
+        current[next] = string;
+        strings = current; // published before the size that makes the new id valid
+        ids.put(string, next);
+        size = next + 1;
+        return next;
+    }
+
+    /**
+     * Gets the string with an id.
+     *
+     * @param index The id, from intern.
+     * @return The string.
+     */
+    public String get(int index) {
+        return strings[index];
+    }
+
+    /**
+     * Gets how many strings have been interned, which is also the id the next one gets.
+     *
+     * @return The number of strings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the id of the dictionary itself.
+     *
+     * @return The dictionary id, never 0.
+     */
+    public int getId() {
+        return id;
+    }
+}
@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Applies MOVE and PICKUP requests at a fixed tick rate instead of as they arrive. Requests are
+ * queued without locking, and every tick drains the queue, applies the whole batch to the
+ * GameState, answers every request and publishes the version it reached, so locking and
+ * sending are paid once per tick rather than once per request. The full snapshot of that version
+ * is only serialized when first asked for, once per version however many ask.
+ *
+ * Within a tick every move is applied first, then the pickups in the order they arrived, so when
+ * several players reach for the same loot box the first valid pickup wins.
+ */
+public class TickEngine {
+    public static final int MAX_COMMANDS = 4096; // most requests applied in one tick, the rest wait for the next
+
+    private final GameState gameState;
+    private final Consumer<Frame> replies;
+    private final long tickNanos;
+    private final Queue<Frame> queued = new ConcurrentLinkedQueue<>();
+    private final Queue<Frame> free = new ConcurrentLinkedQueue<>(); // frames recycled once their tick is over
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final LatencyStats tickTimes;
+
+    // only touched by the tick thread
+    private final List<Frame> moves = new ArrayList<>();
+    private final List<Frame> pickups = new ArrayList<>();
+    private int[] playerIds = new int[64];
+    private int[] dxs = new int[64];
+    private int[] dys = new int[64];
+    private final Frame reply = new Frame();
+
+    private volatile long tick;
+    private volatile long publishedVersion = -1; // the version the latest tick ended on
+    private volatile long snapshotVersion = -1; // the version publishedVersion had when snapshot was serialized
+    private volatile String snapshot;
+    private final Object serializing = new Object();
+    private volatile MatchRecorder recorder; // null unless the match is being recorded
+    private volatile IntConsumer moved; // null unless something must see every player a tick moves
+
+    /**
+     * Constructor for a tick engine, which does nothing until started
+     * @param gameState the game state the requests are applied to
+     * @param tickRate how many ticks to run per second
+     * @param replies sends a response back to the host, called on the tick thread
+     * @param tickTimes where how long each tick takes is recorded
+     */
+    public TickEngine(GameState gameState, int tickRate, Consumer<Frame> replies, LatencyStats tickTimes) {
+        if (tickRate <= 0) {
+            throw new IllegalArgumentException("Tick rate must be positive: " + tickRate);
+        }
+        this.gameState = gameState;
+        this.replies = replies;
+        this.tickTimes = tickTimes;
+        this.tickNanos = TimeUnit.SECONDS.toNanos(1) / tickRate;
+        publish();
+    }
+
+    /**
+     * Starts running ticks at the fixed rate
+     */
+    public void start() {
+        timer.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records every move and pickup applied from now on
+     * @param recorder the recorder, or null to stop recording
+     */
+    public void setRecorder(MatchRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Calls a listener with the id of every player a tick moves, after the moves are applied and
+     * before they are answered, such as a shard handing over players who left its regions
+     * @param moved the listener, or null for none
+     */
+    public void setMoveListener(IntConsumer moved) {
+        this.moved = moved;
+    }
+
+    /**
+     * Stops running ticks once the current one is over
+     */
+    public void stop() {
+        timer.shutdown();
+    }
+
+    /**
+     * Queues a MOVE or PICKUP request for the next tick. Safe to call from any thread
+     * @param request the request, copied so the caller can reuse it straight away
+     */
+    public void submit(Frame request) {
+        Frame copy = free.poll();
+        if (copy == null) {
+            copy = new Frame();
+        }
+        copy.copyFrom(request);
+        queued.add(copy);
+    }
+
+    /**
+     * Gets how many ticks have run
+     * @return the tick count
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Gets a full snapshot of the game as of the latest tick, serialized by the first caller after
+     * a tick that changed the game and shared by every later one until the next such tick
+     * @return the snapshot, in the same format as GameState.serialize(0)
+     */
+    public String getSnapshot() {
+        long version = publishedVersion;
+        if (snapshotVersion != version) {
+            synchronized (serializing) {
+                if (snapshotVersion != version) {
+                    snapshot = gameState.serialize(0);
+                    snapshotVersion = version; // written after the snapshot, so whoever sees it sees the snapshot
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Runs one tick, logging anything it throws rather than letting it cancel every later tick
+     */
+    private void tick() {
+        try {
+            applyTick();
+        } catch (RuntimeException e) {
+            Log.error("[Server] Tick {} failed: {}", tick + 1, e);
+            e.printStackTrace();
+        } finally {
+            recycle(moves);
+            recycle(pickups);
+        }
+    }
+
+    /**
+     * Applies one tick: drains the queued requests, applies them, answers them and publishes the result
+     */
+    private void applyTick() {
+        long start = System.nanoTime();
+        Frame request;
+        int count = 0;
+        while (count < MAX_COMMANDS && (request = queued.poll()) != null) {
+            (request.getOpcode() == Frame.MOVE ? moves : pickups).add(request);
+            count++;
+        }
+
+        MatchRecorder recording = recorder;
+        if (recording == null) {
+            applyMoves(null);
+            applyPickups(null);
+        } else {
+            synchronized (recording) { // so the recording holds the tick's changes in the order they were applied
+                applyMoves(recording);
+                applyPickups(recording);
+            }
+        }
+        publish();
+        tick++;
+        tickTimes.record(System.nanoTime() - start);
+
+        if (count > 0 && Log.isDebugEnabled()) {
+            Log.debug("[Server] Tick {} applied {} requests", tick, count);
+        }
+    }
+
+    /**
+     * Applies every move of the tick in one batch and answers them
+     * @param recording records the moves, or null
+     */
+    private void applyMoves(MatchRecorder recording) {
+        int count = moves.size();
+        if (playerIds.length < count) {
+            int capacity = Math.max(count, playerIds.length * 2);
+            playerIds = Arrays.copyOf(playerIds, capacity);
+            dxs = Arrays.copyOf(dxs, capacity);
+            dys = Arrays.copyOf(dys, capacity);
+        }
+        for (int i = 0; i < count; i++) {
+            Frame move = moves.get(i);
+            playerIds[i] = move.getPlayerId();
+            dxs[i] = move.getDx();
+            dys[i] = move.getDy();
+        }
+        gameState.movePlayers(count, playerIds, dxs, dys);
+        if (recording != null) {
+            for (int i = 0; i < count; i++) {
+                recording.recordMove(playerIds[i], dxs[i], dys[i]);
+            }
+        }
+        IntConsumer listener = moved;
+        if (listener != null) {
+            for (int i = 0; i < count; i++) {
+                listener.accept(playerIds[i]);
+            }
+        }
+
+        for (Frame move : moves) {
+            respond(move, Frame.MOVE_OK);
+        }
+    }
+
+    /**
+     * Applies the pickups of the tick in the order they arrived and answers them. A loot box is
+     * gone once picked up, so any later pickup of it in the same tick fails
+     * @param recording records the pickups, or null
+     */
+    private void applyPickups(MatchRecorder recording) {
+        for (Frame pickup : pickups) {
+            boolean picked = gameState.processPickup(pickup.getPlayerId(), pickup.getLootId());
+            if (recording != null) {
+                recording.recordPickup(pickup.getPlayerId(), pickup.getLootId(), picked);
+            }
+            respond(pickup, picked ? Frame.PICKUP_OK : Frame.PICKUP_FAIL);
+        }
+    }
+
+    /**
+     * Sends the response to a request
+     * @param request the request being answered
+     * @param opcode the opcode of the response
+     */
+    private void respond(Frame request, byte opcode) {
+        reply.reset(opcode);
+        // the response carries the same ids so the host can route it back to the client
+        reply.setSessionId(request.getSessionId());
+        reply.setRequestId(request.getRequestId());
+        replies.accept(reply);
+    }
+
+    /**
+     * Publishes the version the game reached, so the next getSnapshot serializes it if it changed
+     */
+    private void publish() {
+        publishedVersion = gameState.getVersion();
+    }
+
+    /**
+     * Returns the frames of a finished tick to the free list
+     * @param requests the requests of the tick, cleared afterwards
+     */
+    private void recycle(List<Frame> requests) {
+        free.addAll(requests);
+        requests.clear();
+    }
+}
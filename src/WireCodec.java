@@ -0,0 +1,320 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes frames using the binary wire format shared by the client, host and server.
+ *
+ * Every frame starts with the same header, followed by a body that depends on the opcode:
+ * <pre>
+ * header:      version(1) opcode(1) sessionId(4) requestId(4) seq(4) ack(4) ackBits(4)
+ * JOIN:        nameLength(4) name(UTF-8) matchId(4), the match to join or 0 to be matched
+ * MOVE:        playerId(4) dx(4) dy(4)
+ * PICKUP:      playerId(4) lootId(4)
+ * STATE:       since(8) playerId(4), the player whose surroundings to show or 0 for the whole world
+ * RESEND:      messageId(4) index(2)
+ * STATS:       textLength(4) text(UTF-8), the host's metrics, empty when sent by the client
+ * HANDOFF:     playerId(4) x(4) y(4) health(4) nameLength(4) name(UTF-8)
+ * JOINED:      playerId(4) matchId(4)
+ * STATE_DATA:  textLength(4) text(UTF-8)
+ * BATCH_ACK:   count(4)
+ * FRAGMENT:    messageId(4) index(2) count(2) totalLength(4) payload
+ * STATS_DATA:  textLength(4) text(UTF-8)
+ * UPDATE:      textLength(4) text(UTF-8), what changed since the previous UPDATE
+ * SNAPSHOT:    dictionaryId(4) known(4), the dictionary the client has and how many of its entries
+ * SNAPSHOT_DATA: dataLength(4) data, a full snapshot in the compact form of CompactSnapshot
+ * </pre>
+ * All other opcodes have an empty body. All integers are big-endian. A matchId missing at the end of
+ * a JOIN or JOINED, as sent before there were several matches per server, reads as 0, and so does a
+ * playerId missing at the end of a STATE.
+ *
+ * The seq, ack and ackBits fields belong to the reliability layer between the client and the host
+ * (see ReliableLink), which stamps them in place just before sending. They are 0 everywhere else.
+ *
+ * Between the host and a server, several frames may share one BUNDLE datagram, each after its
+ * length(2), see DatagramBatcher.
+ *
+ * A frame too big for one datagram is sent as FRAGMENT frames, each carrying a slice of the
+ * encoded frame, see Fragmenter and Reassembler.
+ */
+public class WireCodec {
+    public static final byte VERSION = 3;
+    public static final int OPCODE_OFFSET = 1;
+    public static final int SESSION_OFFSET = 2;
+    public static final int REQUEST_ID_OFFSET = 6;
+    public static final int SEQ_OFFSET = 10;
+    public static final int ACK_OFFSET = 14;
+    public static final int ACK_BITS_OFFSET = 18;
+    public static final int HEADER_SIZE = 22;
+    public static final int MAX_DATAGRAM = 1024; // largest datagram any receiver reads
+    public static final int SOCKET_BUFFER = 4 * 1024 * 1024; // receive buffer asked for, so bursts are not dropped
+    public static final int FRAGMENT_HEADER_SIZE = HEADER_SIZE + 12;
+    public static final int FRAGMENT_PAYLOAD = MAX_DATAGRAM - FRAGMENT_HEADER_SIZE;
+
+    private static final ThreadLocal<byte[]> textScratch = ThreadLocal.withInitial(() -> new byte[MAX_DATAGRAM]);
+
+    /**
+     * Checks that a received datagram is a frame of the version this codec understands
+     * @param in the datagram, from its position to its limit
+     * @return if the datagram holds a valid frame header
+     */
+    public static boolean isValid(ByteBuffer in) {
+        return in.remaining() >= HEADER_SIZE && in.get(in.position()) == VERSION;
+    }
+
+    /**
+     * Writes only a frame header, for responses such as ACCEPT that have no body
+     * @param out the buffer to write into, cleared first and flipped ready to send
+     * @param opcode the opcode of the frame
+     * @param sessionId the session id
+     * @param requestId the request id
+     */
+    public static void encodeHeader(ByteBuffer out, byte opcode, int sessionId, int requestId) {
+        out.clear();
+        putHeader(out, opcode, sessionId, requestId);
+        out.flip();
+    }
+
+    /**
+     * Writes a frame header at the buffer's position, leaving the buffer ready for the body. The
+     * reliability fields are left 0 for the ReliableLink to fill in
+     * @param out the buffer to write into
+     * @param opcode the opcode of the frame
+     * @param sessionId the session id
+     * @param requestId the request id
+     */
+    public static void putHeader(ByteBuffer out, byte opcode, int sessionId, int requestId) {
+        out.put(VERSION).put(opcode).putInt(sessionId).putInt(requestId).putInt(0).putInt(0).putInt(0);
+    }
+
+    /**
+     * Writes a frame into a buffer
+     * @param frame the frame to encode
+     * @param out the buffer to write into, cleared first and flipped ready to send
+     * @throws java.nio.BufferOverflowException if the buffer is too small for the frame
+     */
+    public static void encode(Frame frame, ByteBuffer out) {
+        out.clear();
+        putHeader(out, frame.getOpcode(), frame.getSessionId(), frame.getRequestId());
+        switch (frame.getOpcode()) {
+            case Frame.STATE_DATA, Frame.STATS, Frame.STATS_DATA, Frame.UPDATE -> putText(out, frame.getText());
+            case Frame.JOIN -> {
+                putText(out, frame.getText());
+                out.putInt(frame.getMatchId());
+            }
+            case Frame.MOVE -> out.putInt(frame.getPlayerId()).putInt(frame.getDx()).putInt(frame.getDy());
+            case Frame.PICKUP -> out.putInt(frame.getPlayerId()).putInt(frame.getLootId());
+            case Frame.STATE -> out.putLong(frame.getSince()).putInt(frame.getPlayerId());
+            case Frame.SNAPSHOT -> out.putInt(frame.getDictionaryId()).putInt(frame.getCount());
+            case Frame.SNAPSHOT_DATA -> {
+                byte[] data = frame.getData() == null ? new byte[0] : frame.getData();
+                out.putInt(data.length).put(data);
+            }
+            case Frame.RESEND -> out.putInt(frame.getMessageId()).putShort((short) frame.getIndex());
+            case Frame.JOINED -> out.putInt(frame.getPlayerId()).putInt(frame.getMatchId());
+            case Frame.BATCH_ACK -> out.putInt(frame.getCount());
+            case Frame.HANDOFF -> {
+                out.putInt(frame.getPlayerId()).putInt(frame.getX()).putInt(frame.getY()).putInt(frame.getHealth());
+                putText(out, frame.getText());
+            }
+            default -> { } // nothing but the header
+        }
+        out.flip();
+    }
+
+    /**
+     * Reads a frame out of a received datagram
+     * @param in the datagram, from its position to its limit
+     * @param frame the frame to decode into
+     * @return if the datagram held a valid frame
+     */
+    public static boolean decode(ByteBuffer in, Frame frame) {
+        if (!isValid(in)) {
+            return false;
+        }
+        in.get(); // version
+        frame.reset(in.get());
+        frame.setSessionId(in.getInt());
+        frame.setRequestId(in.getInt());
+        in.position(in.position() + 12); // seq, ack and ackBits are handled by the ReliableLink
+        try {
+            switch (frame.getOpcode()) {
+                case Frame.STATE_DATA, Frame.STATS, Frame.STATS_DATA, Frame.UPDATE -> frame.setText(getText(in));
+                case Frame.JOIN -> {
+                    frame.setText(getText(in));
+                    frame.setMatchId(in.remaining() >= 4 ? in.getInt() : 0);
+                }
+                case Frame.MOVE -> {
+                    frame.setPlayerId(in.getInt());
+                    frame.setDx(in.getInt());
+                    frame.setDy(in.getInt());
+                }
+                case Frame.PICKUP -> {
+                    frame.setPlayerId(in.getInt());
+                    frame.setLootId(in.getInt());
+                }
+                case Frame.STATE -> {
+                    frame.setSince(in.getLong());
+                    frame.setPlayerId(in.remaining() >= 4 ? in.getInt() : 0);
+                }
+                case Frame.SNAPSHOT -> {
+                    frame.setDictionaryId(in.getInt());
+                    frame.setCount(in.getInt());
+                }
+                case Frame.SNAPSHOT_DATA -> frame.setData(getData(in));
+                case Frame.RESEND -> {
+                    frame.setMessageId(in.getInt());
+                    frame.setIndex(Short.toUnsignedInt(in.getShort()));
+                }
+                case Frame.JOINED -> {
+                    frame.setPlayerId(in.getInt());
+                    frame.setMatchId(in.remaining() >= 4 ? in.getInt() : 0);
+                }
+                case Frame.BATCH_ACK -> frame.setCount(in.getInt());
+                case Frame.HANDOFF -> {
+                    frame.setPlayerId(in.getInt());
+                    frame.setX(in.getInt());
+                    frame.setY(in.getInt());
+                    frame.setHealth(in.getInt());
+                    frame.setText(getText(in));
+                }
+                default -> { } // nothing but the header
+            }
+        } catch (RuntimeException e) { // body is shorter than its opcode needs
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string
+     * @param out the buffer to write into
+     * @param text the string to write
+     */
+    private static void putText(ByteBuffer out, String text) {
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string
+     * @param in the buffer to read from
+     * @return the string
+     */
+    private static String getText(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException(); // length does not match what was received
+        }
+        String text;
+        if (in.hasArray()) {
+            text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else { // a direct buffer, copied out through this thread's scratch array
+            byte[] bytes = textScratch.get();
+            if (bytes.length < length) {
+                bytes = new byte[length];
+                textScratch.set(bytes);
+            }
+            in.get(in.position(), bytes, 0, length);
+            text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return text;
+    }
+
+    /**
+     * Reads a length-prefixed binary body
+     * @param in the buffer to read from
+     * @return a copy of the body
+     */
+    private static byte[] getData(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException(); // length does not match what was received
+        }
+        byte[] data = new byte[length];
+        in.get(data);
+        return data;
+    }
+
+    /**
+     * Converts a command in the old colon-delimited text format, such as MOVE:100:5:5, into a frame.
+     * STATE may be followed by a version, such as STATE:12, to ask for only what changed since then,
+     * and then by a player id, such as STATE:0:100, to ask for only that player's surroundings
+     * @param command the text command
+     * @return the frame, with opcode UNKNOWN if the command could not be understood
+     */
+    public static Frame fromText(String command) {
+        String[] m = command.split(":"); // parse message for the specific command
+        Frame frame = new Frame();
+        try {
+            switch (m[0]) {
+                case "JOIN" -> {
+                    frame.reset(Frame.JOIN);
+                    frame.setText(command.substring(5));
+                }
+                case "MOVE" -> {
+                    frame.reset(Frame.MOVE);
+                    frame.setPlayerId(Integer.parseInt(m[1]));
+                    frame.setDx(Integer.parseInt(m[2]));
+                    frame.setDy(Integer.parseInt(m[3]));
+                }
+                case "PICKUP" -> {
+                    frame.reset(Frame.PICKUP);
+                    frame.setPlayerId(Integer.parseInt(m[1]));
+                    frame.setLootId(Integer.parseInt(m[2]));
+                }
+                case "STATE" -> {
+                    frame.reset(Frame.STATE);
+                    if (m.length > 1) { // STATE:version asks for only what changed since that version
+                        frame.setSince(Long.parseLong(m[1]));
+                    }
+                    if (m.length > 2) { // STATE:version:player asks for what is around that player
+                        frame.setPlayerId(Integer.parseInt(m[2]));
+                    }
+                }
+                case "QUIT" -> frame.reset(Frame.QUIT);
+                case "STATS" -> frame.reset(Frame.STATS);
+                case "SUBSCRIBE" -> frame.reset(Frame.SUBSCRIBE);
+                case "SNAPSHOT" -> {
+                    frame.reset(Frame.SNAPSHOT);
+                    if (m.length > 2) { // SNAPSHOT:dictionary:known leaves out the entries the client has
+                        frame.setDictionaryId(Integer.parseInt(m[1]));
+                        frame.setCount(Integer.parseInt(m[2]));
+                    }
+                }
+                default -> frame.reset(Frame.UNKNOWN);
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            frame.reset(Frame.UNKNOWN); // missing or malformed arguments
+        }
+        return frame;
+    }
+
+    /**
+     * Converts a frame into the old colon-delimited text format, such as JOINED:100
+     * @param frame the frame
+     * @return the text form of the frame
+     */
+    public static String toText(Frame frame) {
+        return switch (frame.getOpcode()) {
+            case Frame.JOIN -> "JOIN:" + frame.getText();
+            case Frame.MOVE -> "MOVE:" + frame.getPlayerId() + ":" + frame.getDx() + ":" + frame.getDy();
+            case Frame.PICKUP -> "PICKUP:" + frame.getPlayerId() + ":" + frame.getLootId();
+            case Frame.STATE -> frame.getPlayerId() > 0 ? "STATE:" + frame.getSince() + ":" + frame.getPlayerId()
+                    : frame.getSince() > 0 ? "STATE:" + frame.getSince() : "STATE";
+            case Frame.RESEND -> "RESEND:" + frame.getMessageId() + ":" + frame.getIndex();
+            case Frame.JOINED -> "JOINED:" + frame.getPlayerId() + (frame.getMatchId() > 0 ? ":" + frame.getMatchId() : "");
+            case Frame.STATE_DATA, Frame.STATS_DATA, Frame.UPDATE -> frame.getText();
+            case Frame.STATS -> "STATS";
+            case Frame.SUBSCRIBE -> "SUBSCRIBE";
+            case Frame.SNAPSHOT -> "SNAPSHOT:" + frame.getDictionaryId() + ":" + frame.getCount();
+            case Frame.SNAPSHOT_DATA -> "SNAPSHOT_DATA:" + (frame.getData() == null ? 0 : frame.getData().length) + " bytes";
+            case Frame.BATCH_ACK -> "BATCH_ACK:" + frame.getCount();
+            case Frame.HANDOFF -> "HANDOFF:" + frame.getPlayerId() + ":" + frame.getX() + ":" + frame.getY() + ":"
+                    + frame.getHealth() + ":" + frame.getText();
+            default -> frame.getText() != null ? frame.getText() : Frame.opcodeName(frame.getOpcode());
+        };
+    }
+}
@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes the game survive a crash or a restart. GameState appends every join, move and successful
+ * pickup here as a small binary record, and on a shard every player handed over to or from it. Every so often a GameSnapshot of the whole game is written
+ * and the log starts a new segment, so older segments can be deleted. On startup, open loads the
+ * latest snapshot and replays the segments written since.
+ *
+ * Segments are memory-mapped files of SEGMENT_SIZE bytes, so appending a record is a memory copy
+ * of a few bytes, and a record reaches the operating system as soon as it is written. Killing the
+ * process therefore loses nothing. Surviving a power cut takes an fsync, and when to do one is up
+ * to the SyncPolicy:
+ * <ul>
+ *   <li>NEVER leaves flushing to the operating system</li>
+ *   <li>INTERVAL flushes from a background thread every few milliseconds, losing at most that much</li>
+ *   <li>ALWAYS flushes before each response is sent (see commit). Threads waiting at the same time share
+ *       one flush (group commit)</li>
+ * </ul>
+ *
+ * A record starts with its type byte, which is written last. A record cut short by a crash
+ * therefore reads as the end of the log, just like the zeros after the last record.
+ */
+public class WriteAheadLog {
+    public enum SyncPolicy { NEVER, INTERVAL, ALWAYS }
+
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024; // bytes mapped per segment file
+    public static final long SNAPSHOT_INTERVAL = 30_000; // ms between snapshots by default
+    public static final long SYNC_INTERVAL = 100; // ms between flushes with the INTERVAL policy by default
+
+    // record types, 0 marks the end of the log
+    private static final byte JOIN = 1;
+    private static final byte MOVE = 2;
+    private static final byte PICKUP = 3;
+    private static final byte ADOPT = 4;
+    private static final byte RELEASE = 5;
+
+    private final Path directory;
+    private final SyncPolicy policy;
+    private final Object syncLock = new Object(); // held while flushing, so waiting threads share one flush
+    private MappedByteBuffer current;
+    private long segment; // number of the current segment
+    private long segmentStart; // how many bytes were appended before the current segment
+    private long appended; // how many bytes were appended in total, guarded by this
+    private volatile long synced; // how many bytes are known to be on disk
+    private GameState gameState; // the game recovered by open
+
+    /**
+     * Constructor for a log that starts a new segment in a directory
+     * @param directory the directory holding the segments and snapshots
+     * @param policy when to flush appended records to disk
+     * @param syncMillis ms between flushes with the INTERVAL policy
+     * @param segment the number of the first segment, after every existing one
+     * @throws IOException if the segment cannot be created
+     */
+    public WriteAheadLog(Path directory, SyncPolicy policy, long syncMillis, long segment) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.segment = segment;
+        this.current = map(segment);
+
+        if (policy == SyncPolicy.INTERVAL) {
+            Thread syncer = new Thread(() -> {
+                while (true) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(syncMillis));
+                    sync();
+                }
+            }, "wal-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    /**
+     * Opens the log in a directory and rebuilds the game it holds: the latest snapshot, then every
+     * segment written since replayed onto it
+     * @param directory the directory, created if missing
+     * @param policy when to flush appended records to disk
+     * @param syncMillis ms between flushes with the INTERVAL policy
+     * @return the log, already attached to the recovered game state
+     * @throws IOException if the directory cannot be read or a new segment cannot be created
+     */
+    public static WriteAheadLog open(Path directory, SyncPolicy policy, long syncMillis) throws IOException {
+        return open(directory, policy, syncMillis, ShardMap.SINGLE, 0);
+    }
+
+    /**
+     * Opens the log of one shard in a directory and rebuilds the game it holds. A game recovered
+     * from a snapshot keeps the shards it was saved with
+     * @param directory the directory, created if missing, which no other shard may share
+     * @param policy when to flush appended records to disk
+     * @param syncMillis ms between flushes with the INTERVAL policy
+     * @param shardMap how the map is split between shards, for a game started from scratch
+     * @param shard the index of this shard
+     * @return the log, already attached to the recovered game state
+     * @throws IOException if the directory cannot be read or a new segment cannot be created
+     */
+    public static WriteAheadLog open(Path directory, SyncPolicy policy, long syncMillis, ShardMap shardMap, int shard)
+            throws IOException {
+        Files.createDirectories(directory);
+        List<Long> segments = list(directory, "wal-", ".log");
+        List<Long> snapshots = list(directory, "snapshot-", ".bin");
+
+        GameState gameState = null;
+        long first = 0;
+        for (int i = snapshots.size() - 1; i >= 0 && gameState == null; i--) { // newest first
+            Path file = snapshotFile(directory, snapshots.get(i));
+            try {
+                GameSnapshot snapshot = GameSnapshot.read(file);
+                gameState = new GameState(snapshot);
+                first = snapshot.getSegment();
+                Log.info("Loaded snapshot {} at version {}", file, snapshot.getVersion());
+                if (snapshot.getShards() != shardMap.getShards() || snapshot.getShard() != shard) {
+                    Log.warn("ERROR: Snapshot {} was taken on shard {}/{}, not {}/{}", file, snapshot.getShard(),
+                            snapshot.getShards(), shard, shardMap.getShards());
+                }
+            } catch (IOException e) {
+                Log.warn("ERROR: Could not read snapshot {}: {}", file, e.getMessage());
+            }
+        }
+        if (gameState == null) {
+            gameState = new GameState(shardMap, shard);
+        }
+
+        long next = first;
+        for (long number : segments) {
+            if (number >= first) {
+                int records = replay(segmentFile(directory, number), gameState);
+                Log.info("Replayed {} records of segment {}", records, number);
+            }
+            next = Math.max(next, number + 1);
+        }
+
+        WriteAheadLog log = new WriteAheadLog(directory, policy, syncMillis, next);
+        log.gameState = gameState;
+        gameState.setWriteAheadLog(log);
+        return log;
+    }
+
+    /**
+     * Gets the game state recovered by open, which appends its changes to this log
+     * @return the game state
+     */
+    public GameState getGameState() {
+        return gameState;
+    }
+
+    /**
+     * Appends a player joining
+     * @param playerId the id the player got
+     * @param name the name of the player
+     */
+    public synchronized void logJoin(int playerId, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, Short.MAX_VALUE);
+        int at = reserve(7 + length);
+        current.putInt(at + 1, playerId);
+        current.putShort(at + 5, (short) length);
+        current.put(at + 7, bytes, 0, length);
+        current.put(at, JOIN);
+    }
+
+    /**
+     * Appends a player handed over from another shard
+     * @param playerId the id of the player
+     * @param x the x-coordinate of the player
+     * @param y the y-coordinate of the player
+     * @param health the health of the player
+     * @param name the name of the player
+     */
+    public synchronized void logAdopt(int playerId, int x, int y, int health, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, Short.MAX_VALUE);
+        int at = reserve(19 + length);
+        current.putInt(at + 1, playerId);
+        current.putInt(at + 5, x);
+        current.putInt(at + 9, y);
+        current.putInt(at + 13, health);
+        current.putShort(at + 17, (short) length);
+        current.put(at + 19, bytes, 0, length);
+        current.put(at, ADOPT);
+    }
+
+    /**
+     * Appends a player handed over to another shard
+     * @param playerId the id of the player
+     */
+    public synchronized void logRelease(int playerId) {
+        int at = reserve(5);
+        current.putInt(at + 1, playerId);
+        current.put(at, RELEASE);
+    }
+
+    /**
+     * Appends a player moving
+     * @param playerId the id of the player
+     * @param dx the change in x
+     * @param dy the change in y
+     */
+    public synchronized void logMove(int playerId, int dx, int dy) {
+        int at = reserve(13);
+        current.putInt(at + 1, playerId);
+        current.putInt(at + 5, dx);
+        current.putInt(at + 9, dy);
+        current.put(at, MOVE);
+    }
+
+    /**
+     * Appends a player picking up a loot box. Only successful pickups are logged
+     * @param playerId the id of the player
+     * @param lootId the id of the loot box
+     */
+    public synchronized void logPickup(int playerId, int lootId) {
+        int at = reserve(9);
+        current.putInt(at + 1, playerId);
+        current.putInt(at + 5, lootId);
+        current.put(at, PICKUP);
+    }
+
+    /**
+     * Makes sure everything appended so far survives a power cut before a response is sent, if the
+     * policy is ALWAYS. Otherwise returns at once
+     */
+    public void commit() {
+        if (policy == SyncPolicy.ALWAYS) {
+            sync();
+        }
+    }
+
+    /**
+     * Flushes everything appended so far to disk. A thread that finds another one already flushing
+     * waits for it, and returns without flushing again if that covered its records
+     */
+    public void sync() {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        if (synced >= target) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= target) {
+                return; // flushed while waiting for the lock
+            }
+            MappedByteBuffer segmentBuffer;
+            long start;
+            long end;
+            synchronized (this) {
+                segmentBuffer = current;
+                start = segmentStart;
+                end = appended;
+            }
+            long from = Math.max(synced, start); // earlier segments were flushed when rolled
+            segmentBuffer.force((int) (from - start), (int) (end - from));
+            synced = end;
+        }
+    }
+
+    /**
+     * Starts a new segment. Called by GameState.takeSnapshot while no change is in progress
+     * @return the number of the new segment
+     */
+    public synchronized long roll() {
+        if (policy != SyncPolicy.NEVER) {
+            current.force(); // sync only flushes the current segment
+        }
+        try {
+            current = map(segment + 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        segment++;
+        segmentStart = appended;
+        return segment;
+    }
+
+    /**
+     * Takes a snapshot of a game state, writes it next to the log and deletes the segments and
+     * snapshots it replaces
+     * @param gameState the game state this log belongs to
+     */
+    public void checkpoint(GameState gameState) {
+        long start = System.nanoTime();
+        GameSnapshot snapshot = gameState.takeSnapshot();
+        try {
+            snapshot.write(snapshotFile(directory, snapshot.getSegment()));
+            // only now that the snapshot is safely written are the files before it of no use
+            for (long number : list(directory, "wal-", ".log")) {
+                if (number < snapshot.getSegment()) {
+                    Files.deleteIfExists(segmentFile(directory, number));
+                }
+            }
+            for (long number : list(directory, "snapshot-", ".bin")) {
+                if (number < snapshot.getSegment()) {
+                    Files.deleteIfExists(snapshotFile(directory, number));
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("ERROR: Could not write snapshot {}: {}", snapshot.getSegment(), e.getMessage());
+            return;
+        }
+        Log.info("Wrote snapshot {} of {} players in {} ms", snapshot.getSegment(), snapshot.getPlayers().size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Takes a snapshot of a game state at a fixed interval on a background thread
+     * @param gameState the game state this log belongs to
+     * @param intervalMillis ms between snapshots
+     */
+    public void startCheckpoints(GameState gameState, long intervalMillis) {
+        Thread checkpointer = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+                checkpoint(gameState);
+            }
+        }, "wal-checkpoint");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * Reserves room for a record in the current segment, starting a new one if it does not fit
+     * @param size the size of the record in bytes
+     * @return where the record starts in the current segment
+     */
+    private int reserve(int size) {
+        if (appended - segmentStart + size + 1 > SEGMENT_SIZE) { // keep a 0 after the last record
+            roll();
+        }
+        int at = (int) (appended - segmentStart);
+        appended += size;
+        return at;
+    }
+
+    /**
+     * Creates and maps a new segment file
+     * @param number the number of the segment
+     * @return the mapped segment, all zeros
+     * @throws IOException if the file cannot be created
+     */
+    private MappedByteBuffer map(long number) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(directory, number), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE); // stays mapped after closing
+        }
+    }
+
+    /**
+     * Applies the records of a segment to a game state, up to the first one that is missing or cut short
+     * @param file the segment file
+     * @param gameState the game state
+     * @return the number of records applied
+     * @throws IOException if the file cannot be read
+     */
+    static int replay(Path file, GameState gameState) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int records = 0;
+        while (in.hasRemaining()) {
+            byte type = in.get();
+            if (type == JOIN && in.remaining() >= 6) {
+                int playerId = in.getInt();
+                byte[] bytes = new byte[in.getShort()];
+                in.get(bytes);
+                int joined = gameState.addNewPlayer(new String(bytes, StandardCharsets.UTF_8)).getId();
+                if (joined != playerId) {
+                    Log.warn("ERROR: Player {} was replayed as player {}", playerId, joined);
+                }
+            } else if (type == MOVE && in.remaining() >= 12) {
+                gameState.movePlayer(in.getInt(), in.getInt(), in.getInt());
+            } else if (type == PICKUP && in.remaining() >= 8) {
+                gameState.processPickup(in.getInt(), in.getInt());
+            } else if (type == ADOPT && in.remaining() >= 18) {
+                int playerId = in.getInt();
+                int x = in.getInt();
+                int y = in.getInt();
+                int health = in.getInt();
+                byte[] bytes = new byte[in.getShort()];
+                in.get(bytes);
+                gameState.adoptPlayer(playerId, x, y, health, new String(bytes, StandardCharsets.UTF_8));
+            } else if (type == RELEASE && in.remaining() >= 4) {
+                gameState.releasePlayer(in.getInt());
+            } else {
+                break; // the end of the log
+            }
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Lists the numbers of the files in a directory with a prefix and suffix, such as the segments
+     * @param directory the directory
+     * @param prefix what each file name starts with
+     * @param suffix what each file name ends with
+     * @return the numbers between prefix and suffix, in ascending order
+     * @throws IOException if the directory cannot be read
+     */
+    private static List<Long> list(Path directory, String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Gets the file of a segment
+     * @param directory the directory of the log
+     * @param number the number of the segment
+     * @return the file
+     */
+    private static Path segmentFile(Path directory, long number) {
+        return directory.resolve(String.format("wal-%010d.log", number));
+    }
+
+    /**
+     * Gets the file of the snapshot taken when a segment started
+     * @param directory the directory of the log
+     * @param number the number of the segment
+     * @return the file
+     */
+    private static Path snapshotFile(Path directory, long number) {
+        return directory.resolve(String.format("snapshot-%010d.bin", number));
+    }
+}